@@ -21,6 +21,7 @@ import java.io.File
 import org.openmole.core.context.Context
 import org.openmole.core.exception.InternalProcessingError
 import org.openmole.core.fileservice.{ FileDeleter, FileService }
+import org.openmole.core.preference.Preference
 import org.openmole.core.serializer.SerializerService
 import org.openmole.core.tools.service._
 import org.openmole.core.workflow.execution.Environment.RuntimeLog
@@ -67,8 +68,10 @@ package object message {
             download(replicatedFile.path, cache)
             verify(cache)
 
+            // the directories are archived with the checksum of each file (see
+            // FileService.archiveForDir and upload), checked while the files are extracted
             val local = localDirectory / replicatedFile.name
-            cache.extract(local)
+            cache.extractVerified(local)
             cache.delete
             local.mode = replicatedFile.mode
             local
@@ -92,13 +95,13 @@ package object message {
       finally fileService.deleteWhenEmpty(localDirectory)
     }
 
-    def upload(file: File, upload: File ⇒ String)(implicit newFile: NewFile) = {
+    def upload(file: File, upload: File ⇒ String)(implicit newFile: NewFile, preference: Preference) = {
       val isDir = file.isDirectory
 
       val toReplicate =
         if (isDir) {
           val ret = newFile.newFile("archive", ".tar")
-          file.archive(ret)
+          file.archive(ret, threads = preference(FileService.archiveThreads), hardLinks = preference(FileService.archiveHardLinks), deduplicate = preference(FileService.archiveDeduplicate), checksums = true)
           ret
         }
         else file
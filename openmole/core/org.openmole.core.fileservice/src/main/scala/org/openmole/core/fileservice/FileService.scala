@@ -44,6 +44,15 @@ object FileService {
 
   val archiveCacheSize = ConfigurationLocation("FileService", "ArchiveCacheSize", Some(1000))
   val archiveCacheTime = ConfigurationLocation("FileService", "ArchiveCacheTime", Some(10 minutes))
+  val archiveCheckInterval = ConfigurationLocation("FileService", "ArchiveCheckInterval", Some(1 minutes))
+  val archiveThreads = ConfigurationLocation("FileService", "ArchiveThreads", Some(8))
+  val archiveHardLinks = ConfigurationLocation("FileService", "ArchiveHardLinks", Some(true))
+  /**
+   * Archive the files of a directory with the same content and mode as hard links to one of them.
+   * They are extracted as hard links to a single file: a task modifying one of them in place
+   * modifies all of them.
+   */
+  val archiveDeduplicate = ConfigurationLocation("FileService", "ArchiveDeduplicate", Some(false))
 
   def apply()(implicit preference: Preference, threadProvider: ThreadProvider) = {
     val fs = new FileService
@@ -65,7 +74,13 @@ class FileServiceCache(implicit preference: Preference) {
   private[fileservice] val archiveCache =
     CacheBuilder.newBuilder.maximumSize(preference(FileService.archiveCacheSize)).
       expireAfterAccess(preference(FileService.archiveCacheTime).millis, TimeUnit.MILLISECONDS).
-      build[String, FileCache]()
+      build[String, DirectoryArchive]()
+}
+
+/** A cached directory archive with the manifest used to update it incrementally */
+case class DirectoryArchive(archive: FileCache, manifest: ArchiveManifest) {
+  /** The last time the directory was found unchanged */
+  @volatile var checked = System.currentTimeMillis
 }
 
 class FileService(implicit preference: Preference) {
@@ -73,26 +88,75 @@ class FileService(implicit preference: Preference) {
   private[fileservice] val deleteEmpty = ListBuffer[File]()
 
   def hashNoCache(file: File, hashType: HashType = SHA1)(implicit newFile: NewFile) = {
-    if (file.isDirectory) newFile.withTmpFile { archive ⇒
-      file.archive(archive, time = false)
-      hashFile(archive, hashType)
-    }
+    if (file.isDirectory) hashDirectoryArchive(file, hashType)
     else hashFile(file, hashType)
   }
 
   def hash(file: File)(implicit newFile: NewFile, fileServiceCache: FileServiceCache): Hash = {
-    def hash = hashFile(if (file.isDirectory) archiveForDir(file).file else file)
+    def hash =
+      if (file.isDirectory)
+        Option(fileServiceCache.archiveCache.getIfPresent(file.getAbsolutePath)) match {
+          case Some(cached) ⇒ hashFile(cached.archive.file)
+          case None          ⇒ hashDirectoryArchive(file)
+        }
+      else hashFile(file)
+
     fileServiceCache.hashCache.get(file.getCanonicalPath, hash)
   }
 
+  /**
+   * Hash of the archive of a directory (as produced by archiveForDir), computed while the archive
+   * is generated, without writing it.
+   */
+  def hashDirectoryArchive(directory: File, hashType: HashType = SHA1) = {
+    val os = new HashOutputStream(hashType)
+    val tos = new TarOutputStream(os)
+    try tos.archive(directory, time = false, threads = preference(FileService.archiveThreads), hardLinks = preference(FileService.archiveHardLinks), deduplicate = preference(FileService.archiveDeduplicate), checksums = true)
+    finally tos.close
+    os.hash
+  }
+
+  /**
+   * Archive of a directory. The cached archive is checked against the directory (sizes,
+   * modification times and modes), when it has changed the archive is rebuilt reusing the entries
+   * of the unchanged files.
+   *
+   * The check stats every file of the directory, it is done at most once per ArchiveCheckInterval
+   * for a directory: the changes made in between are not seen. A file rewritten with the same
+   * size within the resolution of the modification times of its file system is not seen either.
+   *
+   * The entries carry the checksum of the files, which is checked when the archive is extracted
+   * (see extractVerified).
+   */
   def archiveForDir(directory: File)(implicit newFile: NewFile, fileServiceCache: FileServiceCache): FileCache = {
-    def archive = {
+    def archive(previous: Option[DirectoryArchive]) = {
       val ret = newFile.newFile("archive", ".tar")
-      directory.archive(ret, time = false)
-      FileCache(ret)(this)
+      val manifest =
+        directory.archiveIncremental(
+          ret,
+          previous.map(p ⇒ p.archive.file → p.manifest),
+          threads = preference(FileService.archiveThreads),
+          hardLinks = preference(FileService.archiveHardLinks),
+          deduplicate = preference(FileService.archiveDeduplicate),
+          checksums = true
+        )
+      DirectoryArchive(FileCache(ret)(this), manifest)
     }
 
-    fileServiceCache.archiveCache.get(directory.getAbsolutePath, archive)
+    val key = directory.getAbsolutePath
+    val cached = fileServiceCache.archiveCache.get(key, archive(None))
+
+    val now = System.currentTimeMillis
+    if (now - cached.checked < preference(FileService.archiveCheckInterval).millis) cached.archive
+    else if (cached.manifest.isUpToDate(directory, threads = preference(FileService.archiveThreads))) {
+      cached.checked = now
+      cached.archive
+    }
+    else {
+      val updated = archive(Some(cached))
+      fileServiceCache.archiveCache.put(key, updated)
+      updated.archive
+    }
   }
 
   private val fileDeleter = new FileDeleter(WeakReference(this))
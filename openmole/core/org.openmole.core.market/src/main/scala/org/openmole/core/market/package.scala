@@ -17,8 +17,6 @@
  */
 package org.openmole.core
 
-import java.util.zip.GZIPInputStream
-
 import org.openmole.tool.file._
 import org.openmole.tool.tar._
 import gridscale.http
@@ -28,6 +26,7 @@ import org.openmole.core.fileservice.FileService
 import org.openmole.core.preference.Preference
 import org.openmole.core.workspace._
 import org.openmole.tool.random._
+import org.openmole.tool.stream._
 import org.openmole.tool.tar.TarInputStream
 import java.io.IOException
 
@@ -47,7 +46,7 @@ package object market {
 
   def downloadEntry(entry: MarketIndexEntry, path: File) = try {
     http.getStream(entry.url) { is ⇒
-      val tis = new TarInputStream(new GZIPInputStream(is))
+      val tis = new TarInputStream(is.toParallelGZ)
       try tis.extract(path)
       finally tis.close
       path.applyRecursive(_.setExecutable(true))
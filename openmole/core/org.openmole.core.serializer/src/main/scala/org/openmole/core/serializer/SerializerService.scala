@@ -18,6 +18,7 @@
 package org.openmole.core.serializer
 
 import com.thoughtworks.xstream.XStream
+import java.io.BufferedInputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.InputStream
@@ -102,10 +103,13 @@ class SerializerService { service ⇒
 
   def deserialise[T](is: InputStream): T = lock.read(xstream.fromXML(is).asInstanceOf[T])
 
-  def deserialiseAndExtractFiles[T](file: File)(implicit newFile: NewFile): (T, Iterable[File]) = {
-    val tis = new TarInputStream(file.bufferedInputStream)
-    try deserialiseAndExtractFiles(tis)
-    finally tis.close
+  def deserialiseAndExtractFiles[T](file: File)(implicit newFile: NewFile): (T, Iterable[File]) = lock.read {
+    file.withTarFile { archive ⇒
+      val fileReplacement = fileSerialisation.exec(_.deserialiseFileReplacements(archive))
+      val is = new BufferedInputStream(archive.getInputStream(archive.getEntry(content)))
+      try (deserialiseReplaceFiles[T](is, fileReplacement), fileReplacement.values)
+      finally is.close
+    }
   }
 
   def deserialiseAndExtractFiles[T](tis: TarInputStream)(implicit newFile: NewFile): (T, Iterable[File]) = lock.read {
@@ -118,7 +122,7 @@ class SerializerService { service ⇒
   }
 
   def serialiseAndArchiveFiles(obj: Any, f: File)(implicit newFile: NewFile): Unit = {
-    val os = new TarOutputStream(f.bufferedOutputStream())
+    val os = f.tarOutputStream
     try serialiseAndArchiveFiles(obj, os)
     finally os.close
   }
@@ -18,13 +18,14 @@
 package org.openmole.core.serializer.file
 
 import org.openmole.tool.file._
+import org.openmole.tool.stream._
 import org.openmole.tool.tar._
 import org.openmole.core.workspace.{ NewFile, Workspace }
 import org.openmole.tool.tar.TarOutputStream
 
 import scala.collection.immutable.HashMap
 import java.util.UUID
-import java.io.{ File, FileOutputStream }
+import java.io.{ BufferedInputStream, File, FileOutputStream }
 import org.openmole.core.serializer.converter.Serialiser
 
 object FileSerialisation {
@@ -39,21 +40,14 @@ trait FileSerialisation extends Serialiser {
   def filesInfo = "filesInfo.xml"
   def fileDir = "files"
 
-  def serialiseFiles(files: Iterable[File], tos: TarOutputStream)(implicit newFile: NewFile) = newFile.withTmpDir { tmpDir ⇒
+  def serialiseFiles(files: Iterable[File], tos: TarOutputStream)(implicit newFile: NewFile) = {
     val fileInfo = HashMap() ++ files.map {
       file ⇒
         val name = UUID.randomUUID
 
-        val toArchive =
-          if (file.isDirectory) {
-            val toArchive = tmpDir.newFile("archive", ".tar")
-            file.archive(toArchive)
-            toArchive
-          }
-          else file
-
-        if (toArchive.exists)
-          tos.addFile(toArchive, fileDir + "/" + name.toString)
+        // the directories are archived straight into their entry as nested tars
+        if (file.isDirectory) tos.addDirectory(file, fileDir + "/" + name.toString)
+        else if (file.exists) tos.addFile(file, fileDir + "/" + name.toString)
 
         (name.toString, FileInfo(file.getPath, file.isDirectory, file.exists))
     }
@@ -93,4 +87,31 @@ trait FileSerialisation extends Serialiser {
 
   }
 
+  def deserialiseFileReplacements(archive: TarFile)(implicit newFile: NewFile) = {
+    def entryStream(name: String) = archive.getInputStream(archive.getEntry(s"$fileDir/$name"))
+
+    val fi = withClosable(new BufferedInputStream(entryStream(filesInfo)))(is ⇒ xStream.fromXML(is)).asInstanceOf[FilesInfo]
+
+    HashMap() ++ fi.map {
+      case (name, FileInfo(originalPath, isDirectory, exists)) ⇒
+        def fileContent =
+          if (isDirectory) {
+            val dest = newFile.newDir("directoryFromArchive")
+            dest.mkdirs()
+            if (exists) withClosable(new TarInputStream(entryStream(name)))(_.extract(dest))
+            else dest.delete
+            dest
+          }
+          else {
+            val dest = newFile.newFile("fileFromArchive", ".bin")
+            dest.createParentDir
+            if (exists) withClosable(entryStream(name))(_.copy(dest))
+            else dest.delete
+            dest
+          }
+
+        originalPath → fileContent
+    }
+  }
+
 }
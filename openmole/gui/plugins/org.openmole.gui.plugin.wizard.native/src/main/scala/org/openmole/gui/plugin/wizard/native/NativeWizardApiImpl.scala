@@ -27,7 +27,7 @@ import org.openmole.gui.ext.data._
 import org.openmole.gui.ext.tool.server.WizardUtils._
 import org.openmole.tool.file.File
 import org.openmole.tool.stream.StringOutputStream
-import org.openmole.tool.tar.TarInputStream
+import org.openmole.tool.tar.{ TarEntryView, TarEntryVisitor, TarInputStream }
 import org.openmole.tool.stream._
 import resource.{ managed, _ }
 import org.openmole.gui.ext.tool.server.Utils
@@ -172,16 +172,25 @@ class NativeWizardApiImpl(s: Services) extends NativeWizardAPI {
     def fromArchiveStream(extractedArchiveStream: ManagedResource[TarInputStream]): CAREInfo =
       extractedArchiveStream.map { stream ⇒
 
-        Iterator.continually(stream.getNextEntry).dropWhile { te ⇒
-          val pathString = te.getName.split("/")
-          pathString.last != "re-execute.sh" || pathString.contains("rootfs")
-        }.toSeq.headOption.flatMap { _ ⇒
-
-          val linesManaged = managed(new StringOutputStream) map { stringW: StringOutputStream ⇒
-            stream copy stringW
-            stringW.toString.split("\n")
+        // only the headers are read, and the names decoded, until the re-execute.sh script is found
+        var script: Option[Array[String]] = None
+        stream.visitEntries(new TarEntryVisitor {
+          override def visit(te: TarEntryView) = {
+            if (te.nameEndsWith("re-execute.sh")) {
+              val pathString = te.getName.split("/")
+              if (pathString.last == "re-execute.sh" && !pathString.contains("rootfs")) {
+                val linesManaged = managed(new StringOutputStream) map { stringW: StringOutputStream ⇒
+                  stream copy stringW
+                  stringW.toString.split("\n")
+                }
+                script = Some(linesManaged.opt.get)
+              }
+            }
+            script.isEmpty
           }
-          val lines = linesManaged.opt.get
+        })
+
+        script.flatMap { lines ⇒
 
           val prootLine = lines.indexWhere(s ⇒ s.startsWith("PROOT="))
           val commands =
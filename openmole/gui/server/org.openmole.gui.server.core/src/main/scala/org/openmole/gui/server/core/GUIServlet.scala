@@ -274,10 +274,28 @@ class GUIServlet(val arguments: GUIServer.ServletArguments) extends ScalatraServ
 
     if (!f.exists()) NotFound("The file " + path + " does not exist.")
     else {
-      if (f.isDirectory) {
+      // the uncompressed archive has a known length and can be sent by ranges, to resume a download
+      if (f.isDirectory && params.get("format") == Some("tar")) {
+        val layout = ArchiveLayout(f, includeTopDirectoryName = true)
+        val (start, end) = layout.range(Option(request.getHeader("Range")), Option(request.getHeader("If-Range"))).getOrElse((0L, layout.length))
+
+        response.setHeader("Content-Disposition", s"""attachment; filename="${f.getName + ".tar"}"""")
+        response.setHeader("Accept-Ranges", "bytes")
+        response.setHeader("ETag", layout.etag)
+        if (end - start != layout.length) {
+          response.setStatus(206)
+          response.setHeader("Content-Range", s"bytes $start-${end - 1}/${layout.length}")
+        }
+        response.setContentLengthLong(end - start)
+
+        val os = response.getOutputStream()
+        try layout.write(os, start, end)
+        finally os.close
+      }
+      else if (f.isDirectory) {
         response.setHeader("Content-Disposition", s"""attachment; filename="${f.getName + ".tgz"}"""")
         val os = response.getOutputStream()
-        val tos = new TarOutputStream(os.toGZ, 64 * 1024)
+        val tos = asyncTarOutputStream(os.toParallelGZ, 64 * 1024)
         try tos.archive(f, includeTopDirectoryName = true)
         finally tos.close
       }
@@ -170,8 +170,9 @@ object UDocker {
 
     import org.openmole.tool.tar._
 
-    if (!dockerImage.compressed) dockerImage.file.extract(extractedImage)
-    else dockerImage.file.extractUncompress(extractedImage)
+    val threads = Runtime.getRuntime.availableProcessors
+    if (!dockerImage.compressed) dockerImage.file.extract(extractedImage, threads = threads)
+    else dockerImage.file.extractUncompress(extractedImage, threads = threads)
 
     val manifestContent = (extractedImage / "manifest.json").content
     val topLevelManifests = decode[List[TopLevelImageManifest]](manifestContent)
@@ -3,7 +3,7 @@ package org.openmole.rest.server
 import java.io.{ File, PrintStream }
 import java.util.UUID
 import java.util.logging.Level
-import java.util.zip.{ GZIPInputStream, GZIPOutputStream }
+import java.util.zip.GZIPOutputStream
 import javax.servlet.annotation.MultipartConfig
 import javax.servlet.http.HttpServletRequest
 
@@ -101,7 +101,7 @@ trait RESTAPI extends ScalatraServlet with GZipSupport
           for {
             archive ← fileParams get "workDirectory"
           } {
-            val is = new TarInputStream(new GZIPInputStream(archive.getInputStream))
+            val is = new TarInputStream(archive.getInputStream.toParallelGZ)
             try is.extract(directory.workDirectory) finally is.close
           }
 
@@ -148,19 +148,43 @@ trait RESTAPI extends ScalatraServlet with GZipSupport
     getExecution { ex ⇒
       val path = (params get "path").getOrElse("")
       val file = ex.workDirectory.workDirectory / path
-      val gzOs = response.getOutputStream.toGZ
-
-      if (file.isDirectory) {
-        val os = new TarOutputStream(gzOs)
-        contentType = "application/octet-stream"
-        response.setHeader("Content-Disposition", "attachment; filename=" + "archive.tgz")
-        os.archive(file)
-        os.close
+
+      // the uncompressed archive has a known length and can be sent by ranges, to resume a download
+      if (file.isDirectory && params.get("format") == Some("tar")) {
+        val layout = ArchiveLayout(file)
+        val (start, end) = layout.range(Option(request.getHeader("Range")), Option(request.getHeader("If-Range"))).getOrElse((0L, layout.length))
+        val partial = end - start != layout.length
+
+        contentType = "application/x-tar"
+        response.setHeader("Content-Disposition", "attachment; filename=" + "archive.tar")
+        response.setHeader("Accept-Ranges", "bytes")
+        response.setHeader("ETag", layout.etag)
+        if (partial) {
+          response.setStatus(206)
+          response.setHeader("Content-Range", s"bytes $start-${end - 1}/${layout.length}")
+        }
+        response.setContentLengthLong(end - start)
+
+        val os = response.getOutputStream
+        try layout.write(os, start, end)
+        finally os.close
+        if (partial) PartialContent() else Ok()
       }
       else {
-        file.copy(gzOs)
+        val gzOs = response.getOutputStream.toParallelGZ
+
+        if (file.isDirectory) {
+          val os = asyncTarOutputStream(gzOs)
+          contentType = "application/octet-stream"
+          response.setHeader("Content-Disposition", "attachment; filename=" + "archive.tgz")
+          os.archive(file)
+          os.close
+        }
+        else {
+          file.copy(gzOs)
+        }
+        Ok()
       }
-      Ok()
     }
   }
 
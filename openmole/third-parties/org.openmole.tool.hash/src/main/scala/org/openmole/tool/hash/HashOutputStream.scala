@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openmole.tool.hash
+
+import java.io.OutputStream
+
+/**
+ * An output stream computing the hash of what is written to it, for hashing a stream
+ * that is produced rather than read, without storing it.
+ */
+class HashOutputStream(hashType: HashType = SHA1) extends OutputStream {
+  private val md = messageDigest(hashType)
+  private var computed: Option[Hash] = None
+
+  override def write(b: Int) = md.update(b.toByte)
+  override def write(b: Array[Byte], off: Int, len: Int) = md.update(b, off, len)
+
+  /** The hash of the bytes written so far, no more bytes can be written once it has been computed */
+  def hash = computed match {
+    case Some(h) ⇒ h
+    case None ⇒
+      val h = Hash(md.digest)
+      computed = Some(h)
+      h
+  }
+}
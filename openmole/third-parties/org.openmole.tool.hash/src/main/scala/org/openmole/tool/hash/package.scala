@@ -17,10 +17,15 @@
 package org.openmole.tool
 
 import java.io.{ File, FileInputStream, InputStream }
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.security.MessageDigest
+import java.util.concurrent._
 import org.openmole.tool.stream._
 import org.openmole.tool.file._
 
+import scala.collection.JavaConverters._
+
 package object hash {
 
   sealed trait HashType
@@ -33,6 +38,7 @@ package object hash {
 
   implicit class FileHashServiceDecorator(file: File) {
     def hash(hashType: HashType = SHA1) = hashFile(file, hashType)
+    def treeHash(hashType: HashType = SHA1, threads: Int = Runtime.getRuntime.availableProcessors) = hashTree(file, hashType, threads)
   }
 
   implicit class InputStreamHashServiceDecorator(is: InputStream) {
@@ -47,17 +53,84 @@ package object hash {
     finally is.close
   }
 
+  def messageDigest(hashType: HashType) =
+    hashType match {
+      case SHA1   ⇒ MessageDigest.getInstance("SHA-1")
+      case SHA256 ⇒ MessageDigest.getInstance("SHA-256")
+    }
+
   def computeHash(is: InputStream, hashType: HashType): Hash = {
     val buffer = new Array[Byte](DefaultBufferSize)
-    val md =
-      hashType match {
-        case SHA1   ⇒ MessageDigest.getInstance("SHA-1")
-        case SHA256 ⇒ MessageDigest.getInstance("SHA-256")
-      }
+    val md = messageDigest(hashType)
     Iterator.continually(is.read(buffer)).takeWhile(_ != -1).foreach {
       count ⇒ md.update(buffer, 0, count)
     }
     Hash(md.digest)
   }
 
+  private sealed trait TreeNode
+  private case class FileNode(hash: Future[Hash]) extends TreeNode
+  private case class LinkNode(target: String) extends TreeNode
+  private case class DirectoryNode(children: Vector[(String, Int, TreeNode)]) extends TreeNode
+
+  /**
+   * Hash a file tree as a Merkle tree. The files are hashed in parallel, a directory hash
+   * combines the name, mode and hash of its children in name order. Contrary to the hash of a
+   * tar archive of the directory, it does not depend on the order of directory listings. It is
+   * not comparable with the hash of an archive. The threads hashing the files are stopped before
+   * it returns, even when it fails.
+   */
+  def hashTree(file: File, hashType: HashType = SHA1, threads: Int = Runtime.getRuntime.availableProcessors): Hash = {
+    val executor = Executors.newFixedThreadPool(threads, new ThreadFactory {
+      override def newThread(r: Runnable) = {
+        val t = new Thread(r, "hash tree")
+        t.setDaemon(true)
+        t
+      }
+    })
+
+    def node(f: File): TreeNode =
+      if (Files.isSymbolicLink(f)) LinkNode(Files.readSymbolicLink(f).toString)
+      else if (Files.isDirectory(f)) {
+        val children = f.withDirectoryStream() { _.asScala.map(_.getFileName.toString).toVector.sorted }
+        DirectoryNode(children.map { name ⇒
+          val child = new File(f, name)
+          val mode = if (Files.isSymbolicLink(child)) 0 else child.mode
+          (name, mode, node(child))
+        })
+      }
+      else FileNode(executor.submit(new Callable[Hash] { override def call() = hashFile(f, hashType) }))
+
+    def nodeHash(n: TreeNode): Hash =
+      n match {
+        case FileNode(h) ⇒
+          try h.get
+          catch {
+            case e: ExecutionException ⇒ throw e.getCause
+          }
+        case LinkNode(target) ⇒ hashString("l" + target, hashType)
+        case DirectoryNode(children) ⇒
+          val md = messageDigest(hashType)
+          for { (name, mode, child) ← children } {
+            val kind =
+              child match {
+                case _: FileNode      ⇒ 'f'
+                case _: LinkNode      ⇒ 'l'
+                case _: DirectoryNode ⇒ 'd'
+              }
+            md.update(s"$kind $mode $name".getBytes(StandardCharsets.UTF_8))
+            md.update(0: Byte)
+            md.update(nodeHash(child).content)
+          }
+          Hash(md.digest)
+      }
+
+    try nodeHash(node(file))
+    finally {
+      // the file reads are not interruptible, the ones still running when a hash fails end first
+      executor.shutdownNow()
+      executor.awaitTermination(Long.MaxValue, TimeUnit.MILLISECONDS)
+    }
+  }
+
 }
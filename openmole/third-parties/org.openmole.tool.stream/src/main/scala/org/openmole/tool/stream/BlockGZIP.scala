@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.stream
+
+import java.io._
+import java.nio.{ Buffer, ByteBuffer }
+import java.nio.channels.FileChannel
+import java.util.zip.{ CRC32, Deflater, Inflater }
+
+/**
+ * The block gzip format, in the spirit of BGZF: the data is cut in blocks compressed as
+ * independent gzip members, so that any member can be inflated on its own. A gzip file made of
+ * several members is a standard gzip file, gunzip and GZIPInputStream read the concatenation of
+ * the members.
+ *
+ * Each member has an extra field with a "OM" subfield holding the compressed size of the member,
+ * so that the members can be listed without inflating them. The file may end with an index:
+ * empty members with "OI" subfields listing the (uncompressed offset, compressed offset) of the
+ * data members, followed by an empty member with a "OL" subfield holding the offset of the index.
+ */
+object BlockGZIP {
+
+  val DefaultBlockSize = 256 * 1024
+
+  private val MemberSizeId = ('O'.toByte, 'M'.toByte)
+  private val IndexId = ('O'.toByte, 'I'.toByte)
+  private val LocatorId = ('O'.toByte, 'L'.toByte)
+
+  /** Index pairs per index member, so that the extra field stays below 64 KB */
+  private val IndexPairsPerMember = 4000
+
+  private val HeaderSize = 12
+  private val SubfieldHeaderSize = 4
+  private val MemberSizeSubfieldSize = SubfieldHeaderSize + 4
+  private val TrailerSize = 8
+
+  /** The deflate stream of an empty input */
+  private val EmptyDeflate = Array[Byte](3, 0)
+
+  private val LocatorSize = HeaderSize + MemberSizeSubfieldSize + SubfieldHeaderSize + 8 + EmptyDeflate.length + TrailerSize
+
+  /** Compress a block as a gzip member */
+  def deflate(input: Array[Byte], length: Int, level: Int): Array[Byte] = {
+    val deflater = new Deflater(level, true)
+    try {
+      deflater.setInput(input, 0, length)
+      deflater.finish()
+
+      val compressed = new ByteArrayOutputStream(length / 2 + 64)
+      val buffer = new Array[Byte](DefaultBufferSize)
+      while (!deflater.finished) {
+        val n = deflater.deflate(buffer)
+        compressed.write(buffer, 0, n)
+      }
+
+      val crc = new CRC32
+      crc.update(input, 0, length)
+      member(compressed.toByteArray, Seq.empty, crc.getValue.toInt, length)
+    }
+    finally deflater.end()
+  }
+
+  /** Assemble a member: header with the extra field, deflated data, trailer */
+  private def member(deflated: Array[Byte], subfields: Seq[((Byte, Byte), Array[Byte])], crc: Int, size: Int) = {
+    val extraLength = MemberSizeSubfieldSize + subfields.map(SubfieldHeaderSize + _._2.length).sum
+    val memberSize = HeaderSize + extraLength + deflated.length + TrailerSize
+
+    val buffer = ByteBuffer.allocate(memberSize).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+    buffer.put(Array[Byte](0x1f, 0x8b.toByte, Deflater.DEFLATED, 4, 0, 0, 0, 0, 0, 0))
+    buffer.putShort(extraLength.toShort)
+
+    def subfield(id: (Byte, Byte), length: Int) = {
+      buffer.put(id._1)
+      buffer.put(id._2)
+      buffer.putShort(length.toShort)
+    }
+
+    subfield(MemberSizeId, 4)
+    buffer.putInt(memberSize)
+    for { (id, data) ← subfields } {
+      subfield(id, data.length)
+      buffer.put(data)
+    }
+
+    buffer.put(deflated)
+    buffer.putInt(crc)
+    buffer.putInt(size)
+    buffer.array
+  }
+
+  private def emptyMember(subfield: ((Byte, Byte), Array[Byte])) =
+    member(EmptyDeflate, Seq(subfield), 0, 0)
+
+  /** The index members and the locator member written at the end of a file */
+  def indexMembers(index: BlockGZIPIndex): Seq[Array[Byte]] = {
+    val pairs = index.uncompressed zip index.compressed
+
+    val members =
+      pairs.grouped(IndexPairsPerMember).map { group ⇒
+        val data = ByteBuffer.allocate(group.length * 16).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+        for { (u, c) ← group } data.putLong(u).putLong(c)
+        emptyMember(IndexId → data.array)
+      }.toVector
+
+    val locator = ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN).putLong(index.compressed.last)
+    members :+ emptyMember(LocatorId → locator.array)
+  }
+
+  private case class Header(memberSize: Int, dataOffset: Int, subfields: Map[(Byte, Byte), Array[Byte]])
+
+  private def readFully(channel: FileChannel, buffer: ByteBuffer, position: Long) = {
+    while (buffer.hasRemaining) {
+      if (channel.read(buffer, position + buffer.position) == -1) throw new EOFException(s"Unexpected end of block gzip file at ${position + buffer.position}")
+    }
+    // the Buffer methods, as ByteBuffer overrides them from Java 9 on
+    (buffer: Buffer).flip()
+    buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN)
+  }
+
+  private def parseHeader(member: ByteBuffer, position: Long): Header = {
+    if (member.remaining < HeaderSize || member.get(0) != 0x1f || member.get(1) != 0x8b.toByte || member.get(2) != Deflater.DEFLATED || member.get(3) != 4)
+      throw new IOException(s"Not a block gzip member at offset $position")
+
+    val extraLength = member.getShort(10) & 0xFFFF
+    if (member.remaining < HeaderSize + extraLength) throw new IOException(s"Truncated block gzip member header at offset $position")
+
+    var subfields = Map.empty[(Byte, Byte), Array[Byte]]
+    var i = HeaderSize
+    while (i + SubfieldHeaderSize <= HeaderSize + extraLength) {
+      val id = (member.get(i), member.get(i + 1))
+      val length = member.getShort(i + 2) & 0xFFFF
+      val data = new Array[Byte](length)
+      (member: Buffer).position(i + SubfieldHeaderSize)
+      member.get(data)
+      subfields += id → data
+      i += SubfieldHeaderSize + length
+    }
+    (member: Buffer).position(0)
+
+    val memberSize =
+      subfields.get(MemberSizeId).map(ByteBuffer.wrap(_).order(java.nio.ByteOrder.LITTLE_ENDIAN).getInt).getOrElse {
+        throw new IOException(s"Not a block gzip member at offset $position, no member size")
+      }
+
+    Header(memberSize, HeaderSize + extraLength, subfields)
+  }
+
+  /**
+   * Read the index at the end of a block gzip file.
+   *
+   * @return None if the file has no index
+   */
+  def readIndex(channel: FileChannel): Option[BlockGZIPIndex] = {
+    val size = channel.size
+    if (size < LocatorSize) None
+    else {
+      val locator = readFully(channel, ByteBuffer.allocate(LocatorSize), size - LocatorSize)
+      val header = scala.util.Try(parseHeader(locator, size - LocatorSize)).toOption
+      header.flatMap(_.subfields.get(LocatorId)).map { l ⇒
+        val indexStart = ByteBuffer.wrap(l).order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong
+
+        val uncompressed = Array.newBuilder[Long]
+        val compressed = Array.newBuilder[Long]
+
+        var position = indexStart
+        while (position < size - LocatorSize) {
+          val (header, _) = readMember(channel, position)
+          val pairs = ByteBuffer.wrap(header.subfields.getOrElse(IndexId, throw new IOException(s"Not a block gzip index member at offset $position"))).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+          while (pairs.hasRemaining) {
+            uncompressed += pairs.getLong
+            compressed += pairs.getLong
+          }
+          position += header.memberSize
+        }
+
+        BlockGZIPIndex(uncompressed.result, compressed.result)
+      }
+    }
+  }
+
+  /** Build the index of a block gzip file by reading the headers and trailers of its members */
+  def scanIndex(channel: FileChannel): BlockGZIPIndex = {
+    val size = channel.size
+    val uncompressed = Array.newBuilder[Long]
+    val compressed = Array.newBuilder[Long]
+
+    var uncompressedPosition = 0L
+    var position = 0L
+    var end = false
+
+    while (position < size && !end) {
+      val header = readHeader(channel, position)
+      if (header.subfields.contains(IndexId) || header.subfields.contains(LocatorId)) end = true
+      else {
+        val isize = readFully(channel, ByteBuffer.allocate(4), position + header.memberSize - 4).getInt & 0xFFFFFFFFL
+        uncompressed += uncompressedPosition
+        compressed += position
+        uncompressedPosition += isize
+        position += header.memberSize
+      }
+    }
+
+    uncompressed += uncompressedPosition
+    compressed += position
+    BlockGZIPIndex(uncompressed.result, compressed.result)
+  }
+
+  private def readHeader(channel: FileChannel, position: Long): Header = {
+    val start = readFully(channel, ByteBuffer.allocate(math.min(HeaderSize, channel.size - position).toInt), position)
+    if (start.remaining < HeaderSize) throw new IOException(s"Truncated block gzip member header at offset $position")
+    val extraLength = start.getShort(10) & 0xFFFF
+    parseHeader(readFully(channel, ByteBuffer.allocate(HeaderSize + extraLength), position), position)
+  }
+
+  private def readMember(channel: FileChannel, position: Long): (Header, ByteBuffer) = {
+    val start = readFully(channel, ByteBuffer.allocate(math.min(HeaderSize + MemberSizeSubfieldSize, channel.size - position).toInt), position)
+    if (start.remaining < HeaderSize + MemberSizeSubfieldSize || start.getShort(HeaderSize + 2) != 4)
+      throw new IOException(s"Not a block gzip member at offset $position")
+    val memberSize = start.getInt(HeaderSize + SubfieldHeaderSize)
+    val member = readFully(channel, ByteBuffer.allocate(memberSize), position)
+    (parseHeader(member, position), member)
+  }
+
+  /** Read and inflate the member at a position, the CRC is checked */
+  def inflate(channel: FileChannel, position: Long): Array[Byte] = {
+    val (header, member) = readMember(channel, position)
+    val isize = member.getInt(header.memberSize - 4)
+    val crc = member.getInt(header.memberSize - 8)
+
+    val inflater = new Inflater(true)
+    try {
+      inflater.setInput(member.array, header.dataOffset, header.memberSize - header.dataOffset - TrailerSize)
+      val result = new Array[Byte](isize)
+      var length = 0
+      while (length < result.length && !inflater.finished) {
+        val n = inflater.inflate(result, length, result.length - length)
+        if (n == 0 && (inflater.needsInput || inflater.needsDictionary)) throw new IOException(s"Truncated block gzip member at offset $position")
+        length += n
+      }
+
+      val check = new CRC32
+      check.update(result, 0, length)
+      if (length != isize || check.getValue.toInt != crc) throw new IOException(s"Corrupted block gzip member at offset $position")
+      result
+    }
+    finally inflater.end()
+  }
+
+}
+
+/**
+ * The offsets of the data members of a block gzip file, member i holds the uncompressed bytes
+ * from uncompressed(i) to uncompressed(i + 1) and is stored from compressed(i) to
+ * compressed(i + 1). The last offsets are the uncompressed size and the end of the data members.
+ */
+case class BlockGZIPIndex(uncompressed: Array[Long], compressed: Array[Long]) {
+  def members = uncompressed.length - 1
+  def size = uncompressed.last
+
+  /** @return the member holding an uncompressed offset */
+  def member(offset: Long) = {
+    val i = java.util.Arrays.binarySearch(uncompressed, 0, members, offset)
+    // the last member starting at or before the offset
+    val found = if (i >= 0) i else -i - 2
+    math.max(0, math.min(found, members - 1))
+  }
+
+  /** Write the index in a side file */
+  def save(file: File) =
+    withClosable(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) { os ⇒
+      os.writeInt(uncompressed.length)
+      for { i ← uncompressed.indices } {
+        os.writeLong(uncompressed(i))
+        os.writeLong(compressed(i))
+      }
+    }
+}
+
+object BlockGZIPIndex {
+  /** Read an index written with save */
+  def load(file: File) =
+    withClosable(new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) { is ⇒
+      val length = is.readInt
+      val uncompressed = new Array[Long](length)
+      val compressed = new Array[Long](length)
+      for { i ← 0 until length } {
+        uncompressed(i) = is.readLong
+        compressed(i) = is.readLong
+      }
+      BlockGZIPIndex(uncompressed, compressed)
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.stream
+
+import java.io.{ Closeable, File, IOException, InputStream }
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent._
+
+object BlockGZIPFile {
+  /**
+   * Open a block gzip file, with the index at its end, or in a side file, or built from the
+   * member headers when there is none.
+   */
+  def apply(file: File, threads: Int = ParallelGZIPOutputStream.defaultThreads, indexFile: Option[File] = None) = {
+    val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+    try {
+      val index = indexFile.map(BlockGZIPIndex.load) orElse BlockGZIP.readIndex(channel) getOrElse BlockGZIP.scanIndex(channel)
+      new BlockGZIPFile(channel, index, threads)
+    }
+    catch {
+      case t: Throwable ⇒
+        channel.close()
+        throw t
+    }
+  }
+}
+
+/**
+ * Random access to the content of a block gzip file (see BlockGZIP). The streams start at any
+ * uncompressed offset, inflate up to threads members ahead in parallel, and skip the members they
+ * do not read without inflating them. Reads are positional, several streams can be open at once.
+ */
+class BlockGZIPFile(channel: FileChannel, val index: BlockGZIPIndex, threads: Int = ParallelGZIPOutputStream.defaultThreads, executor: ExecutorService = ParallelGZIPOutputStream.executor) extends Closeable {
+
+  /** The uncompressed size */
+  def size = index.size
+
+  def inputStream(offset: Long = 0): InputStream = new MemberInputStream(offset)
+
+  override def close() = channel.close()
+
+  private class MemberInputStream(offset: Long) extends InputStream {
+    private val pending = new java.util.ArrayDeque[Future[Array[Byte]]]
+    private var nextMember = 0
+    private var current = Array.empty[Byte]
+    private var currentPosition = 0
+    /** Bytes to drop at the start of the next inflated member after a seek */
+    private var drop = 0
+    private var position = 0L
+    private val oneByte = new Array[Byte](1)
+
+    seek(offset)
+
+    private def seek(offset: Long) = {
+      position = math.min(offset, index.size)
+      current = Array.empty
+      currentPosition = 0
+
+      if (index.members > 0) {
+        val member = index.member(position)
+        val firstPending = nextMember - pending.size
+
+        // the members being inflated ahead are kept when the target is one of them
+        if (member >= firstPending && member < nextMember) for { _ ← firstPending until member } pending.poll.cancel(true)
+        else {
+          while (!pending.isEmpty) pending.poll.cancel(true)
+          nextMember = member
+        }
+
+        drop = (position - index.uncompressed(member)).toInt
+      }
+    }
+
+    private def prefetch() =
+      while (pending.size < threads && nextMember < index.members) {
+        val member = index.compressed(nextMember)
+        pending.add(executor.submit(new Callable[Array[Byte]] {
+          override def call() = BlockGZIP.inflate(channel, member)
+        }))
+        nextMember += 1
+      }
+
+    /** @return false at the end of the file */
+    private def fill(): Boolean = {
+      while (currentPosition >= current.length) {
+        prefetch()
+        if (pending.isEmpty) return false
+
+        current =
+          try pending.poll.get
+          catch {
+            case e: ExecutionException ⇒
+              e.getCause match {
+                case io: IOException ⇒ throw io
+                case cause           ⇒ throw new IOException("Error while inflating a block", cause)
+              }
+            case e: InterruptedException ⇒ throw new IOException("Interrupted while inflating a block", e)
+          }
+        currentPosition = drop
+        drop = 0
+      }
+      true
+    }
+
+    override def available() = current.length - currentPosition
+
+    override def read(): Int = {
+      val n = read(oneByte, 0, 1)
+      if (n == -1) -1 else oneByte(0) & 0xFF
+    }
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int =
+      if (len == 0) 0
+      else if (!fill()) -1
+      else {
+        val n = math.min(len, current.length - currentPosition)
+        System.arraycopy(current, currentPosition, b, off, n)
+        currentPosition += n
+        position += n
+        n
+      }
+
+    /** Skip in the current member, or jump to the member holding the target without inflating the others */
+    override def skip(n: Long): Long =
+      if (n <= 0) 0
+      else {
+        val target = math.min(position + n, index.size)
+        val skipped = target - position
+        if (skipped <= current.length - currentPosition) {
+          currentPosition += skipped.toInt
+          position = target
+        }
+        else seek(target)
+        skipped
+      }
+
+    override def close() = while (!pending.isEmpty) pending.poll.cancel(true)
+  }
+
+}
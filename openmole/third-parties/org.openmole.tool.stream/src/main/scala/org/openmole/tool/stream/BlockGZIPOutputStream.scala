@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.stream
+
+import java.io.{ IOException, OutputStream }
+import java.util.concurrent._
+import java.util.zip.Deflater
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A gzip output stream writing the block gzip format (see BlockGZIP): each block of blockSize
+ * bytes of the input is compressed as an independent gzip member, the blocks are compressed in
+ * parallel. The output is a standard gzip file, BlockGZIPFile reads it with random access and
+ * parallel inflation.
+ *
+ * With index, the offsets of the members are written at the end of the file, getIndex gives them
+ * once the stream is finished, to be saved in a side file otherwise.
+ */
+class BlockGZIPOutputStream(
+  out:       OutputStream,
+  threads:   Int             = ParallelGZIPOutputStream.defaultThreads,
+  blockSize: Int             = BlockGZIP.DefaultBlockSize,
+  level:     Int             = Deflater.DEFAULT_COMPRESSION,
+  index:     Boolean         = true,
+  executor:  ExecutorService = ParallelGZIPOutputStream.executor) extends OutputStream {
+
+  private var block = new Array[Byte](blockSize)
+  private var blockLength = 0
+
+  private val pending = new java.util.ArrayDeque[(Int, Future[Array[Byte]])]
+  private val oneByte = new Array[Byte](1)
+  private var closed = false
+
+  private val uncompressed = ArrayBuffer[Long]()
+  private val compressed = ArrayBuffer[Long]()
+  private var uncompressedPosition = 0L
+  private var compressedPosition = 0L
+
+  override def write(b: Int): Unit = {
+    oneByte(0) = b.toByte
+    write(oneByte, 0, 1)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    if (closed) throw new IOException("Stream closed")
+
+    var offset = off
+    var remaining = len
+    while (remaining > 0) {
+      val n = math.min(remaining, blockSize - blockLength)
+      System.arraycopy(b, offset, block, blockLength, n)
+      blockLength += n
+      offset += n
+      remaining -= n
+      if (blockLength == blockSize) submit()
+    }
+  }
+
+  /** Write the members that are already compressed, the current block is not cut */
+  override def flush(): Unit = {
+    while (!pending.isEmpty && pending.peek._2.isDone) writeCompressed(pending.poll)
+    out.flush()
+  }
+
+  /**
+   * Compress the remaining input and write the index, without closing the underlying stream.
+   */
+  def finish(): Unit = if (!closed) {
+    try {
+      // an empty input is still written as a member so that the output is a gzip file
+      if (blockLength > 0 || uncompressed.isEmpty && pending.isEmpty) submit()
+      while (!pending.isEmpty) writeCompressed(pending.poll)
+
+      uncompressed += uncompressedPosition
+      compressed += compressedPosition
+
+      if (index) BlockGZIP.indexMembers(currentIndex).foreach(out.write)
+    }
+    finally {
+      closed = true
+      while (!pending.isEmpty) pending.poll._2.cancel(true)
+    }
+  }
+
+  override def close(): Unit =
+    try finish()
+    finally out.close()
+
+  /** The offsets of the members, once the stream is finished */
+  def getIndex = {
+    if (!closed) throw new IOException("The index is known once the stream is finished")
+    currentIndex
+  }
+
+  private def currentIndex = BlockGZIPIndex(uncompressed.toArray, compressed.toArray)
+
+  private def submit() = {
+    val input = block
+    val length = blockLength
+    pending.add(length → executor.submit(new Callable[Array[Byte]] {
+      override def call() = BlockGZIP.deflate(input, length, level)
+    }))
+
+    block = new Array[Byte](blockSize)
+    blockLength = 0
+
+    while (pending.size > threads) writeCompressed(pending.poll)
+  }
+
+  private def writeCompressed(member: (Int, Future[Array[Byte]])) = {
+    val (length, compressedMember) = member
+    val bytes =
+      try compressedMember.get
+      catch {
+        case e: ExecutionException ⇒
+          e.getCause match {
+            case io: IOException ⇒ throw io
+            case cause           ⇒ throw new IOException("Error while compressing a block", cause)
+          }
+        case e: InterruptedException ⇒ throw new IOException("Interrupted while compressing a block", e)
+      }
+
+    out.write(bytes)
+
+    uncompressed += uncompressedPosition
+    compressed += compressedPosition
+    uncompressedPosition += length
+    compressedPosition += bytes.length
+  }
+
+}
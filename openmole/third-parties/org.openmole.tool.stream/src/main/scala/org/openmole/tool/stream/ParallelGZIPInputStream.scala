@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.stream
+
+import java.io._
+import java.nio.{ ByteBuffer, ByteOrder }
+import java.util.concurrent._
+import java.util.zip.{ GZIPInputStream, ZipException }
+
+object ParallelGZIPInputStream {
+  val ReadAheadBufferSize = 64 * 1024
+  val ReadAheadBuffers = 4
+
+  private val HeaderSize = 10
+  private val FEXTRA = 4
+
+  /** The member size subfield of the block gzip format, the total size of the member */
+  private val MemberSizeId = ('O'.toByte, 'M'.toByte)
+  /** The block size subfield of BGZF (bgzip, samtools), the total size of the member minus one */
+  private val BGZFSizeId = ('B'.toByte, 'C'.toByte)
+
+  /** Get the size of a member from the subfields of its extra field, if one gives it */
+  private def memberSize(extra: Array[Byte]): Option[Int] = {
+    val buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN)
+    var i = 0
+    var size: Option[Int] = None
+    while (size.isEmpty && i + 4 <= extra.length) {
+      val id = (extra(i), extra(i + 1))
+      val length = buffer.getShort(i + 2) & 0xFFFF
+      if (id == MemberSizeId && length == 4 && i + 8 <= extra.length) size = Some(buffer.getInt(i + 4))
+      if (id == BGZFSizeId && length == 2 && i + 6 <= extra.length) size = Some((buffer.getShort(i + 4) & 0xFFFF) + 1)
+      i += 4 + length
+    }
+    size
+  }
+
+  /** Inflate a whole member, GZIPInputStream checks its CRC and size */
+  private def inflate(member: Array[Byte]): Array[Byte] = {
+    val isize = ByteBuffer.wrap(member, member.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt
+    if (isize < 0) throw new IOException(s"Gzip member too large, $isize bytes")
+
+    val result = new Array[Byte](isize)
+    withClosable(new GZIPInputStream(new ByteArrayInputStream(member))) { gz ⇒
+      var length = 0
+      while (length < isize) {
+        val n = gz.read(result, length, isize - length)
+        if (n == -1) throw new EOFException("Gzip member shorter than its declared size")
+        length += n
+      }
+      if (gz.read() != -1) throw new IOException("Gzip member longer than its declared size")
+    }
+    result
+  }
+
+  private val readAheadThreadFactory = new ThreadFactory {
+    override def newThread(r: Runnable) = {
+      val t = new Thread(r, "gzip read-ahead")
+      t.setDaemon(true)
+      t
+    }
+  }
+
+  private case class Chunk(buffer: Array[Byte], length: Int)
+  private val EndChunk = Chunk(Array.empty, -1)
+}
+
+/**
+ * A gzip input stream inflating the members of multi-member gzip files in parallel.
+ *
+ * The members which give their size in their header, as the ones written by BlockGZIPOutputStream
+ * and bgzip do, are read whole and inflated on the executor, up to threads members ahead of the
+ * reader, and delivered in order. The members of other gzip files, as the single member written by
+ * gzip or ParallelGZIPOutputStream, can only be found by inflating them: from the first of these
+ * members, the stream is inflated by a read-ahead thread into a ring of ReadAheadBuffers buffers,
+ * so that the reads and the inflation of the input overlap with the consumption of the output.
+ *
+ * As GZIPInputStream, the data following the last member is ignored when it is not a gzip member.
+ */
+class ParallelGZIPInputStream(
+  in:       InputStream,
+  threads:  Int             = ParallelGZIPOutputStream.defaultThreads,
+  executor: ExecutorService = ParallelGZIPOutputStream.executor) extends InputStream {
+
+  import ParallelGZIPInputStream._
+
+  private val pending = new java.util.ArrayDeque[Future[Array[Byte]]]
+  private var members = 0
+  private var inputEnd = false
+
+  @volatile private var readAhead: Option[ReadAhead] = None
+
+  private var current = Array.empty[Byte]
+  private var currentLength = 0
+  private var currentPosition = 0
+  /** The current buffer belongs to the read-ahead ring */
+  private var currentInRing = false
+  private var closed = false
+  private val oneByte = new Array[Byte](1)
+
+  private class ReadAhead(in: InputStream) extends Runnable {
+    val filled = new ArrayBlockingQueue[Either[Throwable, Chunk]](ReadAheadBuffers + 1)
+    val free = new ArrayBlockingQueue[Array[Byte]](ReadAheadBuffers)
+    for { _ ← 0 until ReadAheadBuffers } free.add(new Array[Byte](ReadAheadBufferSize))
+
+    @volatile var stopped = false
+    val thread = readAheadThreadFactory.newThread(this)
+
+    override def run() =
+      try {
+        val gz = new GZIPInputStream(in, DefaultBufferSize)
+        var end = false
+        while (!end && !stopped) {
+          val buffer = free.take
+          var length = 0
+          var n = 0
+          while (length < buffer.length && n != -1) {
+            n = gz.read(buffer, length, buffer.length - length)
+            if (n > 0) length += n
+          }
+          if (length > 0) filled.put(Right(Chunk(buffer, length)))
+          if (n == -1) {
+            filled.put(Right(EndChunk))
+            end = true
+          }
+        }
+      }
+      catch {
+        case _: InterruptedException if stopped ⇒
+        case t: Throwable                       ⇒ filled.put(Left(t))
+      }
+
+    def stop() = {
+      stopped = true
+      thread.interrupt()
+    }
+  }
+
+  /** Read up to length bytes, less only at the end of the input */
+  private def readInput(buffer: Array[Byte], offset: Int, length: Int): Int = {
+    var read = 0
+    var n = 0
+    while (read < length && n != -1) {
+      n = in.read(buffer, offset + read, length - read)
+      if (n > 0) read += n
+    }
+    read
+  }
+
+  /**
+   * Read the next member header and submit the member if its size is known, otherwise hand the
+   * header and the rest of the input over to the read-ahead thread.
+   */
+  private def nextMember(): Unit = {
+    val header = new Array[Byte](HeaderSize)
+    val read = readInput(header, 0, HeaderSize)
+    val isGZip = read == HeaderSize && header(0) == 0x1f.toByte && header(1) == 0x8b.toByte
+
+    if (!isGZip) {
+      if (members == 0) throw new ZipException("Not in GZIP format")
+      inputEnd = true
+    }
+    else {
+      val extra =
+        if ((header(3) & FEXTRA) == 0) None
+        else {
+          val lengthBytes = new Array[Byte](2)
+          if (readInput(lengthBytes, 0, 2) < 2) throw new EOFException("Truncated gzip member header")
+          val extraLength = (lengthBytes(0) & 0xFF) | ((lengthBytes(1) & 0xFF) << 8)
+          val extra = new Array[Byte](extraLength)
+          if (readInput(extra, 0, extraLength) < extraLength) throw new EOFException("Truncated gzip member header")
+          Some((lengthBytes, extra))
+        }
+
+      extra.flatMap { case (_, e) ⇒ memberSize(e) } match {
+        case Some(size) ⇒
+          val (lengthBytes, e) = extra.get
+          val member = new Array[Byte](size)
+          val start = HeaderSize + lengthBytes.length + e.length
+          if (size < start + 8) throw new IOException(s"Invalid gzip member size $size")
+          System.arraycopy(header, 0, member, 0, HeaderSize)
+          System.arraycopy(lengthBytes, 0, member, HeaderSize, lengthBytes.length)
+          System.arraycopy(e, 0, member, HeaderSize + lengthBytes.length, e.length)
+          if (readInput(member, start, size - start) < size - start) throw new EOFException("Truncated gzip member")
+
+          pending.add(executor.submit(new Callable[Array[Byte]] {
+            override def call() = inflate(member)
+          }))
+          members += 1
+        case None ⇒
+          val headerBytes = extra match {
+            case Some((lengthBytes, e)) ⇒ header ++ lengthBytes ++ e
+            case None                   ⇒ header
+          }
+          val rest = new SequenceInputStream(new ByteArrayInputStream(headerBytes), in)
+          val r = new ReadAhead(rest)
+          readAhead = Some(r)
+          r.thread.start()
+          members += 1
+          inputEnd = true
+      }
+    }
+  }
+
+  private def prefetch() =
+    while (pending.size < threads && !inputEnd) nextMember()
+
+  private def rethrow(t: Throwable) = t match {
+    case io: IOException ⇒ throw io
+    case cause           ⇒ throw new IOException("Error while inflating a gzip member", cause)
+  }
+
+  /** @return false at the end of the stream */
+  private def fill(): Boolean = {
+    if (closed) throw new IOException("Stream closed")
+
+    var end = false
+    while (currentPosition >= currentLength && !end) {
+      prefetch()
+
+      if (!pending.isEmpty) {
+        current =
+          try pending.poll.get
+          catch {
+            case e: ExecutionException   ⇒ rethrow(e.getCause)
+            case e: InterruptedException ⇒ throw new IOException("Interrupted while inflating a gzip member", e)
+          }
+        currentLength = current.length
+        currentPosition = 0
+        currentInRing = false
+      }
+      else readAhead match {
+        case Some(r) ⇒
+          // the previous chunk goes back to the ring
+          if (currentInRing) r.free.offer(current)
+          current = Array.empty
+          currentLength = 0
+          currentPosition = 0
+          currentInRing = false
+
+          val chunk =
+            try r.filled.take
+            catch {
+              case e: InterruptedException ⇒ throw new IOException("Interrupted while inflating a gzip stream", e)
+            }
+
+          chunk match {
+            case Left(t) ⇒ rethrow(t)
+            case Right(EndChunk) ⇒
+              r.filled.put(Right(EndChunk))
+              end = true
+            case Right(Chunk(buffer, length)) ⇒
+              current = buffer
+              currentLength = length
+              currentInRing = true
+          }
+        case None ⇒ end = true
+      }
+    }
+    !end
+  }
+
+  override def available() = currentLength - currentPosition
+
+  override def read(): Int = {
+    val n = read(oneByte, 0, 1)
+    if (n == -1) -1 else oneByte(0) & 0xFF
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int =
+    if (len == 0) 0
+    else if (!fill()) -1
+    else {
+      val n = math.min(len, currentLength - currentPosition)
+      System.arraycopy(current, currentPosition, b, off, n)
+      currentPosition += n
+      n
+    }
+
+  override def close() = if (!closed) {
+    closed = true
+    while (!pending.isEmpty) pending.poll.cancel(true)
+    readAhead.foreach(_.stop())
+    in.close()
+  }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.stream
+
+import java.io.{ ByteArrayOutputStream, IOException, OutputStream }
+import java.util.concurrent._
+import java.util.zip.{ CRC32, Deflater }
+
+object ParallelGZIPOutputStream {
+  val DefaultBlockSize = 128 * 1024
+  val DictionarySize = 32 * 1024
+
+  def defaultThreads = Runtime.getRuntime.availableProcessors
+
+  lazy val executor: ExecutorService = Executors.newFixedThreadPool(defaultThreads, new ThreadFactory {
+    override def newThread(r: Runnable) = {
+      val t = new Thread(r, "parallel gzip")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  private val header = Array[Byte](0x1f, 0x8b.toByte, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0)
+
+  private class DeflateBlock(input: Array[Byte], length: Int, dictionary: Array[Byte], dictionaryLength: Int, last: Boolean, level: Int) extends Callable[Array[Byte]] {
+    override def call() = {
+      val deflater = new Deflater(level, true)
+      try {
+        if (dictionaryLength > 0) {
+          val size = math.min(DictionarySize, dictionaryLength)
+          deflater.setDictionary(dictionary, dictionaryLength - size, size)
+        }
+
+        deflater.setInput(input, 0, length)
+
+        val compressed = new ByteArrayOutputStream(length / 2 + 64)
+        val buffer = new Array[Byte](DefaultBufferSize)
+
+        if (last) {
+          deflater.finish()
+          while (!deflater.finished) {
+            val n = deflater.deflate(buffer)
+            compressed.write(buffer, 0, n)
+          }
+        }
+        else {
+          // a sync flush ends the block on a byte boundary so that blocks can be concatenated
+          var n = buffer.length
+          while (n == buffer.length) {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)
+            compressed.write(buffer, 0, n)
+          }
+        }
+
+        compressed.toByteArray
+      }
+      finally deflater.end()
+    }
+  }
+}
+
+/**
+ * A gzip output stream compressing fixed size blocks of its input in parallel, as pigz does.
+ *
+ * Each block is deflated on the executor with the last 32 KB of the previous block as a
+ * dictionary, so that the compression ratio is close to the one of a single deflater. The
+ * compressed blocks are written in order and form a single standard gzip member, readable by
+ * GZIPInputStream or gunzip. At most threads blocks are compressed at once, the memory used is
+ * bounded by threads times blockSize.
+ *
+ * As for GZIPOutputStream, flush does not flush the compressor, it only writes the blocks that
+ * are already compressed.
+ */
+class ParallelGZIPOutputStream(
+  out:       OutputStream,
+  threads:   Int             = ParallelGZIPOutputStream.defaultThreads,
+  blockSize: Int             = ParallelGZIPOutputStream.DefaultBlockSize,
+  level:     Int             = Deflater.DEFAULT_COMPRESSION,
+  executor:  ExecutorService = ParallelGZIPOutputStream.executor) extends OutputStream {
+
+  import ParallelGZIPOutputStream._
+
+  private val crc = new CRC32
+  private var size = 0L
+
+  private var block = new Array[Byte](blockSize)
+  private var blockLength = 0
+  private var previous = Array.empty[Byte]
+  private var previousLength = 0
+
+  private val pending = new java.util.ArrayDeque[Future[Array[Byte]]]
+  private val oneByte = new Array[Byte](1)
+  private var closed = false
+
+  out.write(header)
+
+  override def write(b: Int): Unit = {
+    oneByte(0) = b.toByte
+    write(oneByte, 0, 1)
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    if (closed) throw new IOException("Stream closed")
+
+    crc.update(b, off, len)
+    size += len
+
+    var offset = off
+    var remaining = len
+    while (remaining > 0) {
+      val n = math.min(remaining, blockSize - blockLength)
+      System.arraycopy(b, offset, block, blockLength, n)
+      blockLength += n
+      offset += n
+      remaining -= n
+      if (blockLength == blockSize) submit(last = false)
+    }
+  }
+
+  override def flush(): Unit = {
+    while (!pending.isEmpty && pending.peek.isDone) writeCompressed(pending.poll)
+    out.flush()
+  }
+
+  /**
+   * Compress the remaining input and write the gzip trailer, without closing the underlying
+   * stream.
+   */
+  def finish(): Unit = if (!closed) {
+    try {
+      submit(last = true)
+      while (!pending.isEmpty) writeCompressed(pending.poll)
+
+      writeInt(crc.getValue.toInt)
+      writeInt(size.toInt)
+    }
+    finally {
+      closed = true
+      while (!pending.isEmpty) pending.poll.cancel(true)
+    }
+  }
+
+  override def close(): Unit =
+    try finish()
+    finally out.close()
+
+  private def submit(last: Boolean) = {
+    pending.add(executor.submit(new DeflateBlock(block, blockLength, previous, previousLength, last, level)))
+
+    previous = block
+    previousLength = blockLength
+    block = new Array[Byte](blockSize)
+    blockLength = 0
+
+    while (pending.size > threads) writeCompressed(pending.poll)
+  }
+
+  private def writeCompressed(compressed: Future[Array[Byte]]) =
+    try out.write(compressed.get)
+    catch {
+      case e: ExecutionException ⇒
+        e.getCause match {
+          case io: IOException ⇒ throw io
+          case cause           ⇒ throw new IOException("Error while compressing a block", cause)
+        }
+      case e: InterruptedException ⇒ throw new IOException("Interrupted while compressing a block", e)
+    }
+
+  private def writeInt(i: Int) = {
+    out.write(i & 0xFF)
+    out.write((i >> 8) & 0xFF)
+    out.write((i >> 16) & 0xFF)
+    out.write((i >> 24) & 0xFF)
+  }
+
+}
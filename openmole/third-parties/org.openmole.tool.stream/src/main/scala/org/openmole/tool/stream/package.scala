@@ -68,6 +68,8 @@ package object stream {
     }
 
     def toGZ = new GZIPOutputStream(os)
+    def toParallelGZ = new ParallelGZIPOutputStream(os)
+    def toBlockGZ = new BlockGZIPOutputStream(os)
 
     def append(content: String) = new PrintWriter(os).append(content).flush
 
@@ -97,6 +99,7 @@ package object stream {
     def toGZiped = new GZipedInputStream(is)
 
     def toGZ = new GZIPInputStream(is)
+    def toParallelGZ = new ParallelGZIPInputStream(is)
 
     // this one must have REPLACE_EXISTING enabled but does not support COPY_ATTRIBUTES, nor NOFOLLOW_LINKS
     def copy(file: File, replace: Boolean = true) =
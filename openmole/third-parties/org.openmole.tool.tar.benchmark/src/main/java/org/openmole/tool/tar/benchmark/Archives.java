@@ -0,0 +1,110 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.openmole.tool.tar.TarEntry;
+import org.openmole.tool.tar.TarOutputStream;
+
+/**
+ * Synthetic data for the benchmarks. The content is half random and half
+ * repeated so that it compresses about as well as usual result files.
+ */
+class Archives {
+
+	/**
+	 * A small-file layout (many entries) or a huge-file layout (few large
+	 * entries) of about the same total size.
+	 */
+	enum Layout {
+		small(16 * 1024, 1024), huge(2, 32 * 1024 * 1024);
+
+		final int entries;
+		final int entrySize;
+
+		Layout(int entries, int entrySize) {
+			this.entries = entries;
+			this.entrySize = entrySize;
+		}
+	}
+
+	static byte[] content(int size, long seed) {
+		byte[] content = new byte[size];
+		Random random = new Random(seed);
+		for (int i = 0; i < size; i += 64) {
+			int end = Math.min(i + 64, size);
+			if (random.nextBoolean()) {
+				for (int j = i; j < end; j++) {
+					content[j] = (byte) random.nextInt(256);
+				}
+			} else {
+				for (int j = i; j < end; j++) {
+					content[j] = (byte) ('a' + j % 16);
+				}
+			}
+		}
+		return content;
+	}
+
+	static String name(int i) {
+		return "dir" + (i % 100) + "/file" + i;
+	}
+
+	static void write(TarOutputStream tos, int entries, byte[] content)
+			throws IOException {
+		for (int i = 0; i < entries; i++) {
+			TarEntry entry = new TarEntry(name(i));
+			entry.setSize(content.length);
+			tos.putNextEntry(entry);
+			tos.write(content);
+			tos.closeEntry();
+		}
+	}
+
+	static byte[] archive(int entries, int entrySize) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		TarOutputStream tos = new TarOutputStream(os);
+		write(tos, entries, content(entrySize, 42));
+		tos.close();
+		return os.toByteArray();
+	}
+
+	static File archiveFile(int entries, int entrySize) throws IOException {
+		File file = File.createTempFile("benchmark", ".tar");
+		file.deleteOnExit();
+		Files.write(file.toPath(), archive(entries, entrySize));
+		return file;
+	}
+
+	static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+
+	/**
+	 * An output stream discarding what is written to it.
+	 */
+	static class NullOutputStream extends OutputStream {
+		long written = 0;
+
+		@Override
+		public void write(int b) {
+			written++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			written += len;
+		}
+	}
+
+}
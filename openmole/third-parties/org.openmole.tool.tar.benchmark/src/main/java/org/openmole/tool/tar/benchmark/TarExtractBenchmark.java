@@ -0,0 +1,65 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracts an archive file to disk through the Scala extract helper of the
+ * tar package, overwriting the previous extraction.
+ * 
+ * <pre>
+ * sbt "org-openmole-tool-tar-benchmark/jmh:run -prof gc TarExtractBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarExtractBenchmark {
+
+	@Param({ "small", "huge" })
+	public String layout;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File archiveFile;
+	private File destination;
+
+	@Setup
+	public void setup() throws IOException {
+		Archives.Layout l = Archives.Layout.valueOf(layout);
+		this.archiveFile = Archives.archiveFile(l.entries, l.entrySize);
+		this.destination = Files.createTempDirectory("benchmark").toFile();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Archives.delete(destination);
+	}
+
+	@Benchmark
+	public void extract() {
+		// The decorators of the tar package object, the Java name of which is package$
+		org.openmole.tool.tar.package$.MODULE$.FileTarArchiveDecorator(archiveFile)
+				.extract(destination, true, threads);
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmole.tool.tar.InvalidHeaderException;
+import org.openmole.tool.tar.TarConstants;
+import org.openmole.tool.tar.TarEntry;
+
+/**
+ * Encodes and decodes a single tar header record.
+ * 
+ * <pre>
+ * sbt "org-openmole-tool-tar-benchmark/jmh:run -prof gc TarHeaderBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarHeaderBenchmark {
+
+	private TarEntry entry;
+	private byte[] header;
+	private byte[] outBuffer;
+
+	@Setup
+	public void setup() throws InvalidHeaderException {
+		this.entry = new TarEntry("some/directory/of/results/result-file-42.csv");
+		this.entry.setSize(123456789L);
+		this.entry.setMode(0644);
+		this.header = new byte[TarConstants.DEFAULT_RCDSIZE];
+		this.entry.writeEntryHeader(this.header);
+		this.outBuffer = new byte[TarConstants.DEFAULT_RCDSIZE];
+	}
+
+	@Benchmark
+	public TarEntry parseTarHeader() throws InvalidHeaderException {
+		return new TarEntry(header);
+	}
+
+	@Benchmark
+	public byte[] writeEntryHeader() throws InvalidHeaderException {
+		entry.writeEntryHeader(outBuffer);
+		return outBuffer;
+	}
+
+}
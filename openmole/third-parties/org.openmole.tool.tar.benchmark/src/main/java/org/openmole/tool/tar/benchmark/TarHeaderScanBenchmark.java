@@ -0,0 +1,79 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmole.tool.tar.TarEntry;
+import org.openmole.tool.tar.TarFile;
+import org.openmole.tool.tar.TarInputStream;
+
+/**
+ * Lists the entries of an archive of 100k small entries without reading their
+ * data, with TarInputStream.getNextEntry() on an in-memory archive and with a
+ * TarFile on a file.
+ * 
+ * <pre>
+ * sbt "org-openmole-tool-tar-benchmark/jmh:run -prof gc TarHeaderScanBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarHeaderScanBenchmark {
+
+	@Param({ "100000" })
+	public int entries;
+
+	@Param({ "100" })
+	public int entrySize;
+
+	private byte[] archive;
+	private File archiveFile;
+
+	@Setup
+	public void setup() throws IOException {
+		this.archive = Archives.archive(entries, entrySize);
+		this.archiveFile = Archives.archiveFile(entries, entrySize);
+	}
+
+	@Benchmark
+	public void tarInputStream(Blackhole bh) throws IOException {
+		TarInputStream tis = new TarInputStream(new ByteArrayInputStream(archive));
+		try {
+			TarEntry entry;
+			while ((entry = tis.getNextEntry()) != null) {
+				bh.consume(entry);
+			}
+		} finally {
+			tis.close();
+		}
+	}
+
+	@Benchmark
+	public void tarFile(Blackhole bh) throws IOException {
+		TarFile tarFile = new TarFile(archiveFile);
+		try {
+			bh.consume(tarFile.getEntries());
+		} finally {
+			tarFile.close();
+		}
+	}
+
+}
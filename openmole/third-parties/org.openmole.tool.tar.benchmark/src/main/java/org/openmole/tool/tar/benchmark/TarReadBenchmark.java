@@ -0,0 +1,87 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmole.tool.tar.TarEntry;
+import org.openmole.tool.tar.TarInputStream;
+import org.openmole.tool.tar.TarOutputStream;
+
+/**
+ * Reads the entry data of an in-memory archive through
+ * TarInputStream.read(byte[], int, int).
+ *
+ * Run with the GC profiler to get the allocation per read archive, for
+ * instance:
+ *
+ * <pre>
+ * sbt "org-openmole-tool-tar-benchmark/jmh:run -prof gc TarReadBenchmark"
+ * </pre>
+ *
+ * The archive is 64 MB, so gc.alloc.rate.norm times 16 is the allocation per
+ * GB read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarReadBenchmark {
+
+	private static final int ARCHIVE_SIZE = 64 * 1024 * 1024;
+
+	@Param({ "1000", "32768" })
+	public int readSize;
+
+	private byte[] archive;
+	private byte[] readBuffer;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] content = new byte[ARCHIVE_SIZE];
+		new Random(42).nextBytes(content);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream(ARCHIVE_SIZE + 4096);
+		TarOutputStream tos = new TarOutputStream(os);
+		TarEntry entry = new TarEntry("content");
+		entry.setSize(content.length);
+		tos.putNextEntry(entry);
+		tos.write(content);
+		tos.closeEntry();
+		tos.close();
+
+		this.archive = os.toByteArray();
+		this.readBuffer = new byte[readSize];
+	}
+
+	@Benchmark
+	public void readEntry(Blackhole bh) throws IOException {
+		TarInputStream tis = new TarInputStream(new ByteArrayInputStream(archive));
+		try {
+			tis.getNextEntry();
+			int read;
+			while ((read = tis.read(readBuffer, 0, readBuffer.length)) != -1) {
+				bh.consume(read);
+			}
+		} finally {
+			tis.close();
+		}
+	}
+
+}
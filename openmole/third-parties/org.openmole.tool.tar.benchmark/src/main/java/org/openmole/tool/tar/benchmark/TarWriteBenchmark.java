@@ -0,0 +1,87 @@
+package org.openmole.tool.tar.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmole.tool.stream.ParallelGZIPOutputStream;
+import org.openmole.tool.stream.ParallelGZIPOutputStream$;
+import org.openmole.tool.tar.TarConstants;
+import org.openmole.tool.tar.TarOutputStream;
+
+/**
+ * Writes an archive of 16 MB with TarOutputStream, either many 1 KB entries or
+ * two 32 MB entries, to a plain, gzip or parallel gzip output discarding the
+ * bytes.
+ * 
+ * <pre>
+ * sbt "org-openmole-tool-tar-benchmark/jmh:run -prof gc TarWriteBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TarWriteBenchmark {
+
+	@Param({ "small", "huge" })
+	public String layout;
+
+	@Param({ "plain", "gzip", "parallelGzip" })
+	public String output;
+
+	@Param({ "false", "true" })
+	public boolean async;
+
+	private int entries;
+	private byte[] content;
+
+	@Setup
+	public void setup() {
+		Archives.Layout l = Archives.Layout.valueOf(layout);
+		this.entries = l.entries;
+		this.content = Archives.content(l.entrySize, 42);
+	}
+
+	private OutputStream open(OutputStream os) throws IOException {
+		if (output.equals("gzip")) {
+			return new GZIPOutputStream(os);
+		} else if (output.equals("parallelGzip")) {
+			ParallelGZIPOutputStream$ defaults = ParallelGZIPOutputStream$.MODULE$;
+			return new ParallelGZIPOutputStream(os, defaults.defaultThreads(),
+					defaults.DefaultBlockSize(), Deflater.DEFAULT_COMPRESSION,
+					defaults.executor());
+		} else {
+			return os;
+		}
+	}
+
+	@Benchmark
+	public long write() throws IOException {
+		Archives.NullOutputStream os = new Archives.NullOutputStream();
+		TarOutputStream tos = new TarOutputStream(open(os), TarConstants.DEFAULT_BLKSIZE,
+				TarConstants.DEFAULT_RCDSIZE, async);
+		try {
+			Archives.write(tos, entries, content);
+		} finally {
+			tos.close();
+		}
+		return os.written;
+	}
+
+}
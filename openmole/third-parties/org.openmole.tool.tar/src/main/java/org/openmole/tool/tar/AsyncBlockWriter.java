@@ -0,0 +1,152 @@
+package org.openmole.tool.tar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the blocks of a TarBuffer in the background, so that the next block
+ * is filled while the previous ones are written to a slow stream (a
+ * compressor, a network connection). The blocks come from a small ring: when
+ * all of them wait to be written, the producer waits for one to be free.
+ * <p>
+ * The blocks are written in order by a single task, started on a shared pool
+ * when blocks are queued and ended when the queue is empty, so an abandoned
+ * writer does not hold a thread. A write error is reported by the next call
+ * to write() or await(), the blocks queued after it are dropped.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+class AsyncBlockWriter {
+
+	/** Default number of blocks of the ring, including the block being filled. */
+	public static final int DEFAULT_BLOCKS = 4;
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "tar writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** A block queued to be written, its first length bytes. */
+	private static final class Block {
+		final byte[] data;
+		final int length;
+
+		Block(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	private final OutputStream out;
+
+	private final ArrayBlockingQueue<byte[]> free;
+	private final ArrayDeque<Block> queued = new ArrayDeque<Block>();
+	private boolean running = false;
+	private volatile Throwable error = null;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param blocks
+	 *            The number of blocks of the ring, at least 2.
+	 */
+	AsyncBlockWriter(OutputStream out, int blockSize, int blocks) {
+		if (blocks < 2) {
+			throw new IllegalArgumentException("an asynchronous writer needs at least 2 blocks, not " + blocks);
+		}
+
+		this.out = out;
+		this.free = new ArrayBlockingQueue<byte[]>(blocks);
+		for (int i = 1; i < blocks; i++) {
+			this.free.add(new byte[blockSize]);
+		}
+	}
+
+	/**
+	 * Queue the first length bytes of a block to be written.
+	 *
+	 * @return A free block to fill next.
+	 */
+	byte[] write(byte[] block, int length) throws IOException {
+		checkError();
+
+		synchronized (this) {
+			this.queued.add(new Block(block, length));
+			if (!this.running) {
+				this.running = true;
+				executor.execute(this.drain);
+			}
+		}
+
+		try {
+			return this.free.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while waiting for a tar block to be written");
+		}
+	}
+
+	/**
+	 * Wait until the queued blocks are written.
+	 */
+	void await() throws IOException {
+		synchronized (this) {
+			while (this.running) {
+				try {
+					this.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("interrupted while waiting for the tar blocks to be written");
+				}
+			}
+		}
+
+		checkError();
+	}
+
+	private void checkError() throws IOException {
+		Throwable t = this.error;
+		if (t != null) {
+			throw new IOException("error while writing a tar block", t);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Block block;
+			synchronized (this) {
+				block = this.queued.poll();
+				if (block == null) {
+					this.running = false;
+					this.notifyAll();
+					return;
+				}
+			}
+
+			try {
+				if (this.error == null) {
+					this.out.write(block.data, 0, block.length);
+					this.out.flush();
+				}
+			} catch (Throwable t) {
+				this.error = t;
+			} finally {
+				this.free.add(block.data);
+			}
+		}
+	}
+
+}
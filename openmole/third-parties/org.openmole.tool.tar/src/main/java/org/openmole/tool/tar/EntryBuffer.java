@@ -0,0 +1,156 @@
+package org.openmole.tool.tar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Buffers the content of an entry whose size is not known in advance. The
+ * content is kept in memory up to a threshold, beyond it the content is
+ * spilled to a temporary file and the memory buffer is only used to batch the
+ * writes to the file, so that the memory used is bounded whatever the size of
+ * the entry.
+ * <p>
+ * The buffer is reused from entry to entry: the memory buffer is kept and the
+ * temporary file is deleted by reset.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+class EntryBuffer extends OutputStream {
+
+	/** Default size above which an entry is spilled to disk. */
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	private final int threshold;
+	private final File directory;
+
+	private byte[] buffer;
+	private int count;
+	private long size;
+
+	private File spillFile;
+	private FileChannel spill;
+
+	/**
+	 * @param threshold
+	 *            The size above which the content is spilled to disk.
+	 * @param directory
+	 *            The directory of the temporary files, null for the default
+	 *            temporary directory.
+	 */
+	EntryBuffer(int threshold, File directory) {
+		this.threshold = threshold;
+		this.directory = directory;
+		this.buffer = new byte[Math.min(INITIAL_SIZE, threshold)];
+	}
+
+	/**
+	 * @return The size of the buffered content.
+	 */
+	long size() {
+		return this.size;
+	}
+
+	/**
+	 * @return true if the content has been spilled to disk.
+	 */
+	boolean isSpilled() {
+		return this.spill != null;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureRoom(1);
+		this.buffer[this.count++] = (byte) b;
+		this.size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = ensureRoom(len);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			this.size += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Make room in the memory buffer, growing it up to the threshold, then
+	 * spilling it to disk.
+	 *
+	 * @return The number of bytes, at most wanted, which can be written in the
+	 *         buffer.
+	 */
+	private int ensureRoom(int wanted) throws IOException {
+		if (this.count == this.buffer.length) {
+			if (this.buffer.length < this.threshold) {
+				int length = (int) Math.min(this.threshold, Math.max(2L * this.buffer.length, this.count + (long) wanted));
+				this.buffer = Arrays.copyOf(this.buffer, length);
+			} else {
+				flushToSpill();
+			}
+		}
+		return Math.min(wanted, this.buffer.length - this.count);
+	}
+
+	private void flushToSpill() throws IOException {
+		if (this.spill == null) {
+			this.spillFile = File.createTempFile("tarentry", ".tmp", this.directory);
+			this.spill = FileChannel.open(this.spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		ByteBuffer data = ByteBuffer.wrap(this.buffer, 0, this.count);
+		while (data.hasRemaining()) {
+			this.spill.write(data);
+		}
+		this.count = 0;
+	}
+
+	/**
+	 * Write the buffered content to the current entry of a tar stream. A
+	 * spilled content is written from the temporary file with
+	 * TarOutputStream.write(FileChannel...), which transfers the whole records
+	 * from the file.
+	 */
+	void writeTo(TarOutputStream out) throws IOException {
+		if (this.spill != null) {
+			flushToSpill();
+			out.write(this.spill, 0, this.size);
+		} else {
+			out.write(this.buffer, 0, this.count);
+		}
+	}
+
+	/**
+	 * Empty the buffer for the next entry, the temporary file is deleted.
+	 */
+	void reset() throws IOException {
+		this.count = 0;
+		this.size = 0;
+		if (this.spill != null) {
+			try {
+				this.spill.close();
+			} finally {
+				Files.deleteIfExists(this.spillFile.toPath());
+				this.spill = null;
+				this.spillFile = null;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reset();
+	}
+
+}
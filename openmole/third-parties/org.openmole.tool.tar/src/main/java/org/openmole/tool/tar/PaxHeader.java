@@ -0,0 +1,377 @@
+package org.openmole.tool.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reading and writing of POSIX (pax) extended headers.
+ * <p>
+ * An extended header is an entry of type 'x' (or 'g' for a global header)
+ * whose data is a list of "length key=value\n" records, the values being
+ * UTF-8 strings. The records of an 'x' header override the fields of the
+ * entry that follows it, which lifts the limits of the ustar header: names
+ * and link names of any length in UTF-8, sizes, times and ids that do not fit
+ * in the octal fields, and sub-second modification times.
+ * <p>
+ * Records with other keys are kept in TarEntry.getExtendedHeaders(), and the
+ * ones set with TarEntry.setExtendedHeader() are written with the entry.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+public class PaxHeader {
+
+	public static final String PATH = "path";
+	public static final String LINKPATH = "linkpath";
+	public static final String SIZE = "size";
+	public static final String MTIME = "mtime";
+	public static final String UID = "uid";
+	public static final String GID = "gid";
+	public static final String UNAME = "uname";
+	public static final String GNAME = "gname";
+
+	/**
+	 * The CRC32 of the data of an entry, 8 hexadecimal digits, checked by
+	 * TarInputStream while the data is read (see TarEntry.setChecksum). GNU
+	 * tar ignores it with an "unknown extended header keyword" warning.
+	 */
+	public static final String CHECKSUM = "OPENMOLE.crc32";
+
+	/** The prefix of the GNU sparse file records, see SparseMap. */
+	static final String SPARSE_PREFIX = "GNU.sparse.";
+
+	/** The directory in which the extended header entries are named. */
+	public static final String HEADER_DIRECTORY = "PaxHeaders/";
+
+	private PaxHeader() {
+	}
+
+	/**
+	 * Compute the extended header records to write before an entry: the
+	 * fields that do not fit in the entry header and the custom records of
+	 * the entry.
+	 *
+	 * @param entry
+	 *            The entry to be written.
+	 * @return The records, or null if the header is enough.
+	 */
+	public static Map<String, String> records(TarEntry entry) {
+		if (entry.getTarFormat() == TarEntry.UNIX_FORMAT) {
+			return null;
+		}
+
+		Map<String, String> records = null;
+
+		if (needsPath(entry)) {
+			records = put(records, PATH, entry.getName());
+		}
+
+		String linkName = entry.getLinkName();
+		if (!TarFileUtil.isASCII(linkName) || linkName.length() >= TarConstants.NAMELEN) {
+			records = put(records, LINKPATH, linkName);
+		}
+
+		// The GNU format stores the large sizes in base-256
+		if (entry.getTarFormat() != TarEntry.GNU_FORMAT
+				&& entry.getSize() > TarConstants.MAX_OCTAL_SIZE) {
+			records = put(records, SIZE, Long.toString(entry.getSize()));
+		}
+
+		if (entry.getModTimeNanos() != 0 || entry.getModTimeSeconds() < 0
+				|| entry.getModTimeSeconds() > TarConstants.MAX_OCTAL_SIZE) {
+			records = put(records, MTIME, formatTime(entry.getModTimeSeconds(), entry.getModTimeNanos()));
+		}
+
+		if (!fitsId(entry.getUserId())) {
+			records = put(records, UID, Long.toString(entry.getUserId() & 0xFFFFFFFFL));
+		}
+
+		if (!fitsId(entry.getGroupId())) {
+			records = put(records, GID, Long.toString(entry.getGroupId() & 0xFFFFFFFFL));
+		}
+
+		if (!fitsUserName(entry.getUserName())) {
+			records = put(records, UNAME, entry.getUserName());
+		}
+
+		if (!fitsUserName(entry.getGroupName())) {
+			records = put(records, GNAME, entry.getGroupName());
+		}
+
+		for (Map.Entry<String, String> r : entry.getExtendedHeaders().entrySet()) {
+			records = put(records, r.getKey(), r.getValue());
+		}
+
+		return records;
+	}
+
+	/**
+	 * @return true if the name of the entry has to be written in an extended
+	 *         header: it is not ASCII or it does not fit in the name fields.
+	 */
+	static boolean needsPath(TarEntry entry) {
+		String name = entry.getName();
+		if (entry.getTarFormat() == TarEntry.UNIX_FORMAT) {
+			return false;
+		}
+
+		if (!TarFileUtil.isASCII(name)) {
+			return true;
+		}
+
+		if (entry.getTarFormat() == TarEntry.GNU_FORMAT) {
+			return name.length() >= TarConstants.NAMELEN;
+		}
+
+		// ustar: the name is split on a '/' between the prefix and name fields
+		if (name.length() <= TarConstants.NAMELEN) {
+			return false;
+		}
+
+		int index = name.indexOf('/', name.length() - TarConstants.NAMELEN);
+		return index == -1 || index > TarConstants.PREFIXLEN;
+	}
+
+	static boolean fitsId(int id) {
+		return id >= 0 && id <= TarConstants.MAX_OCTAL_ID;
+	}
+
+	private static boolean fitsUserName(String name) {
+		return name.length() <= TarEntry.MAX_NAMELEN && TarFileUtil.isASCII(name);
+	}
+
+	private static Map<String, String> put(Map<String, String> records, String key, String value) {
+		if (records == null) {
+			records = new LinkedHashMap<String, String>();
+		}
+		records.put(key, value);
+		return records;
+	}
+
+	/**
+	 * Get the name of the extended header entry of a file: the file name in
+	 * the PaxHeaders directory, restricted to ASCII so that the header entry
+	 * does not need an extended header itself.
+	 */
+	public static String headerName(String name) {
+		String fileName = name;
+		while (fileName.endsWith("/")) {
+			fileName = fileName.substring(0, fileName.length() - 1);
+		}
+		fileName = fileName.substring(fileName.lastIndexOf('/') + 1);
+
+		StringBuilder result = new StringBuilder(TarConstants.NAMELEN);
+		result.append(HEADER_DIRECTORY);
+
+		int fileNameLen = fileName.length();
+		for (int i = 0; i < fileNameLen && result.length() < TarConstants.NAMELEN - 1; ++i) {
+			char c = fileName.charAt(i);
+			result.append(c < 0x80 ? c : '_');
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * Format records as the data of an extended header entry.
+	 */
+	public static byte[] format(Map<String, String> records) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(TarConstants.DEFAULT_RCDSIZE);
+
+		for (Map.Entry<String, String> r : records.entrySet()) {
+			byte[] record = (" " + r.getKey() + "=" + r.getValue() + "\n").getBytes(StandardCharsets.UTF_8);
+
+			// The length includes the digits of the length itself
+			int length = record.length;
+			int digits = Integer.toString(length).length();
+			while (Integer.toString(length + digits).length() != digits) {
+				digits++;
+			}
+
+			byte[] prefix = Integer.toString(length + digits).getBytes(StandardCharsets.US_ASCII);
+			result.write(prefix, 0, prefix.length);
+			result.write(record, 0, record.length);
+		}
+
+		return result.toByteArray();
+	}
+
+	/**
+	 * Parse the records of an extended header entry data.
+	 *
+	 * @param into
+	 *            The map to put the records into, an empty value deletes the
+	 *            record.
+	 */
+	public static void parse(byte[] data, int offset, int length, Map<String, String> into)
+			throws InvalidHeaderException {
+		int position = offset;
+		int end = offset + length;
+
+		while (position < end && data[position] != 0) {
+			int recordLength = 0;
+			int i = position;
+			while (i < end && data[i] >= '0' && data[i] <= '9') {
+				recordLength = recordLength * 10 + (data[i] - '0');
+				i++;
+			}
+
+			int recordEnd = position + recordLength;
+			if (i == position || i >= end || data[i] != ' ' || recordEnd > end
+					|| recordLength < 5 || data[recordEnd - 1] != '\n') {
+				throw new InvalidHeaderException("malformed extended header record at offset "
+						+ (position - offset));
+			}
+
+			int keyStart = i + 1;
+			int equal = keyStart;
+			while (equal < recordEnd && data[equal] != '=') {
+				equal++;
+			}
+
+			if (equal == recordEnd) {
+				throw new InvalidHeaderException("malformed extended header record at offset "
+						+ (position - offset));
+			}
+
+			String key = new String(data, keyStart, equal - keyStart, StandardCharsets.UTF_8);
+			String value = new String(data, equal + 1, recordEnd - 1 - (equal + 1), StandardCharsets.UTF_8);
+
+			if (value.isEmpty()) {
+				into.remove(key);
+			} else {
+				into.put(key, value);
+			}
+
+			position = recordEnd;
+		}
+	}
+
+	/**
+	 * Apply records to an entry read from an archive. The records which do
+	 * not correspond to a header field are kept as the entry's extended
+	 * headers.
+	 */
+	public static void apply(TarEntry entry, Map<String, String> records)
+			throws InvalidHeaderException {
+
+		for (Map.Entry<String, String> r : records.entrySet()) {
+			String key = r.getKey();
+			String value = r.getValue();
+
+			try {
+				if (key.startsWith(SPARSE_PREFIX)) {
+					// Applied once the size is known
+					continue;
+				} else if (PATH.equals(key)) {
+					entry.setName(value);
+				} else if (LINKPATH.equals(key)) {
+					entry.setLinkName(value);
+				} else if (SIZE.equals(key)) {
+					entry.setSize(Long.parseLong(value));
+				} else if (MTIME.equals(key)) {
+					entry.setLastModifiedTime(parseTime(value));
+				} else if (UID.equals(key)) {
+					entry.setUserId((int) Long.parseLong(value));
+				} else if (GID.equals(key)) {
+					entry.setGroupId((int) Long.parseLong(value));
+				} else if (UNAME.equals(key)) {
+					entry.setUserName(value);
+				} else if (GNAME.equals(key)) {
+					entry.setGroupName(value);
+				} else {
+					entry.setExtendedHeader(key, value);
+				}
+			} catch (NumberFormatException ex) {
+				throw new InvalidHeaderException("bad value for extended header record "
+						+ key + ": " + value);
+			} catch (ArithmeticException ex) {
+				throw new InvalidHeaderException("bad value for extended header record "
+						+ key + ": " + value);
+			}
+		}
+
+		applySparse(entry, records);
+	}
+
+	/**
+	 * Apply the GNU sparse records, of the format 1.0 where the segment list
+	 * is at the start of the entry data, or 0.1 where it is in the records.
+	 */
+	private static void applySparse(TarEntry entry, Map<String, String> records)
+			throws InvalidHeaderException {
+		String major = records.get(SparseMap.MAJOR);
+		String map = records.get(SparseMap.MAP);
+		if ((major == null && map == null) || entry.isSparse()) {
+			return;
+		}
+
+		String name = records.get(SparseMap.NAME);
+		String realSize = records.get(major != null ? SparseMap.REALSIZE : SparseMap.SIZE);
+
+		if (major != null && !("1".equals(major) && "0".equals(records.get(SparseMap.MINOR)))) {
+			throw new InvalidHeaderException("unsupported sparse format " + major + "."
+					+ records.get(SparseMap.MINOR) + " for entry '" + entry.getName() + "'");
+		}
+
+		if (realSize == null) {
+			throw new InvalidHeaderException("no real size for sparse entry '"
+					+ entry.getName() + "'");
+		}
+
+		try {
+			entry.setSparse(Long.parseLong(realSize));
+		} catch (NumberFormatException ex) {
+			throw new InvalidHeaderException("bad value for extended header record "
+					+ SparseMap.REALSIZE + ": " + realSize);
+		}
+
+		if (name != null) {
+			entry.setName(name);
+		}
+
+		if (major == null) {
+			long[] segments = SparseMap.parse(map);
+			SparseMap.check(segments, entry.getSize());
+			entry.setSparseMap(segments);
+		}
+	}
+
+	/**
+	 * Format a time as decimal seconds, with the nanoseconds if there are
+	 * some.
+	 */
+	static String formatTime(long seconds, int nanos) {
+		if (nanos == 0) {
+			return Long.toString(seconds);
+		}
+		return BigDecimal.valueOf(seconds).add(BigDecimal.valueOf(nanos, 9))
+				.stripTrailingZeros().toPlainString();
+	}
+
+	static long parseChecksum(String value) throws InvalidHeaderException {
+		try {
+			long crc = Long.parseLong(value, 16);
+			if (crc < 0 || crc > 0xFFFFFFFFL) {
+				throw new NumberFormatException();
+			}
+			return crc;
+		} catch (NumberFormatException ex) {
+			throw new InvalidHeaderException("bad value for extended header record "
+					+ CHECKSUM + ": " + value);
+		}
+	}
+
+	static FileTime parseTime(String value) {
+		BigDecimal time = new BigDecimal(value);
+		BigDecimal seconds = time.setScale(0, RoundingMode.FLOOR);
+		int nanos = time.subtract(seconds).movePointRight(9).intValue();
+		return FileTime.from(Instant.ofEpochSecond(seconds.longValueExact(), nanos));
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.openmole.tool.tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the content of a sparse file from the data of its segments: the
+ * holes between the segments are read as zeros.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+class SparseInputStream extends InputStream {
+
+	private final InputStream data;
+	private final long[] map;
+	private final long size;
+	private long position;
+	private int segment;
+	private final byte[] oneBuf = new byte[1];
+
+	/**
+	 * @param data
+	 *            The data of the segments, one after the other.
+	 * @param map
+	 *            The (offset, length) pairs of the segments.
+	 * @param size
+	 *            The real size of the file.
+	 */
+	SparseInputStream(InputStream data, long[] map, long size) {
+		this.data = data;
+		this.map = map;
+		this.size = size;
+	}
+
+	@Override
+	public int available() {
+		long remaining = this.size - this.position;
+		return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int num = this.read(this.oneBuf, 0, 1);
+		return num == -1 ? -1 : this.oneBuf[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buf, int offset, int numToRead) throws IOException {
+		if (this.position >= this.size) {
+			return -1;
+		}
+
+		if (numToRead == 0) {
+			return 0;
+		}
+
+		this.nextSegment();
+
+		if (this.inSegment()) {
+			long end = this.map[this.segment] + this.map[this.segment + 1];
+			int sz = (int) Math.min(numToRead, end - this.position);
+			int read = this.data.read(buf, offset, sz);
+			if (read == -1) {
+				throw new IOException("unexpected EOF in the data of a sparse file at offset "
+						+ this.position);
+			}
+			this.position += read;
+			return read;
+		} else {
+			int sz = (int) Math.min(numToRead, this.holeEnd() - this.position);
+			for (int i = 0; i < sz; i++) {
+				buf[offset + i] = 0;
+			}
+			this.position += sz;
+			return sz;
+		}
+	}
+
+	@Override
+	public long skip(long numToSkip) throws IOException {
+		long target = Math.min(this.size, this.position + Math.max(numToSkip, 0));
+		long start = this.position;
+
+		while (this.position < target) {
+			this.nextSegment();
+
+			if (this.inSegment()) {
+				long end = Math.min(target, this.map[this.segment] + this.map[this.segment + 1]);
+				long left = end - this.position;
+				while (left > 0) {
+					long skipped = this.data.skip(left);
+					if (skipped <= 0) {
+						if (this.data.read() == -1) {
+							throw new IOException("unexpected EOF in the data of a sparse file at offset "
+									+ (end - left));
+						}
+						skipped = 1;
+					}
+					left -= skipped;
+				}
+				this.position = end;
+			} else {
+				this.position = Math.min(target, this.holeEnd());
+			}
+		}
+
+		return this.position - start;
+	}
+
+	private void nextSegment() {
+		while (this.segment < this.map.length
+				&& this.position >= this.map[this.segment] + this.map[this.segment + 1]) {
+			this.segment += 2;
+		}
+	}
+
+	private boolean inSegment() {
+		return this.segment < this.map.length && this.position >= this.map[this.segment];
+	}
+
+	private long holeEnd() {
+		return this.segment < this.map.length ? this.map[this.segment] : this.size;
+	}
+
+}
@@ -0,0 +1,306 @@
+package org.openmole.tool.tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Support of sparse files. A sparse file is archived as the list of its data
+ * segments, (offset, length) pairs, and the data of these segments, the holes
+ * between the segments are not stored.
+ * <p>
+ * The entries are written in the GNU pax sparse format 1.0, which GNU tar and
+ * bsdtar extract: the pax header holds the real name and size of the file and
+ * the entry data starts with the segment list, as decimal numbers, padded to
+ * a record. The pax format 0.1, where the list is in the pax header, is read
+ * as well.
+ * <p>
+ * Java does not expose SEEK_DATA/SEEK_HOLE, the holes are found by scanning
+ * the file for zero blocks. Reading a hole does not read the disk, but the
+ * scan is only done for the large files in which a few probes find zero
+ * blocks, so that dense files are not read twice.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+public class SparseMap {
+
+	public static final String MAJOR = "GNU.sparse.major";
+	public static final String MINOR = "GNU.sparse.minor";
+	public static final String NAME = "GNU.sparse.name";
+	public static final String REALSIZE = "GNU.sparse.realsize";
+	/** Real size in the format 0.1 */
+	public static final String SIZE = "GNU.sparse.size";
+	/** Segment list in the format 0.1 */
+	public static final String MAP = "GNU.sparse.map";
+
+	/** Smaller files are always archived as dense files. */
+	public static final long MINIMUM_SIZE = 1024 * 1024;
+
+	/** Shorter runs of zeros are archived as data. */
+	public static final int HOLE_SIZE = 64 * 1024;
+
+	private static final int BLOCK_SIZE = 4096;
+	private static final int PROBES = 16;
+	private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+	private SparseMap() {
+	}
+
+	/**
+	 * Find the data segments of a file.
+	 *
+	 * @param channel
+	 *            A channel on the file, read with positional reads.
+	 * @param size
+	 *            The size of the file.
+	 * @return The (offset, length) pairs of the data segments, or null if the
+	 *         file should be archived as a dense file.
+	 */
+	public static long[] find(FileChannel channel, long size) throws IOException {
+		if (size < MINIMUM_SIZE || !probe(channel, size)) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long[] segments = new long[16];
+		int length = 0;
+
+		long dataStart = 0;
+		long zeroStart = -1;
+		long position = 0;
+
+		while (position < size) {
+			// the Buffer methods, as ByteBuffer overrides them from Java 9 on
+			((Buffer) buffer).clear();
+			((Buffer) buffer).limit((int) Math.min(SCAN_BUFFER_SIZE, size - position));
+			readFully(channel, buffer, position);
+
+			for (int block = 0; block < buffer.limit(); block += BLOCK_SIZE) {
+				int blockLength = Math.min(BLOCK_SIZE, buffer.limit() - block);
+				long blockPosition = position + block;
+
+				if (isZero(buffer, block, blockLength)) {
+					if (zeroStart < 0) {
+						zeroStart = blockPosition;
+					}
+				} else {
+					if (zeroStart >= 0 && blockPosition - zeroStart >= HOLE_SIZE) {
+						if (zeroStart > dataStart) {
+							segments = add(segments, length, dataStart, zeroStart - dataStart);
+							length += 2;
+						}
+						dataStart = blockPosition;
+					}
+					zeroStart = -1;
+				}
+			}
+
+			position += buffer.limit();
+		}
+
+		long dataEnd = zeroStart >= 0 && size - zeroStart >= HOLE_SIZE ? zeroStart : size;
+
+		if (length == 0 && dataStart == 0 && dataEnd == size) {
+			return null;
+		}
+
+		if (dataEnd > dataStart) {
+			segments = add(segments, length, dataStart, dataEnd - dataStart);
+			length += 2;
+		}
+
+		// As GNU tar, end the list with an empty segment at the end of the
+		// file
+		segments = add(segments, length, size, 0);
+		length += 2;
+
+		return Arrays.copyOf(segments, length);
+	}
+
+	/**
+	 * Read a few blocks spread over the file.
+	 *
+	 * @return true if one of them is only zeros.
+	 */
+	private static boolean probe(FileChannel channel, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+		long step = size / PROBES;
+
+		for (int i = 0; i < PROBES; i++) {
+			long position = (step * i) / BLOCK_SIZE * BLOCK_SIZE;
+			((Buffer) buffer).clear();
+			((Buffer) buffer).limit((int) Math.min(BLOCK_SIZE, size - position));
+			readFully(channel, buffer, position);
+			if (isZero(buffer, 0, buffer.limit())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean isZero(ByteBuffer buffer, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			if (buffer.getLong(i) != 0) {
+				return false;
+			}
+		}
+		for (; i < end; i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("unexpected EOF at offset " + (position + buffer.position())
+						+ ", the file has been truncated");
+			}
+		}
+	}
+
+	private static long[] add(long[] segments, int length, long offset, long size) {
+		if (length + 2 > segments.length) {
+			segments = Arrays.copyOf(segments, segments.length * 2);
+		}
+		segments[length] = offset;
+		segments[length + 1] = size;
+		return segments;
+	}
+
+	/**
+	 * @return The size of the data of the segments.
+	 */
+	public static long dataSize(long[] map) {
+		long size = 0;
+		for (int i = 1; i < map.length; i += 2) {
+			size += map[i];
+		}
+		return size;
+	}
+
+	/**
+	 * Check that the segments are sorted, do not overlap and lie in the file.
+	 */
+	static void check(long[] map, long realSize) throws InvalidHeaderException {
+		long end = 0;
+		for (int i = 0; i + 1 < map.length; i += 2) {
+			if (map[i] < end || map[i + 1] < 0 || map[i] + map[i + 1] > realSize) {
+				throw new InvalidHeaderException("bad sparse map segment (" + map[i] + ", "
+						+ map[i + 1] + ") for a file of " + realSize + " bytes");
+			}
+			end = map[i] + map[i + 1];
+		}
+
+		if (map.length % 2 != 0) {
+			throw new InvalidHeaderException("odd number of values in a sparse map");
+		}
+	}
+
+	/**
+	 * Format a segment list as the start of the entry data in the format 1.0.
+	 *
+	 * @return The list, padded with zeros to a multiple of recordSize.
+	 */
+	public static byte[] format(long[] map, int recordSize) {
+		StringBuilder text = new StringBuilder(16 * map.length + 16);
+		text.append(map.length / 2).append('\n');
+		for (long v : map) {
+			text.append(v).append('\n');
+		}
+
+		byte[] bytes = text.toString().getBytes(StandardCharsets.US_ASCII);
+		int length = (bytes.length + recordSize - 1) / recordSize * recordSize;
+		return Arrays.copyOf(bytes, length);
+	}
+
+	/**
+	 * Read a segment list at the start of an entry data in the format 1.0.
+	 * Whole records are read, the stream is left at the start of the
+	 * segments data.
+	 */
+	public static long[] read(InputStream in, int recordSize) throws IOException {
+		byte[] record = new byte[recordSize];
+		long[] map = null;
+		int index = 0;
+		long value = 0;
+		boolean digits = false;
+
+		while (true) {
+			int read = 0;
+			while (read < recordSize) {
+				int n = in.read(record, read, recordSize - read);
+				if (n == -1) {
+					throw new IOException("unexpected EOF in a sparse map");
+				}
+				read += n;
+			}
+
+			for (int i = 0; i < recordSize; i++) {
+				byte b = record[i];
+				if (b >= '0' && b <= '9' && value < Long.MAX_VALUE / 10) {
+					value = value * 10 + (b - '0');
+					digits = true;
+				} else if (b == '\n' && digits) {
+					if (map == null) {
+						if (value > Integer.MAX_VALUE / 2) {
+							throw new InvalidHeaderException("too many segments in a sparse map: " + value);
+						}
+						map = new long[(int) value * 2];
+					} else {
+						map[index++] = value;
+					}
+
+					if (index == map.length) {
+						return map;
+					}
+
+					value = 0;
+					digits = false;
+				} else {
+					throw new InvalidHeaderException("malformed sparse map");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse a segment list of the format 0.1, "offset,length,offset,length...".
+	 */
+	static long[] parse(String map) throws InvalidHeaderException {
+		if (map.isEmpty()) {
+			return new long[0];
+		}
+
+		String[] values = map.split(",");
+		long[] result = new long[values.length];
+		try {
+			for (int i = 0; i < values.length; i++) {
+				result[i] = Long.parseLong(values[i].trim());
+			}
+		} catch (NumberFormatException ex) {
+			throw new InvalidHeaderException("malformed sparse map: " + map);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the header name of a sparse entry, as GNU tar does:
+	 * dir/GNUSparseFile.0/name. Readers which do not support sparse files
+	 * extract the raw entry there.
+	 */
+	static String headerName(String name) {
+		int slash = name.lastIndexOf('/');
+		return name.substring(0, slash + 1) + "GNUSparseFile.0/" + name.substring(slash + 1);
+	}
+
+}
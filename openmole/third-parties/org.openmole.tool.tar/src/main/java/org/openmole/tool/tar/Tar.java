@@ -5,6 +5,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
@@ -16,6 +18,10 @@ import java.util.zip.GZIPOutputStream;
 /**
  * This is a utility class which can create and extract tar or tar.gz files.
  * For tar.gz, the returned tar file would have to be run through the gzip method.
+ * <p>
+ * The archives are files, read and written by buffers of
+ * TarConstants.FILE_BUFFER_SIZE, and the entry data is copied through file
+ * channels.
  * 
  * This library is under the Apache License Version 2.0
  * 
@@ -26,7 +32,6 @@ import java.util.zip.GZIPOutputStream;
  */
 public class Tar {
 
-	private static final int BUFFER_SIZE = 1024;
 	private static final Logger logger = Logger.getLogger(Tar.class.getName());
 
 	/**
@@ -65,8 +70,10 @@ public class Tar {
 			if(ext.equalsIgnoreCase("gz") && srcFilename.contains("tar.gz")) {
 
 				fileStream = new FileInputStream(srcTarOrGzFile);
-				secondaryStream = new GZIPInputStream(fileStream);
-				tInputStream = new TarInputStream(secondaryStream);
+				secondaryStream = new GZIPInputStream(fileStream, TarConstants.FILE_BUFFER_SIZE);
+				// the gzip stream only holds the archive, it can be read ahead
+				tInputStream = new TarInputStream(secondaryStream, TarConstants.DEFAULT_BLKSIZE,
+						TarConstants.DEFAULT_RCDSIZE, TarConstants.FILE_BUFFER_SIZE);
 
 			} else if(ext.equalsIgnoreCase("tar")) {
 
@@ -100,9 +107,13 @@ public class Tar {
 					}
 
 
-					FileOutputStream fOut = new FileOutputStream(destPath); 
-					tInputStream.copyEntryContents(fOut);   
-					fOut.close();                      
+					FileChannel fOut = FileChannel.open(destPath.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					try {
+						tInputStream.copyEntryContents(fOut);
+					} finally {
+						fOut.close();
+					}
 				}
 
 				// Grab the next tarentry
@@ -220,8 +231,6 @@ public class Tar {
 
 		Queue<File> directories = new LinkedList<File>();
 
-		byte[] buf = new byte[BUFFER_SIZE];
-
 		int fListLen = fList.length;
 		File file = null;
 		for(int i = 0; i < fListLen; i++) {
@@ -272,13 +281,11 @@ public class Tar {
 
 
 						fis = new FileInputStream(file);
+						FileChannel channel = fis.getChannel();
 						TarEntry te = new TarEntry(fileAbsPath);
-						te.setSize(file.length());
+						te.setSize(channel.size());
 						destTOS.putNextEntry(te);
-						int count = 0;
-						while((count = fis.read(buf, 0, BUFFER_SIZE)) != -1) {
-							destTOS.write(buf,0,count);    
-						}
+						destTOS.write(channel, 0, channel.size());
 
 
 					} catch(IOException e) {
@@ -339,11 +346,11 @@ public class Tar {
 			throw new IOException("Source tar file does not exist.");
 		}
 
-		if(srcTarFile.getName().toLowerCase().endsWith(".tar") != false) {
+		if(srcTarFile.getName().toLowerCase().endsWith(".tar") == false) {
 			throw new IOException("Source tar file is not a tar.");
 		}
 
-		if(destTarGzFile.getName().toLowerCase().endsWith(".tar.gz") != false) {
+		if(destTarGzFile.getName().toLowerCase().endsWith(".tar.gz") == false) {
 			throw new IOException("Destination tar.gz file does not end with the proper extension.");
 		}
 
@@ -357,13 +364,13 @@ public class Tar {
 			outFile = new FileOutputStream(destTarGzFile);
 
 			// Create the GZIP output stream 
-			outGzipFile = new GZIPOutputStream(outFile);
+			outGzipFile = new GZIPOutputStream(outFile, TarConstants.FILE_BUFFER_SIZE);
 
 			// Open the input file 
 			inFile = new FileInputStream(srcTarFile); 
 
 			// Transfer bytes from the input file to the GZIP output stream 
-			byte[] buf = new byte[1024]; 
+			byte[] buf = new byte[TarConstants.FILE_BUFFER_SIZE]; 
 			int len; 
 			while ((len = inFile.read(buf)) > 0) { 
 				outGzipFile.write(buf, 0, len); 
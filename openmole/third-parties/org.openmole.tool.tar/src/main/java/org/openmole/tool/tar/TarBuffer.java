@@ -1,8 +1,16 @@
 package org.openmole.tool.tar;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,6 +22,13 @@ import java.util.logging.Logger;
  * performs is to ensure that files have the correct "block" size, or other tars
  * will complain.
  * <p>
+ * The reads and writes are done by buffers of several blocks, so that large
+ * archives take less system calls, without changing the blocking of the
+ * archive: an archive is padded to a whole block, not to a whole buffer. The
+ * buffers default to FILE_BUFFER_SIZE when the archive is a file, read or
+ * written through its channel, and to a block otherwise, since a larger read
+ * could consume data past the end of an archive in a stream.
+ * <p>
  * You should never have a need to access this class directly. TarBuffers are
  * created by Tar IO Streams.
  * 
@@ -32,14 +47,21 @@ public class TarBuffer extends Object {
 	private static final Logger logger = Logger.getLogger(TarBuffer.class.getName());
 
 	private InputStream inStream;
+	private SeekableByteChannel inChannel;
 	private OutputStream outStream;
+	private WritableByteChannel outChannel;
+	private AsyncBlockWriter asyncWriter;
 
 	private byte[] blockBuffer;
-	public int currBlkIdx;
+	/** Offset in the archive of the start of the buffer */
+	private long bufferStart;
+	/** Index of the next record in the buffer */
 	private int currRecIdx;
 	private int blockSize;
 	private int recordSize;
 	private int recsPerBlock;
+	private int bufferSize;
+	private int recsPerBuffer;
 
 	public TarBuffer(InputStream inStream) {
 		this(inStream, TarConstants.DEFAULT_BLKSIZE);
@@ -50,9 +72,44 @@ public class TarBuffer extends Object {
 	}
 
 	public TarBuffer(InputStream inStream, int blockSize, int recordSize) {
+		this(inStream, blockSize, recordSize,
+				(inStream instanceof FileInputStream) ? TarConstants.FILE_BUFFER_SIZE : blockSize);
+	}
+
+	/**
+	 * Create an input buffer reading bufferSize bytes at once, rounded up to a
+	 * whole number of blocks. The data following the archive in the stream
+	 * may be read.
+	 */
+	public TarBuffer(InputStream inStream, int blockSize, int recordSize, int bufferSize) {
 		this.inStream = inStream;
+		this.inChannel = (inStream instanceof FileInputStream) ? ((FileInputStream) inStream)
+				.getChannel() : null;
+		this.outStream = null;
+		this.initialize(blockSize, recordSize, bufferSize);
+	}
+
+	public TarBuffer(SeekableByteChannel inChannel) {
+		this(inChannel, TarConstants.DEFAULT_BLKSIZE);
+	}
+
+	public TarBuffer(SeekableByteChannel inChannel, int blockSize) {
+		this(inChannel, blockSize, TarConstants.DEFAULT_RCDSIZE);
+	}
+
+	/**
+	 * Create an input buffer reading a channel. Skipped blocks are not read,
+	 * the position of the channel is moved instead.
+	 */
+	public TarBuffer(SeekableByteChannel inChannel, int blockSize, int recordSize) {
+		this(inChannel, blockSize, recordSize, TarConstants.FILE_BUFFER_SIZE);
+	}
+
+	public TarBuffer(SeekableByteChannel inChannel, int blockSize, int recordSize, int bufferSize) {
+		this.inStream = Channels.newInputStream(inChannel);
+		this.inChannel = inChannel;
 		this.outStream = null;
-		this.initialize(blockSize, recordSize);
+		this.initialize(blockSize, recordSize, bufferSize);
 	}
 
 	public TarBuffer(OutputStream outStream) {
@@ -64,9 +121,49 @@ public class TarBuffer extends Object {
 	}
 
 	public TarBuffer(OutputStream outStream, int blockSize, int recordSize) {
+		this(outStream, blockSize, recordSize, false);
+	}
+
+	/**
+	 * Create an output buffer. An asynchronous buffer fills the next block
+	 * while the previous ones are written to the stream in the background
+	 * (see AsyncBlockWriter), it pays off when the stream is slow, as a
+	 * compressor or a network connection.
+	 */
+	public TarBuffer(OutputStream outStream, int blockSize, int recordSize, boolean async) {
+		this(outStream, blockSize, recordSize,
+				(outStream instanceof FileOutputStream) ? TarConstants.FILE_BUFFER_SIZE : blockSize, async);
+	}
+
+	/**
+	 * Create an output buffer writing bufferSize bytes at once, rounded up to
+	 * a whole number of blocks.
+	 */
+	public TarBuffer(OutputStream outStream, int blockSize, int recordSize, int bufferSize, boolean async) {
 		this.inStream = null;
 		this.outStream = outStream;
-		this.initialize(blockSize, recordSize);
+		this.outChannel = (outStream instanceof FileOutputStream) ? ((FileOutputStream) outStream)
+				.getChannel() : null;
+		this.initialize(blockSize, recordSize, bufferSize);
+		if (async) {
+			this.asyncWriter = new AsyncBlockWriter(outStream, this.bufferSize, AsyncBlockWriter.DEFAULT_BLOCKS);
+		}
+	}
+
+	/**
+	 * Create an output buffer writing a channel. The whole blocks of the
+	 * entries written from a file channel are transfered to the channel with
+	 * FileChannel.transferTo(), which does not copy them through the Java
+	 * heap, for a file or a socket channel.
+	 */
+	public TarBuffer(WritableByteChannel outChannel, int blockSize, int recordSize, int bufferSize, boolean async) {
+		this.inStream = null;
+		this.outStream = Channels.newOutputStream(outChannel);
+		this.outChannel = outChannel;
+		this.initialize(blockSize, recordSize, bufferSize);
+		if (async) {
+			this.asyncWriter = new AsyncBlockWriter(this.outStream, this.bufferSize, AsyncBlockWriter.DEFAULT_BLOCKS);
+		}
 	}
 
 	/**
@@ -80,17 +177,22 @@ public class TarBuffer extends Object {
 		}
 
 		if (this.outStream != null) {
-			this.flushBlock();
-
-			// if (this.outStream != System.out && this.outStream != System.err)
-			// {
-			this.outStream.close();
-			this.outStream = null;
-			// }
+			try {
+				this.flushBlock();
+				this.awaitWriter();
+			} finally {
+				// if (this.outStream != System.out && this.outStream != System.err)
+				// {
+				this.outStream.close();
+				this.outStream = null;
+				this.outChannel = null;
+				// }
+			}
 		} else if (this.inStream != null) {
 			// if (this.inStream != System.in) {
 			this.inStream.close();
 			this.inStream = null;
+			this.inChannel = null;
 			// }
 		}
 	}
@@ -116,17 +218,44 @@ public class TarBuffer extends Object {
 		// any previous data that might have previously existed in the
 		// blockBuffer from being written to the file.
 
-		if (this.currRecIdx > 0) {
+		int inBlock = this.currRecIdx % this.recsPerBlock;
+		if (inBlock > 0) {
 			int offset = this.currRecIdx * this.recordSize;
-			byte[] zeroBuffer = new byte[this.blockSize - offset];
+			int padding = (this.recsPerBlock - inBlock) * this.recordSize;
 
-			System.arraycopy(zeroBuffer, 0, this.blockBuffer, offset,
-					zeroBuffer.length);
+			Arrays.fill(this.blockBuffer, offset, offset + padding, (byte) 0);
 
+			this.currRecIdx += this.recsPerBlock - inBlock;
+		}
+
+		if (this.currRecIdx > 0) {
 			this.writeBlock();
 		}
 	}
 
+	/**
+	 * Flush the underlying stream, once the blocks written in the background
+	 * are written. The current block is not written.
+	 */
+	public void flush() throws IOException {
+		if (this.outStream == null) {
+			throw new IOException("writing to an input buffer");
+		}
+
+		this.awaitWriter();
+		this.outStream.flush();
+	}
+
+	/**
+	 * Wait for the blocks written in the background, if any, and report their
+	 * errors.
+	 */
+	private void awaitWriter() throws IOException {
+		if (this.asyncWriter != null) {
+			this.asyncWriter.await();
+		}
+	}
+
 	/**
 	 * Get the TAR Buffer's block size. Blocks consist of multiple records.
 	 */
@@ -134,13 +263,20 @@ public class TarBuffer extends Object {
 		return this.blockSize;
 	}
 
+	/**
+	 * Get the size of the reads or writes, a multiple of the block size.
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
 	/**
 	 * Get the current block number, zero based.
 	 * 
 	 * @return The current zero based block number.
 	 */
 	public int getCurrentBlockNum() {
-		return this.currBlkIdx;
+		return (int) Math.floorDiv(this.getPosition() / this.recordSize - 1, (long) this.recsPerBlock);
 	}
 
 	/**
@@ -150,7 +286,16 @@ public class TarBuffer extends Object {
 	 * @return The current zero based record number.
 	 */
 	public int getCurrentRecordNum() {
-		return this.currRecIdx - 1;
+		return (int) Math.floorMod(this.getPosition() / this.recordSize - 1, (long) this.recsPerBlock);
+	}
+
+	/**
+	 * Get the offset in the archive of the next record to be read or written.
+	 * 
+	 * @return The offset in bytes.
+	 */
+	public long getPosition() {
+		return this.bufferStart + (long) this.currRecIdx * this.recordSize;
 	}
 
 	/**
@@ -163,18 +308,20 @@ public class TarBuffer extends Object {
 	/**
 	 * Initialization common to all constructors.
 	 */
-	private void initialize(int blockSize, int recordSize) {
+	private void initialize(int blockSize, int recordSize, int bufferSize) {
 
 		this.blockSize = blockSize;
 		this.recordSize = recordSize;
 		this.recsPerBlock = this.blockSize / this.recordSize;
-		this.blockBuffer = new byte[this.blockSize];
+		this.bufferSize = Math.max(1, (bufferSize + blockSize - 1) / blockSize) * blockSize;
+		this.recsPerBuffer = this.bufferSize / this.recordSize;
+		this.blockBuffer = new byte[this.bufferSize];
 
 		if (this.inStream != null) {
-			this.currBlkIdx = -1;
-			this.currRecIdx = this.recsPerBlock;
+			this.bufferStart = -this.bufferSize;
+			this.currRecIdx = this.recsPerBuffer;
 		} else {
-			this.currBlkIdx = 0;
+			this.bufferStart = 0;
 			this.currRecIdx = 0;
 		}
 	}
@@ -187,8 +334,21 @@ public class TarBuffer extends Object {
 	 *            The record data to check.
 	 */
 	public boolean isEOFRecord(byte[] record) {
-		for (int i = 0, sz = this.getRecordSize(); i < sz; ++i) {
-			if (record[i] != 0) {
+		return this.isEOFRecord(record, 0);
+	}
+
+	/**
+	 * Determine if an archive record indicate End of Archive, where the record
+	 * may be inside of a larger array buffer.
+	 * 
+	 * @param buf
+	 *            The buffer containing the record data to check.
+	 * @param offset
+	 *            The offset of the record data within buf.
+	 */
+	public boolean isEOFRecord(byte[] buf, int offset) {
+		for (int i = offset, end = offset + this.getRecordSize(); i < end; ++i) {
+			if (buf[i] != 0) {
 				return false;
 			}
 		}
@@ -196,6 +356,17 @@ public class TarBuffer extends Object {
 		return true;
 	}
 
+	/**
+	 * Get the block buffer backing the records returned by
+	 * readRecordOffset(). Its content is only valid until the next read or
+	 * skip on this buffer.
+	 * 
+	 * @return The current block buffer.
+	 */
+	public byte[] getBlockBuffer() {
+		return this.blockBuffer;
+	}
+
 	
 	 /**
      * Read a record from the input stream and return the data.
@@ -206,28 +377,46 @@ public class TarBuffer extends Object {
     public byte[] readRecord() throws IOException {
     	if(logger.isLoggable(Level.FINEST)) {
             logger.finest("ReadRecord: recIdx = " + currRecIdx
-                               + " blkIdx = " + currBlkIdx);
+                               + " blkIdx = " + getCurrentBlockNum());
         }
 
+        int offset = this.readRecordOffset();
+
+        if (offset == -1) {
+            return null;
+        }
+
+        byte[] result = new byte[recordSize];
+
+        System.arraycopy(this.blockBuffer, offset, result, 0, this.recordSize);
+
+        return result;
+    }
+
+    /**
+     * Read a record from the input stream without copying it. The record data
+     * lies in the array returned by getBlockBuffer(), starting at the returned
+     * offset, and stays valid until the next read or skip on this buffer.
+     *
+     * @return The offset of the record in the block buffer, or -1 at EOF.
+     * @throws IOException on error
+     */
+    public int readRecordOffset() throws IOException {
         if (this.inStream == null) {
             throw new IOException("Either reading from an output buffer, or the input stream was closed.");
         }
 
-        if (this.currRecIdx >= this.recsPerBlock) {
+        if (this.currRecIdx >= this.recsPerBuffer) {
             if (!readBlock()) {
-                return null;
+                return -1;
             }
         }
 
-        byte[] result = new byte[recordSize];
-
-        System.arraycopy(this.blockBuffer,
-                         (this.currRecIdx * this.recordSize), result, 0,
-                         this.recordSize);
+        int offset = this.currRecIdx * this.recordSize;
 
         this.currRecIdx++;
 
-        return result;
+        return offset;
     }
 
     /**
@@ -236,7 +425,7 @@ public class TarBuffer extends Object {
     private boolean readBlock() throws IOException {
     	
       if(logger.isLoggable(Level.FINEST)) {
-            logger.finest("ReadBlock: blkIdx = " + currBlkIdx);
+            logger.finest("ReadBlock: blkIdx = " + getCurrentBlockNum());
         }
 
         if (inStream == null) {
@@ -246,11 +435,14 @@ public class TarBuffer extends Object {
         this.currRecIdx = 0;
 
         int offset = 0;
-        int bytesNeeded = this.blockSize;
+        int bytesNeeded = this.bufferSize;
 
         while (bytesNeeded > 0) {
-            long numBytes = this.inStream.read(this.blockBuffer, offset,
-                                               bytesNeeded);
+            // a channel reads large buffers without the native copy of
+            // FileInputStream
+            long numBytes = (this.inChannel != null)
+                    ? this.inChannel.read(ByteBuffer.wrap(this.blockBuffer, offset, bytesNeeded))
+                    : this.inStream.read(this.blockBuffer, offset, bytesNeeded);
 
             //
             // NOTE
@@ -286,17 +478,17 @@ public class TarBuffer extends Object {
             offset += numBytes;
             bytesNeeded -= numBytes;
 
-            if (numBytes != this.blockSize) {
+            if (numBytes != this.bufferSize) {
             	
             	if(logger.isLoggable(Level.FINEST)) {
                     logger.finest("ReadBlock: INCOMPLETE READ "
-                                       + numBytes + " of " + this.blockSize
+                                       + numBytes + " of " + this.bufferSize
                                        + " bytes read.");
                 }
             }
         }
 
-        this.currBlkIdx++;
+        this.bufferStart += this.bufferSize;
 
         return true;
     }
@@ -311,14 +503,14 @@ public class TarBuffer extends Object {
 		if (logger.isLoggable(Level.FINEST)) {
 
 			logger.log(Level.FINEST, "SkipRecord: recIdx = " + this.currRecIdx
-					+ " blkIdx = " + this.currBlkIdx);
+					+ " blkIdx = " + this.getCurrentBlockNum());
 		}
 
 		if (this.inStream == null) {
 			throw new IOException("Either reading (via Skip) from an output buffer, or the input stream was closed.");
 		}
 
-		if (this.currRecIdx >= this.recsPerBlock) {
+		if (this.currRecIdx >= this.recsPerBuffer) {
 			if (!this.readBlock()) {
 				return; // UNDONE
 			}
@@ -328,23 +520,242 @@ public class TarBuffer extends Object {
 	}
 
 	/**
-	 * Write a TarBuffer block to the archive.
+	 * Skip over records on the input stream. Whole buffers are not read: the
+	 * position of the underlying channel is moved when the input is a file or
+	 * a seekable channel, InputStream.skip() is used otherwise, and data is
+	 * only read when the stream can not skip.
+	 * 
+	 * @param numRecords
+	 *            The number of records to skip.
+	 * @return The number of records skipped, less than numRecords only if the
+	 *         end of the input was reached.
+	 */
+	public long skipRecords(long numRecords) throws IOException {
+
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "SkipRecords: " + numRecords + " recIdx = "
+					+ this.currRecIdx + " blkIdx = " + this.getCurrentBlockNum());
+		}
+
+		if (this.inStream == null) {
+			throw new IOException("Either reading (via Skip) from an output buffer, or the input stream was closed.");
+		}
+
+		// Records left in the current buffer
+		long skipped = Math.min(numRecords, this.recsPerBuffer - this.currRecIdx);
+		this.currRecIdx += skipped;
+
+		long buffers = (numRecords - skipped) / this.recsPerBuffer;
+		if (buffers > 0) {
+			long skippedBuffers = this.skipBuffers(buffers);
+			this.bufferStart += skippedBuffers * this.bufferSize;
+			skipped += skippedBuffers * this.recsPerBuffer;
+		}
+
+		// Records of a last, possibly incomplete, buffer
+
+		while (skipped < numRecords) {
+			if (this.currRecIdx >= this.recsPerBuffer) {
+				if (!this.readBlock()) {
+					return skipped;
+				}
+			}
+
+			int inBlock = (int) Math.min(numRecords - skipped, this.recsPerBuffer - this.currRecIdx);
+			this.currRecIdx += inBlock;
+			skipped += inBlock;
+		}
+
+		return skipped;
+	}
+
+	/**
+	 * Skip whole buffers of the input, without reading them when possible.
+	 * 
+	 * @return The number of buffers skipped, less than numBuffers when the
+	 *         input does not contain as many complete buffers.
+	 */
+	private long skipBuffers(long numBuffers) throws IOException {
+		long bytes = numBuffers * this.bufferSize;
+
+		if (this.inChannel != null) {
+			long position = this.inChannel.position();
+			long available = Math.max(this.inChannel.size() - position, 0);
+			long skipped = Math.min(bytes, available - available % this.bufferSize);
+			this.inChannel.position(position + skipped);
+			return skipped / this.bufferSize;
+		}
+
+		long remaining = bytes;
+		while (remaining > 0) {
+			long skipped = this.inStream.skip(remaining);
+			if (skipped <= 0) {
+				break;
+			}
+			remaining -= skipped;
+		}
+
+		// The stream can not skip anymore, read through the rest
+		while (remaining > 0) {
+			int numBytes = this.inStream.read(this.blockBuffer, 0,
+					(int) Math.min(remaining, this.bufferSize));
+			if (numBytes == -1) {
+				break;
+			}
+			remaining -= numBytes;
+		}
+
+		return (bytes - remaining) / this.bufferSize;
+	}
+
+	/**
+	 * Write the records of the buffer to the archive, whole blocks.
 	 */
 	private void writeBlock() throws IOException {
 
 		if (logger.isLoggable(Level.FINEST)) {
-			logger.log(Level.FINEST, "WriteBlock: blkIdx = " + this.currBlkIdx);
+			logger.log(Level.FINEST, "WriteBlock: blkIdx = " + this.getCurrentBlockNum());
 		}
 
 		if (this.outStream == null) {
 			throw new IOException("writing to an input buffer");
 		}
 
-		this.outStream.write(this.blockBuffer, 0, this.blockSize);
-		this.outStream.flush();
+		int length = this.currRecIdx * this.recordSize;
+
+		if (this.asyncWriter != null) {
+			this.blockBuffer = this.asyncWriter.write(this.blockBuffer, length);
+		} else if (this.outChannel != null) {
+			writeFully(this.outChannel, ByteBuffer.wrap(this.blockBuffer, 0, length));
+		} else {
+			this.outStream.write(this.blockBuffer, 0, length);
+			this.outStream.flush();
+		}
 
 		this.currRecIdx = 0;
-		this.currBlkIdx++;
+		this.bufferStart += length;
+	}
+
+	/**
+	 * Write records read from a channel to the archive. When the archive is
+	 * written to a file, the whole blocks which do not fit in the buffer are
+	 * transfered from the channel with FileChannel.transferTo() and are not
+	 * copied through the buffer.
+	 * 
+	 * @param channel
+	 *            The channel to read the records from.
+	 * @param position
+	 *            The position of the first record in the channel.
+	 * @param numRecords
+	 *            The number of records to write.
+	 */
+	public void writeRecords(FileChannel channel, long position, long numRecords)
+			throws IOException {
+
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.log(Level.FINEST, "WriteRecords: " + numRecords + " recIdx = "
+					+ this.currRecIdx + " blkIdx = " + this.getCurrentBlockNum());
+		}
+
+		if (this.outStream == null) {
+			throw new IOException("writing to an input buffer");
+		}
+
+		long written = 0;
+
+		while (written < numRecords) {
+			if (this.currRecIdx >= this.recsPerBuffer) {
+				this.writeBlock();
+			}
+
+			long remaining = numRecords - written;
+			long from = position + written * this.recordSize;
+
+			if (this.currRecIdx % this.recsPerBlock == 0 && this.outChannel != null
+					&& remaining >= this.recsPerBlock
+					&& remaining >= this.recsPerBuffer - this.currRecIdx) {
+				long blocks = remaining / this.recsPerBlock;
+				// the buffered blocks and the blocks written in the background
+				// come first
+				if (this.currRecIdx > 0) {
+					this.writeBlock();
+				}
+				this.awaitWriter();
+				transferFully(channel, from, blocks * this.blockSize, this.outChannel);
+				this.bufferStart += blocks * this.blockSize;
+				written += blocks * this.recsPerBlock;
+			} else {
+				int records = (int) Math.min(remaining, this.recsPerBuffer - this.currRecIdx);
+				readFully(channel, ByteBuffer.wrap(this.blockBuffer, this.currRecIdx
+						* this.recordSize, records * this.recordSize), from);
+				this.currRecIdx += records;
+				written += records;
+			}
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read == -1) {
+				throw new IOException("unexpected EOF at position " + position);
+			}
+			position += read;
+		}
+	}
+
+	/**
+	 * Transfer count bytes of a channel to a target with transferTo(), copying
+	 * them through a buffer when transferTo() makes no progress.
+	 * 
+	 * @throws IOException
+	 *             If the channel ends or the target accepts no byte.
+	 */
+	static void transferFully(FileChannel channel, long position,
+			long count, WritableByteChannel target) throws IOException {
+		while (count > 0) {
+			long transfered = channel.transferTo(position, count, target);
+			if (transfered <= 0) {
+				if (position >= channel.size()) {
+					throw new IOException("unexpected EOF at position " + position);
+				}
+				transfered = copy(channel, position, count, target);
+			}
+			position += transfered;
+			count -= transfered;
+		}
+	}
+
+	/**
+	 * Copy up to count bytes of a channel to a target through a buffer, when
+	 * transferTo() makes no progress (a non-blocking target for instance).
+	 * 
+	 * @return The number of bytes copied, more than 0.
+	 * @throws IOException
+	 *             If the channel ends or the target accepts no byte.
+	 */
+	static long copy(FileChannel channel, long position, long count,
+			WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, TarConstants.LARGE_BUFFER_SIZE));
+		if (channel.read(buffer, position) == -1) {
+			throw new IOException("unexpected EOF at position " + position);
+		}
+		((Buffer) buffer).flip();
+		writeFully(target, buffer);
+		return buffer.limit();
+	}
+
+	/**
+	 * Write a buffer to a channel, failing rather than spinning if the
+	 * channel accepts no byte.
+	 */
+	static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (target.write(buffer) == 0) {
+				throw new IOException("the target channel accepts no more data, it may be non-blocking");
+			}
+		}
 	}
 
 	/**
@@ -358,7 +769,7 @@ public class TarBuffer extends Object {
 
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.log(Level.FINEST, "WriteRecord: recIdx = " + this.currRecIdx
-					+ " blkIdx = " + this.currBlkIdx);
+					+ " blkIdx = " + this.getCurrentBlockNum());
 		}
 
 		if (this.outStream == null) {
@@ -371,7 +782,7 @@ public class TarBuffer extends Object {
 					+ this.recordSize + "'");
 		}
 
-		if (this.currRecIdx >= this.recsPerBlock) {
+		if (this.currRecIdx >= this.recsPerBuffer) {
 			this.writeBlock();
 		}
 
@@ -395,7 +806,7 @@ public class TarBuffer extends Object {
 
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.log(Level.FINEST, "WriteRecord: recIdx = " + this.currRecIdx
-					+ " blkIdx = " + this.currBlkIdx);
+					+ " blkIdx = " + this.getCurrentBlockNum());
 		}
 
 		if (this.outStream == null) {
@@ -409,7 +820,7 @@ public class TarBuffer extends Object {
 					+ this.recordSize + "'");
 		}
 
-		if (this.currRecIdx >= this.recsPerBlock) {
+		if (this.currRecIdx >= this.recsPerBuffer) {
 			this.writeBlock();
 		}
 
@@ -430,7 +841,7 @@ public class TarBuffer extends Object {
 
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.log(Level.FINEST, "WriteRecord: recIdx = " + this.currRecIdx
-					+ " blkIdx = " + this.currBlkIdx);
+					+ " blkIdx = " + this.getCurrentBlockNum());
 		}
 
 		if (this.outStream == null) {
@@ -443,7 +854,7 @@ public class TarBuffer extends Object {
 					+ this.recordSize + "'");
 		}
 
-		if (this.currRecIdx >= this.recsPerBlock) {
+		if (this.currRecIdx >= this.recsPerBuffer) {
 			this.writeBlock();
 		}
 
@@ -117,6 +117,17 @@ public class TarConstants {
 	 * Identifies a multi-volume gnutar file
 	 */
 	public static final byte LF_GNUTYPE_MULTIVOL = (byte) 'M';
+
+	/**
+	 * POSIX extended header, its records apply to the *next* file.
+	 */
+	public static final byte LF_PAX_EXTENDED_HEADER = (byte) 'x';
+
+	/**
+	 * POSIX global extended header, its records apply to all the following
+	 * files.
+	 */
+	public static final byte LF_PAX_GLOBAL_HEADER = (byte) 'g';
 	
 	/**
 	 * The magic tag representing a POSIX tar archive.
@@ -135,6 +146,16 @@ public class TarConstants {
 	public static final String GNU_LONGLINK = "././@LongLink";
 
 	
+	/**
+	 * Largest value of an 11 digits octal field (size, mtime).
+	 */
+	public static final long MAX_OCTAL_SIZE = 077777777777L;
+
+	/**
+	 * Largest value of a 7 digits octal field (uid, gid).
+	 */
+	public static final long MAX_OCTAL_ID = 07777777L;
+
 	/**
 	 * Default RCD Size.
 	 */
@@ -154,6 +175,12 @@ public class TarConstants {
 	/** Large Buffer Size */
 	public static final int LARGE_BUFFER_SIZE = 32768;
 
+	/**
+	 * Size of the reads and writes of the archives which are files (see
+	 * TarBuffer), it does not change the blocking of the archives.
+	 */
+	public static final int FILE_BUFFER_SIZE = 512 * 1024;
+
 	
 	
 	/** We cast this constantly **/
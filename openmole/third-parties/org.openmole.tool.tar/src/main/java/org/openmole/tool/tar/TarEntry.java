@@ -1,7 +1,12 @@
 package org.openmole.tool.tar;
 
 import java.io.File;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -119,8 +124,12 @@ public class TarEntry extends Object implements Cloneable {
     /** If this entry represents a File, this references it. */
     private File file;
     // HEADER VARS
-    /** The entry's name. */
+    /**
+     * The entry's name. The names of entries read from an archive are kept as
+     * the raw header bytes and only decoded when they are requested.
+     */
     private String name;
+    private byte[] nameBytes;
     /** The entry's permission mode. */
     private int mode;
     /** The entry's user id. */
@@ -131,6 +140,8 @@ public class TarEntry extends Object implements Cloneable {
     private long size;
     /** The entry's modification time. */
     private long modTime;
+    /** The nanoseconds of the modification time, only stored in a pax header. */
+    private int modTimeNanos;
     /** The entry's checksum. */
     @SuppressWarnings("unused")
     private int checkSum;
@@ -138,12 +149,15 @@ public class TarEntry extends Object implements Cloneable {
     private byte linkFlag;
     /** The entry's link name. */
     private String linkName;
+    private byte[] linkNameBytes;
     /** The entry's magic tag. */
     private String magic;
     /** The entry's user name. */
     private String userName;
+    private byte[] userNameBytes;
     /** The entry's group name. */
     private String groupName;
+    private byte[] groupNameBytes;
     /** The entry's major device number. */
     private int devMajor;
     /** The entry's minor device number. */
@@ -155,6 +169,26 @@ public class TarEntry extends Object implements Cloneable {
     @SuppressWarnings("unused")
     private long offB;
     private int tarFormat = GNU_FORMAT;
+    /**
+     * The offset of the entry's data in the archive, when the entry was read
+     * from a seekable archive, -1 otherwise.
+     */
+    private long dataOffset = -1;
+    /**
+     * The pax extended header records of the entry which do not correspond
+     * to a header field, null if there are none.
+     */
+    private Map<String, String> extendedHeaders;
+    /**
+     * The (offset, length) pairs of the data segments of a sparse file, null
+     * for a dense file.
+     */
+    private long[] sparseMap;
+    /**
+     * The size of the entry data in the archive of a sparse entry read from
+     * an archive, -1 otherwise.
+     */
+    private long storedSize = -1;
 
     // END HEADER VARS
     /** The default constructor is protected for use only by subclasses. */
@@ -184,8 +218,21 @@ public class TarEntry extends Object implements Cloneable {
      *            The header bytes from a tar archive entry.
      */
     public TarEntry(byte[] headerBuf) throws InvalidHeaderException {
+        this(headerBuf, 0);
+    }
+
+    /**
+     * Construct an entry from an archive's header bytes stored in a larger
+     * buffer, a TarBuffer block for instance. File is set to null.
+     * 
+     * @param headerBuf
+     *            The buffer holding the header bytes.
+     * @param offset
+     *            The offset of the header in the buffer.
+     */
+    public TarEntry(byte[] headerBuf, int offset) throws InvalidHeaderException {
         this();
-        this.parseTarHeader(headerBuf);
+        this.parseTarHeader(headerBuf, offset);
     }
 
     /**
@@ -238,7 +285,7 @@ public class TarEntry extends Object implements Cloneable {
      * @return True if the entries are equal.
      */
     public boolean equals(TarEntry it) {
-        return this.name.equals(it.getName());
+        return this.getName().equals(it.getName());
     }
 
     /**
@@ -297,6 +344,9 @@ public class TarEntry extends Object implements Cloneable {
      * @return This entry's group name.
      */
     public String getGroupName() {
+        if (this.groupName == null) {
+            this.groupName = decodeName(this.groupNameBytes);
+        }
         return this.groupName;
     }
 
@@ -310,12 +360,55 @@ public class TarEntry extends Object implements Cloneable {
         return new Date(this.modTime * MILLIS_PER_SECOND);
     }
 
+    /**
+     * Get this entry's modification time, with the nanoseconds if it has been
+     * read from a pax header.
+     * 
+     * @return This entry's modification time.
+     */
+    public FileTime getLastModifiedTime() {
+        return FileTime.from(Instant.ofEpochSecond(this.modTime, this.modTimeNanos));
+    }
+
+    long getModTimeSeconds() {
+        return this.modTime;
+    }
+
+    int getModTimeNanos() {
+        return this.modTimeNanos;
+    }
+
+    /**
+     * Get this entry's link flag (type).
+     * 
+     * @return This entry's link flag.
+     */
+    public byte getLinkFlag() {
+        return this.linkFlag;
+    }
+
+    /**
+     * Get the pax extended header records of this entry that do not
+     * correspond to a header field.
+     * 
+     * @return The records, by key.
+     */
+    public Map<String, String> getExtendedHeaders() {
+        if (this.extendedHeaders == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(this.extendedHeaders);
+    }
+
     /**
      * Get this entry's name.
      * 
      * @return This entry's name.
      */
     public String getName() {
+        if (this.name == null) {
+            this.name = decodeName(this.nameBytes);
+        }
         return this.name;
     }
 
@@ -328,6 +421,36 @@ public class TarEntry extends Object implements Cloneable {
         return this.size;
     }
 
+    /**
+     * Get the size of this entry's data in the archive: the file size, or for
+     * a sparse entry read from an archive the size of its segment list and
+     * data.
+     */
+    long getStoredSize() {
+        return this.storedSize >= 0 ? this.storedSize : this.size;
+    }
+
+    /**
+     * Get the data segments of a sparse file.
+     * 
+     * @return The (offset, length) pairs of the segments, or null if this
+     *         entry is not sparse or if its segment list has not been read
+     *         yet.
+     */
+    public long[] getSparseMap() {
+        return this.sparseMap;
+    }
+
+    /**
+     * Get the offset of this entry's data in the archive it was read from.
+     * 
+     * @return The data offset, or -1 if the entry was not read from a seekable
+     *         archive.
+     */
+    public long getDataOffset() {
+        return this.dataOffset;
+    }
+
     /**
      * Get the tar format(GNU_FORMAT, UNIX_FORMAT, USTAR_FORMAT)
      * 
@@ -343,7 +466,10 @@ public class TarEntry extends Object implements Cloneable {
      * @return This entry's link name.
      */
     public String getLinkName() {
-        return linkName.toString();
+        if (this.linkName == null) {
+            this.linkName = decodeName(this.linkNameBytes);
+        }
+        return this.linkName;
     }
 
     /**
@@ -361,6 +487,9 @@ public class TarEntry extends Object implements Cloneable {
      * @return This entry's user name.
      */
     public String getUserName() {
+        if (this.userName == null) {
+            this.userName = decodeName(this.userNameBytes);
+        }
         return this.userName;
     }
 
@@ -374,7 +503,7 @@ public class TarEntry extends Object implements Cloneable {
      * @return True if entry is a descendant of this.
      */
     public boolean isDescendent(TarEntry desc) {
-        return desc.getName().startsWith(this.name);
+        return desc.getName().startsWith(this.getName());
     }
 
     /**
@@ -392,6 +521,11 @@ public class TarEntry extends Object implements Cloneable {
                 return true;
             }
 
+            if (this.name == null) {
+                return this.nameBytes != null
+                        && this.nameBytes[this.nameBytes.length - 1] == '/';
+            }
+
             if (this.name.endsWith("/")) {
                 return true;
             }
@@ -407,7 +541,36 @@ public class TarEntry extends Object implements Cloneable {
      */
     public boolean isGNULongNameEntry() {
         return this.linkFlag == TarConstants.LF_GNUTYPE_LONGNAME
-                && this.name.equals(TarConstants.GNU_LONGLINK);
+                && this.getName().equals(TarConstants.GNU_LONGLINK);
+    }
+
+    /**
+     * Indicate if this entry is a sparse file, the holes between its data
+     * segments are not stored in the archive.
+     * 
+     * @return true if this entry is sparse
+     */
+    public boolean isSparse() {
+        return this.sparseMap != null || this.storedSize >= 0;
+    }
+
+    /**
+     * Indicate if this entry is a pax extended header
+     * 
+     * @return true if this entry holds the extended header of the next entry
+     */
+    public boolean isPaxHeader() {
+        return this.linkFlag == TarConstants.LF_PAX_EXTENDED_HEADER;
+    }
+
+    /**
+     * Indicate if this entry is a pax global extended header
+     * 
+     * @return true if this entry holds an extended header for all the
+     *         following entries
+     */
+    public boolean isGlobalPaxHeader() {
+        return this.linkFlag == TarConstants.LF_PAX_GLOBAL_HEADER;
     }
 
     /**
@@ -425,7 +588,7 @@ public class TarEntry extends Object implements Cloneable {
         this.devMajor = 0;
         this.devMinor = 0;
 
-        this.name = name;
+        this.setName(name);
         this.mode = isDir ? DEFAULT_DIR_MODE : DEFAULT_FILE_MODE;
         this.userId = 0;
         this.groupId = 0;
@@ -433,12 +596,12 @@ public class TarEntry extends Object implements Cloneable {
         this.checkSum = 0;
 
         this.modTime = new java.util.Date().getTime() / MILLIS_PER_SECOND;
+        this.modTimeNanos = 0;
 
         this.linkFlag = isDir ? TarConstants.LF_DIR : TarConstants.LF_NORMAL;
 
-        this.linkName = "";
-        this.userName = "";
-        this.groupName = "";
+        this.setLinkName("");
+        this.setNames("", "");
 
         this.devMajor = 0;
         this.devMinor = 0;
@@ -494,7 +657,7 @@ public class TarEntry extends Object implements Cloneable {
             name = name.substring(1);
         }
 
-        this.linkName = "";
+        this.setLinkName("");
 
         StringBuilder hdrName = new StringBuilder(name);
 
@@ -502,7 +665,7 @@ public class TarEntry extends Object implements Cloneable {
             this.size = 0;
             this.mode = DEFAULT_DIR_MODE;
             this.linkFlag = TarConstants.LF_DIR;
-            if (this.name.charAt(this.name.length() - 1) != '/') {
+            if (hdrName.length() == 0 || hdrName.charAt(hdrName.length() - 1) != '/') {
                 hdrName.append("/");
             }
         } else {
@@ -511,11 +674,12 @@ public class TarEntry extends Object implements Cloneable {
             this.linkFlag = TarConstants.LF_NORMAL;
         }
 
-        this.name = hdrName.toString();
+        this.setName(hdrName.toString());
 
         // UNDONE When File lets us get the userName, use it!
 
         this.modTime = file.lastModified() / MILLIS_PER_SECOND;
+        this.modTimeNanos = 0;
         this.checkSum = 0;
         this.devMajor = 0;
         this.devMinor = 0;
@@ -524,29 +688,44 @@ public class TarEntry extends Object implements Cloneable {
     /**
      * Parse an entry's TarHeader information from a header buffer.
      * 
-     * Old unix-style code contributed by David Mehringer
-     * <dmehring@astro.uiuc.edu>.
-     * 
      * @param header
      *            The tar entry header buffer to get information from.
      */
     public void parseTarHeader(byte[] headerBuf) throws InvalidHeaderException {
+        this.parseTarHeader(headerBuf, 0);
+    }
+
+    /**
+     * Parse an entry's TarHeader information from a header stored in a larger
+     * buffer. The numeric fields are parsed in place and the names are copied
+     * as raw bytes, they are decoded on the first call to their getter.
+     * 
+     * Old unix-style code contributed by David Mehringer
+     * <dmehring@astro.uiuc.edu>.
+     * 
+     * @param headerBuf
+     *            The buffer holding the tar entry header.
+     * @param base
+     *            The offset of the header in the buffer.
+     */
+    public void parseTarHeader(byte[] headerBuf, int base) throws InvalidHeaderException {
 
         int offset = 0;
 
         //
         // NOTE Recognize archive header format.
         //
+        int magic = base + 257;
 
         // Unix format magic (no magic): 00000
-        if (headerBuf[257] == 0 && headerBuf[258] == 0 && headerBuf[259] == 0
-                && headerBuf[260] == 0 && headerBuf[261] == 0) {
+        if (headerBuf[magic] == 0 && headerBuf[magic + 1] == 0 && headerBuf[magic + 2] == 0
+                && headerBuf[magic + 3] == 0 && headerBuf[magic + 4] == 0) {
 
             this.tarFormat = UNIX_FORMAT;
 
-        } else if (headerBuf[257] == 'u' && headerBuf[258] == 's'
-                && headerBuf[259] == 't' && headerBuf[260] == 'a'
-                && headerBuf[261] == 'r' && headerBuf[262] == 0) {
+        } else if (headerBuf[magic] == 'u' && headerBuf[magic + 1] == 's'
+                && headerBuf[magic + 2] == 't' && headerBuf[magic + 3] == 'a'
+                && headerBuf[magic + 4] == 'r' && headerBuf[magic + 5] == 0) {
             // Ustar format magic: "ustar\0"
 
             // Posix and new gnutar should fall into thie category due to their magic being:
@@ -554,17 +733,17 @@ public class TarEntry extends Object implements Cloneable {
 
             this.tarFormat = USTAR_FORMAT;
 
-        } else if (headerBuf[257] == 'u' && headerBuf[258] == 's'
-                && headerBuf[259] == 't' && headerBuf[260] == 'a'
-                && headerBuf[261] == 'r' && headerBuf[262] != 0
-                && headerBuf[263] != 0) {
+        } else if (headerBuf[magic] == 'u' && headerBuf[magic + 1] == 's'
+                && headerBuf[magic + 2] == 't' && headerBuf[magic + 3] == 'a'
+                && headerBuf[magic + 4] == 'r' && headerBuf[magic + 5] != 0
+                && headerBuf[magic + 6] != 0) {
             // [old and new] GNUTar format magic: "ustar[wild][wild]" (typically "  ")
             this.tarFormat = GNU_FORMAT;
 
-        } else if (headerBuf[257] == 'u' && headerBuf[258] == 's'
-                && headerBuf[259] == 't' && headerBuf[260] == 'a'
-                && headerBuf[261] == 'r' && headerBuf[262] == 32
-                && headerBuf[263] == 0) {
+        } else if (headerBuf[magic] == 'u' && headerBuf[magic + 1] == 's'
+                && headerBuf[magic + 2] == 't' && headerBuf[magic + 3] == 'a'
+                && headerBuf[magic + 4] == 'r' && headerBuf[magic + 5] == 32
+                && headerBuf[magic + 6] == 0) {
 
             // GNUTar Format: "ustar \0".  This technically shouldn't
             // be used, but it's a safety check for bad flags
@@ -572,37 +751,27 @@ public class TarEntry extends Object implements Cloneable {
             this.tarFormat = GNU_FORMAT;
 
         } else {
-            StringBuffer buf = new StringBuffer(128);
+            StringBuilder buf = new StringBuilder(128);
 
             buf.append("header magic is not 'ustar' or unix-style zeros, it is '");
-            buf.append(headerBuf[257]);
-            buf.append(headerBuf[258]);
-            buf.append(headerBuf[259]);
-            buf.append(headerBuf[260]);
-            buf.append(headerBuf[261]);
-            buf.append(headerBuf[262]);
-            buf.append(headerBuf[263]);
+            for (int i = 0; i < 7; i++) {
+                buf.append(headerBuf[magic + i]);
+            }
             buf.append("', or (dec) ");
-            buf.append(headerBuf[257]);
-            buf.append(", ");
-            buf.append(headerBuf[258]);
-            buf.append(", ");
-            buf.append(headerBuf[259]);
-            buf.append(", ");
-            buf.append(headerBuf[260]);
-            buf.append(", ");
-            buf.append(headerBuf[261]);
-            buf.append(", ");
-            buf.append(headerBuf[262]);
-            buf.append(", ");
-            buf.append(headerBuf[263]);
+            for (int i = 0; i < 7; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(headerBuf[magic + i]);
+            }
 
             throw new InvalidHeaderException(buf.toString());
         }
 
-        this.name = TarFileUtil.parseFileName(headerBuf);
+        this.name = null;
+        this.nameBytes = TarFileUtil.parseFileNameBytes(headerBuf, base);
 
-        offset = TarConstants.NAMELEN;
+        offset = base + TarConstants.NAMELEN;
 
         this.mode = (int) TarFileUtil.parseOctal(headerBuf, offset,
                 TarConstants.MODELEN);
@@ -631,6 +800,7 @@ public class TarEntry extends Object implements Cloneable {
 
         this.modTime = TarFileUtil.parseOctal(headerBuf, offset,
                 TarConstants.MODTIMELEN);
+        this.modTimeNanos = 0;
 
         offset += TarConstants.MODTIMELEN;
 
@@ -641,24 +811,27 @@ public class TarEntry extends Object implements Cloneable {
 
         this.linkFlag = headerBuf[offset++];
 
-        this.linkName = TarFileUtil.parseName(headerBuf, offset,
-                TarConstants.NAMELEN);
+        this.linkName = null;
+        this.linkNameBytes = copyNameField(headerBuf, offset, TarConstants.NAMELEN);
 
         offset += TarConstants.NAMELEN;
 
+        this.userName = null;
+        this.groupName = null;
+
         if (this.tarFormat == USTAR_FORMAT) {
 
-            this.magic = TarFileUtil.parseName(headerBuf, offset,
-                    TarConstants.MAGICLEN);
+            // Checked above, the field is "ustar\0"
+            this.magic = TarConstants.TMAGIC;
 
             offset += TarConstants.MAGICLEN;
 
-            this.userName = TarFileUtil.parseName(headerBuf, offset,
+            this.userNameBytes = copyNameField(headerBuf, offset,
                     TarConstants.UNAMELEN);
 
             offset += TarConstants.UNAMELEN;
 
-            this.groupName = TarFileUtil.parseName(headerBuf, offset,
+            this.groupNameBytes = copyNameField(headerBuf, offset,
                     TarConstants.GNAMELEN);
 
             offset += TarConstants.GNAMELEN;
@@ -672,19 +845,38 @@ public class TarEntry extends Object implements Cloneable {
                     TarConstants.DEVLEN);
 
             // Gets the offset and sets the offset variable in the header
-            this.offB = TarFileUtil.parseOctal(headerBuf, 369, 12);
+            this.offB = TarFileUtil.parseOctal(headerBuf, base + 369, 12);
 
         } else {
 
             this.devMajor = 0;
             this.devMinor = 0;
             this.magic = "";
-            this.userName = "";
-            this.groupName = "";
+            this.userNameBytes = null;
+            this.groupNameBytes = null;
 
         }
     }
 
+    private static byte[] copyNameField(byte[] headerBuf, int offset, int length) {
+        return TarFileUtil.copyName(headerBuf, offset,
+                TarFileUtil.nameLength(headerBuf, offset, length));
+    }
+
+    private static String decodeName(byte[] nameBytes) {
+        return nameBytes == null ? "" : TarFileUtil.decodeName(nameBytes, 0, nameBytes.length);
+    }
+
+    /**
+     * Set the offset of this entry's data in the archive it was read from.
+     * 
+     * @param dataOffset
+     *            The data offset.
+     */
+    void setDataOffset(long dataOffset) {
+        this.dataOffset = dataOffset;
+    }
+
     /**
      * Set this entry's group id.
      * 
@@ -703,6 +895,7 @@ public class TarEntry extends Object implements Cloneable {
      */
     public void setGroupName(String groupName) {
         this.groupName = groupName;
+        this.groupNameBytes = null;
     }
 
     /**
@@ -725,7 +918,7 @@ public class TarEntry extends Object implements Cloneable {
      *            This entry's new modification time.
      */
     public void setModTime(Date time) {
-        this.modTime = time.getTime() / MILLIS_PER_SECOND;
+        this.setModTime(time.getTime());
     }
 
     /**
@@ -737,6 +930,77 @@ public class TarEntry extends Object implements Cloneable {
      */
     public void setModTime(long time) {
         this.modTime = time / MILLIS_PER_SECOND;
+        this.modTimeNanos = 0;
+    }
+
+    /**
+     * Set this entry's modification time with a nanosecond precision. The
+     * sub-second part is written in a pax header.
+     * 
+     * @param time
+     *            This entry's new modification time.
+     */
+    public void setLastModifiedTime(FileTime time) {
+        Instant instant = time.toInstant();
+        this.modTime = instant.getEpochSecond();
+        this.modTimeNanos = instant.getNano();
+    }
+
+    /**
+     * Set the CRC32 of the entry data, written in the extended header and
+     * checked by TarInputStream while the data is read. The data of a sparse
+     * entry is the content of its segments, one after the other.
+     * <p>
+     * The checksum is a vendor record of the extended header (see
+     * PaxHeader.CHECKSUM): the other tar readers extract the entry, GNU tar
+     * prints a warning about an unknown keyword for it. TarFile does not check
+     * it.
+     * 
+     * @param crc
+     *            The CRC32 value.
+     */
+    public void setChecksum(long crc) {
+        this.setExtendedHeader(PaxHeader.CHECKSUM, String.format("%08x", crc & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Get the CRC32 of the entry data.
+     * 
+     * @return The CRC32 value, or -1 if the entry has no checksum.
+     * @throws InvalidHeaderException
+     *             If the checksum record is not an hexadecimal CRC32.
+     */
+    public long getChecksum() throws InvalidHeaderException {
+        String value = this.getExtendedHeaders().get(PaxHeader.CHECKSUM);
+        if (value == null) {
+            return -1;
+        }
+
+        return PaxHeader.parseChecksum(value);
+    }
+
+    /**
+     * Set a pax extended header record to write with this entry. The record
+     * must not correspond to a header field, those are written in the
+     * extended header when they do not fit in the entry header.
+     * 
+     * @param key
+     *            The record key.
+     * @param value
+     *            The record value, null to remove the record.
+     */
+    public void setExtendedHeader(String key, String value) {
+        if (value == null) {
+            if (this.extendedHeaders != null) {
+                this.extendedHeaders.remove(key);
+            }
+            return;
+        }
+
+        if (this.extendedHeaders == null) {
+            this.extendedHeaders = new LinkedHashMap<String, String>();
+        }
+        this.extendedHeaders.put(key, value);
     }
 
     /**
@@ -747,6 +1011,7 @@ public class TarEntry extends Object implements Cloneable {
      */
     public void setName(String name) {
         this.name = name;
+        this.nameBytes = null;
     }
 
     /**
@@ -757,6 +1022,7 @@ public class TarEntry extends Object implements Cloneable {
      */
     public void setLinkName(String linkName) {
         this.linkName = linkName;
+        this.linkNameBytes = null;
     }
 
     /**
@@ -791,6 +1057,28 @@ public class TarEntry extends Object implements Cloneable {
         this.size = size;
     }
 
+    /**
+     * Make this entry a sparse file. The size of the entry stays the real
+     * size of the file, only the data of the segments is written after the
+     * header, in the order of the segments.
+     * 
+     * @param sparseMap
+     *            The (offset, length) pairs of the data segments, sorted, as
+     *            returned by SparseMap.find(), null for a dense file.
+     */
+    public void setSparseMap(long[] sparseMap) {
+        this.sparseMap = sparseMap;
+    }
+
+    /**
+     * Mark this entry read from an archive as sparse: its current size is the
+     * size of the entry data and realSize the size of the file.
+     */
+    void setSparse(long realSize) {
+        this.storedSize = this.size;
+        this.size = realSize;
+    }
+
     /**
      * Set the tar format(GNU_FORMAT, UNIX_FORMAT, USTAR_FORMAT)
      * 
@@ -835,11 +1123,12 @@ public class TarEntry extends Object implements Cloneable {
      */
     public void setUserName(String userName) {
         this.userName = userName;
+        this.userNameBytes = null;
     }
 
     @Override
     public String toString() {
-        StringBuffer result = new StringBuffer(128);
+        StringBuilder result = new StringBuilder(128);
         return result.append("[TarEntry name=").append(this.getName()).append(
                 ", isDir=").append(this.isDirectory()).append(", size=").append(this.getSize()).append(", userId=").append(
                 this.getUserId()).append(", user=").append(
@@ -860,33 +1149,39 @@ public class TarEntry extends Object implements Cloneable {
     public void writeEntryHeader(byte[] outbuf) throws InvalidHeaderException {
         int offset = 0;
 
-        if (this.tarFormat == UNIX_FORMAT && this.name.length() > 100) {
+        String name = this.getName();
+
+        if (this.tarFormat == UNIX_FORMAT && TarFileUtil.getNameByteLength(name) > 100) {
             throw new InvalidHeaderException(
-                    "file path is greater than 100 characters, " + this.name);
+                    "file path is greater than 100 characters, " + name);
         }
 
-        offset = TarFileUtil.getFileNameBytes(this.name, outbuf,
-                (this.tarFormat == GNU_FORMAT));
+        // The fields which do not fit are written in a pax header by the
+        // TarOutputStream, the name is truncated as for the GNU format
+        offset = TarFileUtil.getFileNameBytes(name, outbuf,
+                (this.tarFormat == GNU_FORMAT || PaxHeader.needsPath(this)));
 
         offset = TarFileUtil.getOctalBytes(this.mode, outbuf, offset,
                 TarConstants.MODELEN, TarConstants.ZERO_BYTE);
 
-        offset = TarFileUtil.getOctalBytes(this.userId, outbuf, offset,
-                TarConstants.UIDLEN, TarConstants.ZERO_BYTE);
+        offset = TarFileUtil.getOctalBytes(PaxHeader.fitsId(this.userId) ? this.userId : 0,
+                outbuf, offset, TarConstants.UIDLEN, TarConstants.ZERO_BYTE);
 
-        offset = TarFileUtil.getOctalBytes(this.groupId, outbuf, offset,
-                TarConstants.GIDLEN, TarConstants.ZERO_BYTE);
+        offset = TarFileUtil.getOctalBytes(PaxHeader.fitsId(this.groupId) ? this.groupId : 0,
+                outbuf, offset, TarConstants.GIDLEN, TarConstants.ZERO_BYTE);
 
         long size = this.size;
+        boolean largeSize = size > TarConstants.MAX_OCTAL_SIZE;
+        boolean octalModTime = this.modTime >= 0 && this.modTime <= TarConstants.MAX_OCTAL_SIZE;
 
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST, "Size is at: " + offset);
         }
 
-        offset = TarFileUtil.getLongOctalBytes(size, outbuf, offset,
+        offset = TarFileUtil.getLongOctalBytes(largeSize ? 0 : size, outbuf, offset,
                 TarConstants.SIZELEN);
 
-        offset = TarFileUtil.getLongOctalBytes(this.modTime, outbuf, offset,
+        offset = TarFileUtil.getLongOctalBytes(octalModTime ? this.modTime : 0, outbuf, offset,
                 TarConstants.MODTIMELEN);
 
         int csOffset = offset;
@@ -896,7 +1191,7 @@ public class TarEntry extends Object implements Cloneable {
 
         outbuf[offset++] = this.linkFlag;
 
-        offset = TarFileUtil.getNameBytes(this.linkName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getLinkName(), outbuf, offset,
                 TarConstants.NAMELEN);
 
         if (this.tarFormat == UNIX_FORMAT) {
@@ -914,10 +1209,10 @@ public class TarEntry extends Object implements Cloneable {
             }
         }
 
-        offset = TarFileUtil.getNameBytes(this.userName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getUserName(), outbuf, offset,
                 TarConstants.UNAMELEN);
 
-        offset = TarFileUtil.getNameBytes(this.groupName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getGroupName(), outbuf, offset,
                 TarConstants.GNAMELEN);
 
         offset = TarFileUtil.getOctalBytes(this.devMajor, outbuf, offset,
@@ -939,7 +1234,7 @@ public class TarEntry extends Object implements Cloneable {
          * <becker@informatik.hu-berlin.de>
          */
         if (this.tarFormat != USTAR_FORMAT) {
-            if (size > 8589934592l) {
+            if (largeSize) {
                 offset = TarFileUtil.setRealSize(size, outbuf, 124, 12);
             }
         }
@@ -964,33 +1259,39 @@ public class TarEntry extends Object implements Cloneable {
 
         int offset = 0;
 
-        if (this.tarFormat == UNIX_FORMAT && this.name.length() > 100) {
+        String name = this.getName();
+
+        if (this.tarFormat == UNIX_FORMAT && TarFileUtil.getNameByteLength(name) > 100) {
             throw new InvalidHeaderException(
-                    "file path is greater than 100 characters, " + this.name);
+                    "file path is greater than 100 characters, " + name);
         }
 
-        offset = TarFileUtil.getFileNameBytes(this.name, outbuf,
-                (this.tarFormat == GNU_FORMAT));
+        // The fields which do not fit are written in a pax header by the
+        // TarOutputStream, the name is truncated as for the GNU format
+        offset = TarFileUtil.getFileNameBytes(name, outbuf,
+                (this.tarFormat == GNU_FORMAT || PaxHeader.needsPath(this)));
 
         offset = TarFileUtil.getOctalBytes(this.mode, outbuf, offset,
                 TarConstants.MODELEN, TarConstants.ZERO_BYTE);
 
-        offset = TarFileUtil.getOctalBytes(this.userId, outbuf, offset,
-                TarConstants.UIDLEN, TarConstants.ZERO_BYTE);
+        offset = TarFileUtil.getOctalBytes(PaxHeader.fitsId(this.userId) ? this.userId : 0,
+                outbuf, offset, TarConstants.UIDLEN, TarConstants.ZERO_BYTE);
 
-        offset = TarFileUtil.getOctalBytes(this.groupId, outbuf, offset,
-                TarConstants.GIDLEN, TarConstants.ZERO_BYTE);
+        offset = TarFileUtil.getOctalBytes(PaxHeader.fitsId(this.groupId) ? this.groupId : 0,
+                outbuf, offset, TarConstants.GIDLEN, TarConstants.ZERO_BYTE);
 
         long size = this.size;
+        boolean largeSize = size > TarConstants.MAX_OCTAL_SIZE;
+        boolean octalModTime = this.modTime >= 0 && this.modTime <= TarConstants.MAX_OCTAL_SIZE;
 
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST, "The header size in the multi: " + size);
         }
 
-        offset = TarFileUtil.getLongOctalBytes(size, outbuf, offset,
+        offset = TarFileUtil.getLongOctalBytes(largeSize ? 0 : size, outbuf, offset,
                 TarConstants.SIZELEN);
 
-        offset = TarFileUtil.getLongOctalBytes(this.modTime, outbuf, offset,
+        offset = TarFileUtil.getLongOctalBytes(octalModTime ? this.modTime : 0, outbuf, offset,
                 TarConstants.MODTIMELEN);
 
         int csOffset = offset;
@@ -1003,7 +1304,7 @@ public class TarEntry extends Object implements Cloneable {
         }
         outbuf[offset++] = this.linkFlag;
 
-        offset = TarFileUtil.getNameBytes(this.linkName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getLinkName(), outbuf, offset,
                 TarConstants.NAMELEN);
 
         if (this.tarFormat == UNIX_FORMAT) {
@@ -1021,10 +1322,10 @@ public class TarEntry extends Object implements Cloneable {
             }
         }
 
-        offset = TarFileUtil.getNameBytes(this.userName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getUserName(), outbuf, offset,
                 TarConstants.UNAMELEN);
 
-        offset = TarFileUtil.getNameBytes(this.groupName, outbuf, offset,
+        offset = TarFileUtil.getNameBytes(this.getGroupName(), outbuf, offset,
                 TarConstants.GNAMELEN);
 
         offset = TarFileUtil.getOctalBytes(this.devMajor, outbuf, offset,
@@ -1037,11 +1338,6 @@ public class TarEntry extends Object implements Cloneable {
             outbuf[offset++] = 0;
         }
 
-        // this sets the real size if the size is bigger than the 8GB barrier
-        if (size > 8589934592l) {
-            offset = TarFileUtil.setRealSize(size, outbuf, 124, 12);
-        }
-
         // this sets the offset field for the header
         offset = TarFileUtil.getLongOctalBytesMulti(m, outbuf, 369, 12);
 
@@ -1056,7 +1352,7 @@ public class TarEntry extends Object implements Cloneable {
          * <becker@informatik.hu-berlin.de>
          */
         if (this.tarFormat != USTAR_FORMAT) {
-            if (size > 8589934592l) {
+            if (largeSize) {
                 offset = TarFileUtil.setRealSize(size, outbuf, 124, 12);
             }
         }
@@ -0,0 +1,344 @@
+package org.openmole.tool.tar;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A lightweight view on the header of the current entry of a TarInputStream,
+ * given to a TarEntryVisitor (see TarInputStream.visitEntries). The view is
+ * reused from entry to entry: it holds a copy of the header record and the
+ * extended header records of the entry, and decodes a field only when its
+ * getter is called, so that listing an archive does not build a TarEntry, nor
+ * decode the names, per entry.
+ * <p>
+ * The fields are the ones TarInputStream.getNextEntry() would give: the GNU
+ * long names and the pax extended headers, global or not, are applied. A view
+ * is only valid during the call to the visitor, toTarEntry() builds an entry
+ * to keep.
+ *
+ * This library is under the Apache License Version 2.0
+ */
+public class TarEntryView {
+
+	private static final int MAGIC_OFFSET = 257;
+	private static final int SIZE_OFFSET = TarConstants.NAMELEN + TarConstants.MODELEN
+			+ TarConstants.UIDLEN + TarConstants.GIDLEN;
+	private static final int MODTIME_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN;
+	private static final int LINKFLAG_OFFSET = MODTIME_OFFSET + TarConstants.MODTIMELEN
+			+ TarConstants.CHKSUMLEN;
+	private static final int LINKNAME_OFFSET = LINKFLAG_OFFSET + 1;
+
+	private final byte[] header;
+	private boolean gnuFormat;
+
+	/* The records of the extended header of the entry, and of the global ones */
+	private final Map<String, String> records = new LinkedHashMap<String, String>();
+	private Map<String, String> globalHeaders;
+
+	/* The GNU long name of the entry, null if none */
+	private byte[] longName;
+
+	/* The decoded name, null until getName() is called */
+	private String name;
+
+	TarEntryView(int recordSize) {
+		this.header = new byte[recordSize];
+	}
+
+	/**
+	 * Copy the header record of the next entry, the records and the long name
+	 * read before it are kept.
+	 */
+	void setHeader(byte[] buf, int offset) throws InvalidHeaderException {
+		System.arraycopy(buf, offset, this.header, 0, this.header.length);
+		this.name = null;
+
+		byte[] h = this.header;
+		int magic = MAGIC_OFFSET;
+		boolean unix = h[magic] == 0 && h[magic + 1] == 0 && h[magic + 2] == 0
+				&& h[magic + 3] == 0 && h[magic + 4] == 0;
+		boolean ustar = h[magic] == 'u' && h[magic + 1] == 's' && h[magic + 2] == 't'
+				&& h[magic + 3] == 'a' && h[magic + 4] == 'r';
+
+		if (!unix && !ustar) {
+			throw new InvalidHeaderException("header magic is not 'ustar' or unix-style zeros");
+		}
+
+		this.gnuFormat = ustar && h[magic + 5] != 0;
+	}
+
+	void setGlobalHeaders(Map<String, String> globalHeaders) {
+		this.globalHeaders = globalHeaders;
+	}
+
+	void setLongName(byte[] longName) {
+		this.longName = longName;
+	}
+
+	/**
+	 * The records of the extended header which applies to the next entry.
+	 */
+	Map<String, String> getRecords() {
+		return this.records;
+	}
+
+	/**
+	 * Forget the records and the long name of the visited entry.
+	 */
+	void clear() {
+		this.records.clear();
+		this.longName = null;
+		this.name = null;
+	}
+
+	/**
+	 * Get an extended header record of this entry, from its extended header
+	 * or from a global one.
+	 *
+	 * @param key
+	 *            The record key.
+	 * @return The record value, or null if there is none.
+	 */
+	public String getExtendedHeader(String key) {
+		String value = this.records.isEmpty() ? null : this.records.get(key);
+		if (value == null && this.globalHeaders != null) {
+			value = this.globalHeaders.get(key);
+		}
+		return value;
+	}
+
+	/**
+	 * Get the name of this entry, decoded on the first call.
+	 *
+	 * @return The name.
+	 */
+	public String getName() {
+		if (this.name == null) {
+			String name = this.isSparse() ? this.getExtendedHeader(SparseMap.NAME) : null;
+			if (name == null) {
+				name = this.getExtendedHeader(PaxHeader.PATH);
+			}
+			if (name == null && this.longName != null) {
+				int length = this.longName.length;
+				// Remove the trailing null terminator
+				if (length > 0 && this.longName[length - 1] == 0) {
+					length--;
+				}
+				name = TarFileUtil.decodeName(this.longName, 0, length);
+			}
+			if (name == null) {
+				byte[] bytes = TarFileUtil.parseFileNameBytes(this.header, 0);
+				name = bytes == null ? "" : TarFileUtil.decodeName(bytes, 0, bytes.length);
+			}
+			this.name = name;
+		}
+		return this.name;
+	}
+
+	/**
+	 * Test the end of the name of this entry without decoding it, when the
+	 * name is in the header record.
+	 *
+	 * @param suffix
+	 *            The end of the name.
+	 * @return true if the name ends with suffix.
+	 */
+	public boolean nameEndsWith(String suffix) {
+		if (this.name != null || this.longName != null || !this.isASCII(suffix)
+				|| suffix.length() > TarConstants.NAMELEN
+				|| this.getExtendedHeader(PaxHeader.PATH) != null || this.isSparse()) {
+			return this.getName().endsWith(suffix);
+		}
+
+		int length = TarFileUtil.nameLength(this.header, TarConstants.NAMEOFFSET, TarConstants.NAMELEN);
+		int start = length - suffix.length();
+		if (start < 0) {
+			// The suffix may start in the prefix field
+			return this.getName().endsWith(suffix);
+		}
+
+		for (int i = 0; i < suffix.length(); i++) {
+			if (this.header[TarConstants.NAMEOFFSET + start + i] != (byte) suffix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare the name field of the header record, whatever the extended
+	 * headers, to an ASCII name.
+	 */
+	boolean isHeaderName(String name) {
+		int length = TarFileUtil.nameLength(this.header, TarConstants.NAMEOFFSET, TarConstants.NAMELEN);
+		if (length != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (this.header[TarConstants.NAMEOFFSET + i] != (byte) name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isASCII(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the link flag of this entry, one of the TarConstants.LF_ values.
+	 *
+	 * @return The link flag.
+	 */
+	public byte getLinkFlag() {
+		return this.header[LINKFLAG_OFFSET];
+	}
+
+	/**
+	 * Get the name of the target of this entry, if it is a link.
+	 *
+	 * @return The link name, empty if this entry is not a link.
+	 */
+	public String getLinkName() {
+		String linkName = this.getExtendedHeader(PaxHeader.LINKPATH);
+		if (linkName == null) {
+			linkName = TarFileUtil.parseName(this.header, LINKNAME_OFFSET, TarConstants.NAMELEN);
+		}
+		return linkName;
+	}
+
+	/**
+	 * @return True if this entry is a directory.
+	 */
+	public boolean isDirectory() {
+		if (this.getLinkFlag() == TarConstants.LF_DIR) {
+			return true;
+		}
+		return this.nameEndsWith("/");
+	}
+
+	/**
+	 * @return true if this entry is a sparse file, see TarEntry.isSparse().
+	 */
+	public boolean isSparse() {
+		return this.getExtendedHeader(SparseMap.MAJOR) != null
+				|| this.getExtendedHeader(SparseMap.MAP) != null;
+	}
+
+	/**
+	 * Get the size of this entry, the real size of a sparse file.
+	 *
+	 * @return The size.
+	 * @throws InvalidHeaderException
+	 *             If a size record is not a number.
+	 */
+	public long getSize() throws InvalidHeaderException {
+		if (this.isSparse()) {
+			String realSize = this.getExtendedHeader(SparseMap.REALSIZE);
+			if (realSize == null) {
+				realSize = this.getExtendedHeader(SparseMap.SIZE);
+			}
+			if (realSize != null) {
+				return parseLong(SparseMap.REALSIZE, realSize);
+			}
+		}
+		return this.getStoredSize();
+	}
+
+	/**
+	 * Get the size field of the header record, whatever the extended headers.
+	 */
+	long getHeaderSize() {
+		if (this.gnuFormat) {
+			return TarFileUtil.getSize(this.header, SIZE_OFFSET, TarConstants.SIZELEN);
+		}
+		return TarFileUtil.parseOctal(this.header, SIZE_OFFSET, TarConstants.SIZELEN);
+	}
+
+	/**
+	 * Get the size of the data of this entry in the archive.
+	 */
+	long getStoredSize() throws InvalidHeaderException {
+		String size = this.getExtendedHeader(PaxHeader.SIZE);
+		if (size != null) {
+			return parseLong(PaxHeader.SIZE, size);
+		}
+
+		return this.getHeaderSize();
+	}
+
+	/**
+	 * @return The mode of this entry.
+	 */
+	public int getMode() {
+		return (int) TarFileUtil.parseOctal(this.header, TarConstants.NAMELEN, TarConstants.MODELEN);
+	}
+
+	/**
+	 * Get the modification time of this entry.
+	 *
+	 * @return The modification time, in milliseconds since the epoch.
+	 * @throws InvalidHeaderException
+	 *             If the mtime record is not a number.
+	 */
+	public long getLastModified() throws InvalidHeaderException {
+		String mtime = this.getExtendedHeader(PaxHeader.MTIME);
+		if (mtime != null) {
+			try {
+				return PaxHeader.parseTime(mtime).toMillis();
+			} catch (NumberFormatException ex) {
+				throw new InvalidHeaderException("bad value for extended header record "
+						+ PaxHeader.MTIME + ": " + mtime);
+			}
+		}
+		return TarFileUtil.parseOctal(this.header, MODTIME_OFFSET, TarConstants.MODTIMELEN) * 1000;
+	}
+
+	/**
+	 * Get the CRC32 of the entry data, see TarEntry.getChecksum().
+	 *
+	 * @return The CRC32 value, or -1 if the entry has no checksum.
+	 */
+	public long getChecksum() throws InvalidHeaderException {
+		String value = this.getExtendedHeader(PaxHeader.CHECKSUM);
+		return value == null ? -1 : PaxHeader.parseChecksum(value);
+	}
+
+	/**
+	 * Build the full entry of this header, as TarInputStream.getNextEntry()
+	 * would return it.
+	 *
+	 * @return A new entry.
+	 */
+	public TarEntry toTarEntry() throws InvalidHeaderException {
+		TarEntry entry = new TarEntry(this.header, 0);
+		if (this.longName != null) {
+			int length = this.longName.length;
+			if (length > 0 && this.longName[length - 1] == 0) {
+				length--;
+			}
+			entry.setName(TarFileUtil.decodeName(this.longName, 0, length));
+		}
+		if (this.globalHeaders != null) {
+			PaxHeader.apply(entry, this.globalHeaders);
+		}
+		PaxHeader.apply(entry, this.records);
+		return entry;
+	}
+
+	private static long parseLong(String key, String value) throws InvalidHeaderException {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			throw new InvalidHeaderException("bad value for extended header record "
+					+ key + ": " + value);
+		}
+	}
+
+}
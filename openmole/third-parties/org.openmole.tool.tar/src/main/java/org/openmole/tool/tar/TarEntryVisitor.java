@@ -0,0 +1,22 @@
+package org.openmole.tool.tar;
+
+import java.io.IOException;
+
+/**
+ * Visits the entries of an archive, see TarInputStream.visitEntries().
+ *
+ * This library is under the Apache License Version 2.0
+ */
+public interface TarEntryVisitor {
+
+	/**
+	 * Visit an entry. The data of the entry can be read from the
+	 * TarInputStream during the call, the data left is skipped.
+	 *
+	 * @param entry
+	 *            The header of the entry, only valid during the call.
+	 * @return false to stop the visit.
+	 */
+	boolean visit(TarEntryView entry) throws IOException;
+
+}
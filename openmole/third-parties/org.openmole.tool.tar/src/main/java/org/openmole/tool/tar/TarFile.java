@@ -0,0 +1,361 @@
+package org.openmole.tool.tar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TarFile class gives random access to the members of an uncompressed tar
+ * archive stored in a file. The headers are scanned once when the TarFile is
+ * opened: entry bodies are skipped by computing the position of the next
+ * header, so building the index only reads one record per entry.
+ * <p>
+ * Each entry of the index knows the offset of its data in the archive (see
+ * TarEntry.getDataOffset()), so getInputStream() reads a single member without
+ * touching the rest of the archive. Reads are positional, several members can
+ * be read concurrently.
+ */
+public class TarFile implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(TarFile.class.getName());
+
+	private final FileChannel channel;
+	private final int recordSize;
+	private final List<TarEntry> entries = new ArrayList<TarEntry>();
+	private final Map<String, TarEntry> index = new HashMap<String, TarEntry>();
+
+	public TarFile(File file) throws IOException {
+		this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	public TarFile(FileChannel channel) throws IOException {
+		this(channel, TarConstants.DEFAULT_RCDSIZE);
+	}
+
+	public TarFile(FileChannel channel, int recordSize) throws IOException {
+		this.channel = channel;
+		this.recordSize = recordSize;
+
+		try {
+			this.scan();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the underlying channel.
+	 */
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	/**
+	 * Get the entries of the archive, in archive order.
+	 *
+	 * @return The entries of the archive.
+	 */
+	public List<TarEntry> getEntries() {
+		return Collections.unmodifiableList(this.entries);
+	}
+
+	/**
+	 * Get an entry of the archive by name. If the archive contains several
+	 * entries with the same name, the last one is returned, as tar would do
+	 * on extraction.
+	 *
+	 * @param name
+	 *            The name of the entry.
+	 * @return The entry, or null if the archive has no such entry.
+	 */
+	public TarEntry getEntry(String name) {
+		return this.index.get(name);
+	}
+
+	/**
+	 * Get a stream on the data of an entry. Only the entry's data is read, the
+	 * holes of a sparse entry are read as zeros.
+	 *
+	 * @param entry
+	 *            An entry of this archive.
+	 * @return A stream reading the entry's data.
+	 */
+	public InputStream getInputStream(TarEntry entry) throws IOException {
+		if (entry.getDataOffset() < 0) {
+			throw new IOException("entry '" + entry.getName()
+					+ "' has not been read from a seekable archive");
+		}
+
+		if (entry.isSparse()) {
+			long[] map = entry.getSparseMap();
+			return new SparseInputStream(new EntryInputStream(this.channel,
+					entry.getDataOffset(), SparseMap.dataSize(map)), map, entry.getSize());
+		}
+
+		return new EntryInputStream(this.channel, entry.getDataOffset(),
+				entry.getSize());
+	}
+
+	/**
+	 * Transfer the data of an entry to a channel with FileChannel.transferTo(),
+	 * without copying it through the Java heap when the target is a file.
+	 * <p>
+	 * When the target is a file, only the data segments of a sparse entry are
+	 * written, at their offsets from the current position of the target, so
+	 * that the holes are holes in the file as well. Other targets receive the
+	 * holes as zeros.
+	 * 
+	 * @param entry
+	 *            An entry of this archive.
+	 * @param target
+	 *            The channel to write the data to.
+	 * @return The number of bytes transfered, the size of the entry.
+	 */
+	public long transferTo(TarEntry entry, WritableByteChannel target) throws IOException {
+		if (entry.getDataOffset() < 0) {
+			throw new IOException("entry '" + entry.getName()
+					+ "' has not been read from a seekable archive");
+		}
+
+		if (!entry.isSparse()) {
+			TarBuffer.transferFully(this.channel, entry.getDataOffset(), entry.getSize(), target);
+		} else if (target instanceof FileChannel) {
+			FileChannel file = (FileChannel) target;
+			long[] map = entry.getSparseMap();
+			long start = file.position();
+			long position = entry.getDataOffset();
+
+			for (int i = 0; i < map.length; i += 2) {
+				file.position(start + map[i]);
+				TarBuffer.transferFully(this.channel, position, map[i + 1], file);
+				position += map[i + 1];
+			}
+
+			// The file ends with a hole
+			long end = start + entry.getSize();
+			if (file.size() < end) {
+				file.write(ByteBuffer.wrap(new byte[1]), end - 1);
+			}
+			file.position(end);
+		} else {
+			InputStream in = this.getInputStream(entry);
+			byte[] buf = new byte[TarConstants.LARGE_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buf, 0, buf.length)) != -1) {
+				TarBuffer.writeFully(target, ByteBuffer.wrap(buf, 0, read));
+			}
+		}
+
+		return entry.getSize();
+	}
+
+	/**
+	 * Read all the headers of the archive and build the entry index.
+	 */
+	private void scan() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(this.recordSize);
+		long position = 0;
+		String longName = null;
+		Map<String, String> extendedHeader = null;
+		Map<String, String> globalHeaders = null;
+
+		while (true) {
+			((Buffer) header).clear();
+			if (!this.readFully(header, position)) {
+				break;
+			}
+
+			byte[] headerBuf = header.array();
+			if (isEOFRecord(headerBuf)) {
+				break;
+			}
+
+			TarEntry entry;
+			try {
+				entry = new TarEntry(headerBuf);
+			} catch (InvalidHeaderException ex) {
+				throw new InvalidHeaderException("bad header at offset "
+						+ position + ", " + ex.getMessage());
+			}
+
+			long dataOffset = position + this.recordSize;
+			long dataSize = entry.getSize();
+
+			if (entry.isGNULongNameEntry() || entry.isPaxHeader() || entry.isGlobalPaxHeader()) {
+				position = dataOffset + this.recordCount(dataSize) * this.recordSize;
+				byte[] data = this.readData(dataOffset, dataSize);
+
+				if (entry.isGNULongNameEntry()) {
+					longName = this.readLongName(data);
+				} else if (entry.isPaxHeader()) {
+					extendedHeader = new HashMap<String, String>();
+					PaxHeader.parse(data, 0, data.length, extendedHeader);
+				} else {
+					if (globalHeaders == null) {
+						globalHeaders = new HashMap<String, String>();
+					}
+					PaxHeader.parse(data, 0, data.length, globalHeaders);
+				}
+				continue;
+			}
+
+			if (longName != null) {
+				entry.setName(longName);
+				longName = null;
+			}
+
+			if (globalHeaders != null) {
+				PaxHeader.apply(entry, globalHeaders);
+			}
+
+			if (extendedHeader != null) {
+				PaxHeader.apply(entry, extendedHeader);
+				extendedHeader = null;
+			}
+
+			dataSize = entry.getStoredSize();
+			position = dataOffset + this.recordCount(dataSize) * this.recordSize;
+
+			// The segment list of a sparse entry is at the start of its data
+			if (entry.isSparse() && entry.getSparseMap() == null) {
+				EntryInputStream data = new EntryInputStream(this.channel, dataOffset, dataSize);
+				long[] map = SparseMap.read(data, this.recordSize);
+				SparseMap.check(map, entry.getSize());
+				entry.setSparseMap(map);
+				dataOffset = data.position;
+				dataSize = SparseMap.dataSize(map);
+			}
+
+			entry.setDataOffset(dataOffset);
+
+			if (logger.isLoggable(Level.FINEST)) {
+				logger.log(Level.FINEST, "TarFile: INDEX ENTRY '"
+						+ entry.getName() + "' at " + dataOffset + " size = "
+						+ dataSize);
+			}
+
+			this.entries.add(entry);
+			this.index.put(entry.getName(), entry);
+		}
+	}
+
+	private byte[] readData(long offset, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new InvalidHeaderException("header entry at offset " + offset
+					+ " is too large: " + size + " bytes");
+		}
+
+		ByteBuffer data = ByteBuffer.allocate((int) size);
+		if (!this.readFully(data, offset)) {
+			throw new IOException("unexpected EOF while reading header entry at offset " + offset);
+		}
+
+		return data.array();
+	}
+
+	private String readLongName(byte[] name) {
+		int length = name.length;
+		// Remove trailing null terminator
+		while (length > 0 && name[length - 1] == 0) {
+			length--;
+		}
+
+		return TarFileUtil.decodeName(name, 0, length);
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = this.channel.read(buffer, position + buffer.position());
+			if (read == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long recordCount(long size) {
+		return (size + this.recordSize - 1) / this.recordSize;
+	}
+
+	private static boolean isEOFRecord(byte[] record) {
+		for (int i = 0; i < record.length; ++i) {
+			if (record[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A stream on a range of the archive, read with positional reads so that
+	 * it does not depend on the position of the channel.
+	 */
+	private static class EntryInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+		private final byte[] oneBuf = new byte[1];
+
+		EntryInputStream(FileChannel channel, long offset, long size) {
+			this.channel = channel;
+			this.position = offset;
+			this.end = offset + size;
+		}
+
+		@Override
+		public int available() {
+			long remaining = this.end - this.position;
+			return remaining > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int num = this.read(this.oneBuf, 0, 1);
+			return num == -1 ? -1 : this.oneBuf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int numToRead) throws IOException {
+			if (this.position >= this.end) {
+				return -1;
+			}
+
+			if (numToRead > this.end - this.position) {
+				numToRead = (int) (this.end - this.position);
+			}
+
+			int read = this.channel.read(ByteBuffer.wrap(buf, offset, numToRead), this.position);
+			if (read == -1) {
+				throw new IOException("unexpected EOF with "
+						+ (this.end - this.position) + " bytes unread");
+			}
+
+			this.position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long numToSkip) {
+			long skipped = Math.min(Math.max(numToSkip, 0), this.end - this.position);
+			this.position += skipped;
+			return skipped;
+		}
+
+	}
+
+}
@@ -1,7 +1,6 @@
 package org.openmole.tool.tar;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 
 /**
  * These are the standard static helpers for parsing/writing the header data.
@@ -77,34 +76,43 @@ public class TarFileUtil {
 	public static int getFileNameBytes(String newName, byte[] outbuf,
 			boolean isGNUTar) throws InvalidHeaderException {
 
-		if (isGNUTar == false && newName.length() > 100) {
+		// Non ASCII names are encoded once, ASCII names are copied char by
+		// char without any intermediate array
+		byte[] encoded = isASCII(newName) ? null : newName.getBytes(StandardCharsets.UTF_8);
+		int length = encoded == null ? newName.length() : encoded.length;
+
+		if (isGNUTar == false && length > TarConstants.NAMELEN) {
 			// Locate a pathname "break" prior to the maximum name length...
-			int index = newName.indexOf("/", newName.length() - 100);
+			int index = -1;
+			for (int i = length - TarConstants.NAMELEN; i < length; ++i) {
+				if (byteAt(newName, encoded, i) == '/') {
+					index = i;
+					break;
+				}
+			}
+
 			if (index == -1) {
 				throw new InvalidHeaderException(
 						"file name is greater than 100 characters, " + newName);
 			}
 
-			// Get the "suffix subpath" of the name.
-			String name = newName.substring(index + 1);
-
-			// Get the "prefix subpath", or "prefix", of the name.
-			String prefix = newName.substring(0, index);
-			if (prefix.length() > TarConstants.PREFIXLEN) {
+			// The "prefix subpath", or "prefix", of the name.
+			if (index > TarConstants.PREFIXLEN) {
 				throw new InvalidHeaderException(
 				"file prefix is greater than 155 characters");
 			}
 
-			getNameBytes(name, outbuf, TarConstants.NAMEOFFSET,
-					TarConstants.NAMELEN);
+			// The "suffix subpath" of the name.
+			getNameBytes(newName, encoded, index + 1, length, outbuf,
+					TarConstants.NAMEOFFSET, TarConstants.NAMELEN);
 
-			getNameBytes(prefix, outbuf, TarConstants.PREFIXOFFSET,
-					TarConstants.PREFIXLEN);
+			getNameBytes(newName, encoded, 0, index, outbuf,
+					TarConstants.PREFIXOFFSET, TarConstants.PREFIXLEN);
 
 		} else {
 
-			getNameBytes(newName, outbuf, TarConstants.NAMEOFFSET,
-					TarConstants.NAMELEN);
+			getNameBytes(newName, encoded, 0, length, outbuf,
+					TarConstants.NAMEOFFSET, TarConstants.NAMELEN);
 		}
 
 		// The offset, regardless of the format, is now the end of the
@@ -150,37 +158,23 @@ public class TarFileUtil {
 	public static int getLongOctalBytesMulti(long value, byte[] buf, int offset,
 			int length) {
 
-		byte[] temp = new byte[length + 1];
-		getOctalBytes(value, temp, 0, length + 1, TarConstants.ZERO_BYTE);
+		// Same bytes as formatting the value on length + 1 zero padded octal
+		// digits and keeping all but the last digit behind a leading '0'.
+		long val = value > 0 ? value : 0;
 
-		for (int m = 0; m < length + 1; m++) {
-			if (temp[m] == 32) {
-				temp[m] = (byte) 48;
-			}
-		}
-
-		for (int i = 0; i < length; i++) {
-			if (i > 0) {
-				buf[offset + i] = temp[i - 1];
-			} else {
-				buf[offset + i] = (byte) 48;
-			}
+		buf[offset] = TarConstants.ZERO_BYTE;
+		for (int i = 1; i < length; i++) {
+			int shift = 3 * (length - i);
+			long digit = shift < 64 ? (val >>> shift) & 7 : 0;
+			buf[offset + i] = (byte) (TarConstants.ZERO_BYTE + digit);
 		}
-		/*
-		 * for(int i=0;i<length;i++){
-		 * 
-		 * if(i>0){ buf[offset+i]=temp[i]; }else if(i==length+2) //break;
-		 * buf[offset+i]=(byte) 0; else buf[offset+i]=(byte) 48; }
-		 */
-
-		// Free memory
-		temp = null;
 
 		return offset + length;
 	}
 
 	/**
-	 * Move the bytes from the name StringBuffer into the header's buffer.
+	 * Move the UTF-8 bytes of a name into the header's buffer. The name is
+	 * truncated if it does not fit.
 	 * 
 	 * @param header
 	 *            The header buffer into which to copy the name.
@@ -193,11 +187,32 @@ public class TarFileUtil {
 	public static int getNameBytes(String name, byte[] buf, int offset,
 			int length) {
 
+		if (isASCII(name)) {
+			return getNameBytes(name, null, 0, name.length(), buf, offset, length);
+		} else {
+			byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+			return getNameBytes(name, encoded, 0, encoded.length, buf, offset, length);
+		}
+	}
+
+	/**
+	 * Move the bytes from..to of a name into the header's buffer, either from
+	 * its encoded bytes or, if encoded is null, from the chars of an ASCII
+	 * name.
+	 */
+	private static int getNameBytes(String name, byte[] encoded, int from,
+			int to, byte[] buf, int offset, int length) {
+
 		int i = 0;
 
-		int nameLen = name.length();
-		for (i = 0; i < length && i < nameLen; ++i) {
-			buf[offset + i] = (byte) name.charAt(i);
+		int nameLen = to - from;
+		if (encoded != null) {
+			i = Math.min(length, nameLen);
+			System.arraycopy(encoded, from, buf, offset, i);
+		} else {
+			for (i = 0; i < length && i < nameLen; ++i) {
+				buf[offset + i] = (byte) name.charAt(from + i);
+			}
 		}
 
 		// Leave as a prefix for loop...
@@ -208,6 +223,32 @@ public class TarFileUtil {
 		return offset + length;
 	}
 
+	private static byte byteAt(String name, byte[] encoded, int i) {
+		return encoded == null ? (byte) name.charAt(i) : encoded[i];
+	}
+
+	/**
+	 * @return true if all the chars of the string are ASCII, so that its
+	 *         UTF-8 encoding is one byte per char.
+	 */
+	public static boolean isASCII(String name) {
+		int nameLen = name.length();
+		for (int i = 0; i < nameLen; ++i) {
+			if (name.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The length in bytes of the UTF-8 encoding of a name, as it is
+	 *         written in the headers.
+	 */
+	public static int getNameByteLength(String name) {
+		return isASCII(name) ? name.length() : name.getBytes(StandardCharsets.UTF_8).length;
+	}
+
 	/**
 	 * Parse an octal integer from a header buffer.
 	 * 
@@ -267,26 +308,19 @@ public class TarFileUtil {
 			leftIdx++;
 		} else {
 
-			// We're going to shove all the digits of the long into a byte ArrayList,
-			// then we're going to put them back in rev order into the buffer. 
-			// This isn't efficient and should probably be rewritten when I find some
-			// time.
+			// Count the digits, then write them from the last one
+			int digits = 0;
+			for (long val = value; val > 0; val = val >> 3) {
+				digits++;
+			}
 
-			//TODO: Optimize
-			ArrayList<Byte> vals = new ArrayList<Byte>();
 			long val = value;
-			while(val > 0) {
-				vals.add((byte) (TarConstants.ZERO_BYTE + (byte) (val & 7)));
+			for (int x = digits - 1; x >= 0; x--) {
+				buf[offset + x] = (byte) (TarConstants.ZERO_BYTE + (byte) (val & 7));
 				val = val >> 3;
 			}
 
-			// Now let's iterate in reverse through it and put it on the buffer
-			for(int x = vals.size() - 1; x >= 0; x--) {
-				buf[offset + leftIdx] = vals.get(x);
-				leftIdx++;
-			}
-			
-			vals.clear();
+			leftIdx = digits;
 		}
 
 
@@ -335,25 +369,16 @@ public class TarFileUtil {
 	 */
 	public static long getSize(byte[] header, int offset, int length) {
 
-		long test = parseOctal(header, offset, length);
-		if (test <= 0 && header[offset] == (byte) 128) {
-
-			byte[] last = new byte[length];
-
-			for (int i = 0; i < length; i++) {
-				last[i] = header[offset + i];
+		if (header[offset] == (byte) 128) {
+			// base-256, big endian after the marker byte
+			long rSize = 0;
+			for (int i = 1; i < length; i++) {
+				rSize = (rSize << 8) | (header[offset + i] & BYTE_MASK);
 			}
-			last[0] = (byte) 0;
-
-			long rSize = new BigInteger(last).longValue();
-
-			// Free memory
-			last = null;
-
 			return rSize;
-
 		}
-		return test;
+
+		return parseOctal(header, offset, length);
 	}
 
 	/**
@@ -372,26 +397,40 @@ public class TarFileUtil {
 	 * @return The header's entry name.
 	 */
 	public static String parseFileName(byte[] header) {
+		byte[] name = parseFileNameBytes(header, 0);
+		return decodeName(name, 0, name.length);
+	}
 
-		StringBuilder result = new StringBuilder(256);
+	/**
+	 * Get the raw bytes of the file name of a header, "prefix/name" for
+	 * 'ustar' names.
+	 * 
+	 * @param header
+	 *            The buffer holding the header.
+	 * @param offset
+	 *            The offset of the header in the buffer.
+	 * @return The header's entry name bytes.
+	 */
+	public static byte[] parseFileNameBytes(byte[] header, int offset) {
+		int nameLen = nameLength(header, offset + TarConstants.NAMEOFFSET,
+				TarConstants.NAMELEN);
 
 		// If header[345] is not equal to zero, then it is the "prefix"
 		// that 'ustar' defines. It must be prepended to the "normal"
 		// name field. We are responsible for the separating '/'.
 		//
-		if (header[345] != 0) {
-			for (int i = 345; i < 500 && header[i] != 0; ++i) {
-				result.append((char) header[i]);
-			}
-
-			result.append("/");
-		}
+		int prefixLen = nameLength(header, offset + TarConstants.PREFIXOFFSET,
+				TarConstants.PREFIXLEN);
 
-		for (int i = 0; i < 100 && header[i] != 0; ++i) {
-			result.append((char) header[i]);
+		if (prefixLen == 0) {
+			return copyName(header, offset + TarConstants.NAMEOFFSET, nameLen);
 		}
 
-		return result.toString();
+		byte[] result = new byte[prefixLen + 1 + nameLen];
+		System.arraycopy(header, offset + TarConstants.PREFIXOFFSET, result, 0, prefixLen);
+		result[prefixLen] = '/';
+		System.arraycopy(header, offset + TarConstants.NAMEOFFSET, result, prefixLen + 1, nameLen);
+		return result;
 	}
 
 	/**
@@ -406,17 +445,48 @@ public class TarFileUtil {
 	 * @return The header's entry name.
 	 */
 	public static String parseName(byte[] header, int offset, int length) {
-		StringBuilder result = new StringBuilder(length);
+		return decodeName(header, offset, nameLength(header, offset, length));
+	}
+
+	/**
+	 * Get the length of a NUL terminated name field.
+	 */
+	public static int nameLength(byte[] header, int offset, int length) {
+		int i = 0;
+		while (i < length && header[offset + i] != 0) {
+			++i;
+		}
+		return i;
+	}
+
+	/**
+	 * Copy the first length bytes of a name field, so that the name can be
+	 * decoded later, when the header buffer has been reused.
+	 * 
+	 * @return The name bytes, or null if the name is empty.
+	 */
+	public static byte[] copyName(byte[] header, int offset, int length) {
+		if (length == 0) {
+			return null;
+		}
+
+		byte[] result = new byte[length];
+		System.arraycopy(header, offset, result, 0, length);
+		return result;
+	}
 
+	/**
+	 * Decode name bytes. The names are stored in UTF-8, ASCII names, the most
+	 * frequent, are decoded with a byte to char copy.
+	 */
+	public static String decodeName(byte[] name, int offset, int length) {
 		int end = offset + length;
 		for (int i = offset; i < end; ++i) {
-			if (header[i] == 0) {
-				break;
+			if (name[i] < 0) {
+				return new String(name, offset, length, StandardCharsets.UTF_8);
 			}
-			result.append((char) header[i]);
 		}
-
-		return result.toString();
+		return new String(name, offset, length, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -467,26 +537,13 @@ public class TarFileUtil {
 	 */
 	public static int setRealSize(long value, byte[] buf, int offset, int length) {
 
-		BigInteger Rsize = new BigInteger("" + value);
-		byte[] last = new byte[12];
-		byte[] copier = Rsize.toByteArray();
-		for (int i = 0; i < copier.length; i++) {
-			last[last.length - copier.length + i] = copier[i];
+		// base-256, big endian after the marker byte
+		long val = value;
+		for (int i = length - 1; i > 0; i--) {
+			buf[offset + i] = (byte) val;
+			val = val >>> 8;
 		}
-		last[0] = (byte) 128;
-
-		/*
-		 * for(int i=0;i<last.length;i++){ //System.out.print(i+":");
-		 * //printBinary(last[i]); }
-		 */
-
-		int lastLen = last.length;
-		for (int i = 0; i < lastLen; i++) {
-			buf[offset + i] = last[i];
-		}
-
-		last = null;
-		copier = null;
+		buf[offset] = (byte) 128;
 
 		return offset + length;
 	}
@@ -1,6 +1,6 @@
 package org.openmole.tool.tar;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
@@ -8,7 +8,9 @@ import java.util.zip.GZIPOutputStream;
 /**
  * Outputs tar.gz files. Added functionality that it doesn't need to know the
  * size of an entry. If an entry has zero size when it is put in the Tar, then
- * it buffers it until it's closed and it knows the size.
+ * it buffers it until it's closed and it knows the size. Small entries are
+ * buffered in memory, larger ones are spilled to a temporary file (see
+ * EntryBuffer).
  * 
  * This library is under the Apache License Version 2.0
  * 
@@ -23,22 +25,41 @@ public class TarGzOutputStream extends TarOutputStream {
 
 	private TarOutputStream tos = null;
 	private GZIPOutputStream gzip = null;
-	private ByteArrayOutputStream bos = null;
+	private EntryBuffer bos = null;
 	private TarEntry currentEntry = null;
 
 	public TarGzOutputStream(OutputStream out) throws IOException {
+		this(out, EntryBuffer.DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param memoryThreshold
+	 *            The size above which an entry of unknown size is buffered on
+	 *            disk rather than in memory.
+	 * @param tempDirectory
+	 *            The directory of the buffer files, null for the default
+	 *            temporary directory.
+	 */
+	public TarGzOutputStream(OutputStream out, int memoryThreshold, File tempDirectory) throws IOException {
 		super(null);
 		this.gzip = new GZIPOutputStream(out);
 		this.tos = new TarOutputStream(this.gzip);
-		this.bos = new ByteArrayOutputStream();
+		this.bos = new EntryBuffer(memoryThreshold, tempDirectory);
 	}
 
 	// proxy all methods, but buffer if unknown size
 
 	@Override
 	public void close() throws IOException {
-		this.tos.close();
-		this.gzip.finish();
+		try {
+			if (this.currentEntry != null) {
+				closeEntry();
+			}
+			this.tos.close();
+			this.gzip.finish();
+		} finally {
+			this.bos.close();
+		}
 	}
 
 	@Override
@@ -46,15 +67,23 @@ public class TarGzOutputStream extends TarOutputStream {
 		if (this.currentEntry == null) {
 			this.tos.closeEntry();
 		} else {
-			this.currentEntry.setSize(bos.size());
-			this.tos.putNextEntry(this.currentEntry);
-			this.bos.writeTo(this.tos);
-			this.tos.closeEntry();
-			this.currentEntry = null;
-			this.bos = new ByteArrayOutputStream();
+			try {
+				this.currentEntry.setSize(this.bos.size());
+				this.tos.putNextEntry(this.currentEntry);
+				this.bos.writeTo(this.tos);
+				this.tos.closeEntry();
+			} finally {
+				this.currentEntry = null;
+				this.bos.reset();
+			}
 		}
 	}
 
+	@Override
+	public void flush() throws IOException {
+		this.tos.flush();
+	}
+
 	@Override
 	public void finish() throws IOException {
 		if (this.currentEntry != null) {
@@ -4,6 +4,13 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,6 +18,12 @@ import java.util.logging.Logger;
  * The TarInputStream reads a UNIX/Gnutar/Ustar tar archive as an InputStream.
  * Methods are provided to position at each successive entry in the archive, and
  * the read each entry as a normal input stream using read().
+ * <p>
+ * The data of the entries with a checksum (see TarEntry.setChecksum) is
+ * checked while it is read: reading the last byte of an entry whose data does
+ * not match its checksum throws an IOException, so that a corrupted archive
+ * is detected while it is extracted, in the same pass. The data which is
+ * skipped is not checked.
  * 
  * This library is under the Apache License Version 2.0
  * 
@@ -33,14 +46,40 @@ public class TarInputStream extends FilterInputStream {
 	 * sizes greater than 2GB (longs versus ints).
 	 */
 	private long entrySize;
+	/** The records of the pax global headers read so far, null if none. */
+	private Map<String, String> globalHeaders;
 	private long entryOffset;
 
 	private byte[] oneBuf;
-	private byte[] readBuf;
+
+	/*
+	 * Unread part of the current record, as a view on the TarBuffer's block
+	 * buffer, so that entry data is copied only once, from block to caller.
+	 */
+	private int recordOffset;
+	private int recordRemaining;
 
 	private TarBuffer buffer;
 	private TarEntry currEntry;
 
+	/*
+	 * The content of the current entry if it is sparse, read from the raw
+	 * entry data.
+	 */
+	private SparseInputStream sparse;
+
+	/*
+	 * The CRC32 of the data of the current entry read so far, checking is
+	 * false if the entry has no checksum or if some of its data has been
+	 * skipped.
+	 */
+	private final CRC32 checksum = new CRC32();
+	private boolean checking;
+	private long expectedChecksum;
+
+	/* The header view given to the visitors, reused from entry to entry */
+	private TarEntryView view;
+
 	public TarInputStream(InputStream is) {
 		this(is, TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE);
 	}
@@ -50,12 +89,47 @@ public class TarInputStream extends FilterInputStream {
 	}
 
 	public TarInputStream(InputStream is, int blockSize, int recordSize) {
+		this(is, new TarBuffer(is, blockSize, recordSize));
+	}
+
+	/**
+	 * @param bufferSize
+	 *            The size of the reads, rounded up to a multiple of blockSize
+	 *            (see TarBuffer). The data following the archive in is may be
+	 *            read.
+	 */
+	public TarInputStream(InputStream is, int blockSize, int recordSize, int bufferSize) {
+		this(is, new TarBuffer(is, blockSize, recordSize, bufferSize));
+	}
+
+	public TarInputStream(SeekableByteChannel channel) {
+		this(channel, TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE);
+	}
+
+	public TarInputStream(SeekableByteChannel channel, int blockSize) {
+		this(channel, blockSize, TarConstants.DEFAULT_RCDSIZE);
+	}
+
+	/**
+	 * Read an archive from a channel. Skipped entry data is not read, the
+	 * position of the channel is moved instead.
+	 */
+	public TarInputStream(SeekableByteChannel channel, int blockSize, int recordSize) {
+		this(null, new TarBuffer(channel, blockSize, recordSize));
+	}
+
+	public TarInputStream(SeekableByteChannel channel, int blockSize, int recordSize, int bufferSize) {
+		this(null, new TarBuffer(channel, blockSize, recordSize, bufferSize));
+	}
+
+	private TarInputStream(InputStream is, TarBuffer buffer) {
 
 		super(is);
 
-		this.buffer = new TarBuffer(is, blockSize, recordSize);
+		this.buffer = buffer;
 
-		this.readBuf = null;
+		this.recordOffset = 0;
+		this.recordRemaining = 0;
 		this.oneBuf = new byte[1];
 		this.hasHitEOF = false;
 	}
@@ -72,6 +146,9 @@ public class TarInputStream extends FilterInputStream {
 	 */
 	@Override
 	public int available() throws IOException {
+		if (this.sparse != null) {
+			return this.sparse.available();
+		}
 		if (this.entrySize - this.entryOffset > Integer.MAX_VALUE) {
 			return Integer.MAX_VALUE;
 		}
@@ -111,6 +188,65 @@ public class TarInputStream extends FilterInputStream {
 		buf = null;
 	}
 
+	/**
+	 * Copies the contents of the current tar archive entry into a file. The
+	 * holes of a sparse entry are not written, the file is extended to the
+	 * entry size, so that they are holes in the file as well.
+	 * 
+	 * @param out
+	 *            The channel of the file, written from its current position.
+	 */
+	public void copyEntryContents(FileChannel out) throws IOException {
+		byte[] buf = new byte[TarConstants.LARGE_BUFFER_SIZE];
+		long start = out.position();
+
+		if (this.sparse == null) {
+			long position = start;
+			int numRead = -1;
+			while ((numRead = this.read(buf, 0, buf.length)) > -1) {
+				writeFully(out, buf, numRead, position);
+				position += numRead;
+			}
+			out.position(position);
+			return;
+		}
+
+		// Skipping the holes does not read the archive
+		long[] map = this.currEntry.getSparseMap();
+		long offset = 0;
+		for (int i = 0; i < map.length; i += 2) {
+			offset += this.sparse.skip(map[i] - offset);
+			long position = start + offset;
+			long left = map[i + 1];
+			while (left > 0) {
+				int numRead = this.sparse.read(buf, 0, (int) Math.min(buf.length, left));
+				if (numRead == -1) {
+					throw new IOException("unexpected EOF with " + left + " bytes unread");
+				}
+				writeFully(out, buf, numRead, position);
+				position += numRead;
+				offset += numRead;
+				left -= numRead;
+			}
+		}
+
+		// The file ends with a hole
+		long end = start + this.currEntry.getSize();
+		if (out.size() < end) {
+			writeFully(out, new byte[1], 1, end - 1);
+		}
+		out.position(end);
+		this.sparse.skip(end - start - offset);
+	}
+
+	private static void writeFully(FileChannel out, byte[] buf, int length, long position)
+			throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+		while (bb.hasRemaining()) {
+			out.write(bb, position + bb.position());
+		}
+	}
+
 	/**
 	 * Get the number of bytes into the current TarEntry. This method returns
 	 * the number of bytes that have been read from the current TarEntry's data.
@@ -139,27 +275,11 @@ public class TarInputStream extends FilterInputStream {
 			return null;
 		}
 
-		if (this.currEntry != null) {
+		this.skipEntry();
 
-			long numToSkip = this.entrySize - this.entryOffset;
-
-			if (logger.isLoggable(Level.FINEST)) {
-				logger.log(Level.FINEST, "TarInputStream: SKIP currENTRY '"
-						+ this.currEntry.getName() + "' SZ " + this.entrySize
-						+ " OFF " + this.entryOffset + "  skipping "
-						+ numToSkip + " bytes");
-			}
-
-			if (numToSkip > 0) {
-				this.skip(numToSkip);
-			}
-
-			// Starting a new file, free up resources
-			this.currEntry = null;
-			this.readBuf = null;
-		}
-
-		byte[] headerBuf = this.buffer.readRecord();
+		// The header is parsed in place, in the block buffer
+		int headerOffset = this.buffer.readRecordOffset();
+		byte[] headerBuf = headerOffset == -1 ? null : this.buffer.getBlockBuffer();
 
 		if (headerBuf == null) {
 			if (logger.isLoggable(Level.FINEST)) {
@@ -167,7 +287,7 @@ public class TarInputStream extends FilterInputStream {
 			}
 
 			this.hasHitEOF = true;
-		} else if (this.buffer.isEOFRecord(headerBuf)) {
+		} else if (this.buffer.isEOFRecord(headerBuf, headerOffset)) {
 
 			if (logger.isLoggable(Level.FINEST)) {
 				logger.log(Level.FINEST, "READ EOF RECORD");
@@ -183,7 +303,7 @@ public class TarInputStream extends FilterInputStream {
 			try {
 
 				// Create a new TarEntry
-				this.currEntry = new TarEntry(headerBuf);
+				this.currEntry = new TarEntry(headerBuf, headerOffset);
 
 				if (logger.isLoggable(Level.FINEST)) {
 					logger.log(Level.FINEST, "TarInputStream: SET CURR ENTRY '"
@@ -194,6 +314,12 @@ public class TarInputStream extends FilterInputStream {
 				this.entryOffset = 0;
 				this.entrySize = this.currEntry.getSize();
 
+				if (this.globalHeaders != null && !this.currEntry.isPaxHeader()
+						&& !this.currEntry.isGlobalPaxHeader()
+						&& !this.currEntry.isGNULongNameEntry()) {
+					this.applyExtendedHeader(this.globalHeaders);
+				}
+
 			} catch (InvalidHeaderException ex) {
 
 				this.entrySize = 0;
@@ -215,15 +341,8 @@ public class TarInputStream extends FilterInputStream {
 			}
 
 			// Read in the name
-			StringBuffer longName = new StringBuffer();
-			byte[] buf = new byte[TarConstants.SMALL_BUFFER_SIZE];
-			int length = 0;
-			while ((length = read(buf)) >= 0) {
-				longName.append(new String(buf, 0, length));
-			}
-
-			// Free memory
-			buf = null;
+			byte[] longName = this.readEntryData();
+			int longNameLen = longName.length;
 
 			getNextEntry();
 
@@ -233,21 +352,270 @@ public class TarInputStream extends FilterInputStream {
 			}
 
 			// Remove trailing null terminator
-			int longNameLen = longName.length();
-			if (longNameLen > 0 && longName.charAt(longNameLen - 1) == 0) {
+			if (longNameLen > 0 && longName[longNameLen - 1] == 0) {
+				longNameLen--;
+			}
+			currEntry.setName(TarFileUtil.decodeName(longName, 0, longNameLen));
+		}
+
+		// Pax extended headers, global ones apply to all the following entries
+		if (currEntry != null && currEntry.isGlobalPaxHeader()) {
+
+			byte[] data = this.readEntryData();
+			if (this.globalHeaders == null) {
+				this.globalHeaders = new LinkedHashMap<String, String>();
+			}
+			PaxHeader.parse(data, 0, data.length, this.globalHeaders);
+
+			return getNextEntry();
+		}
+
+		if (currEntry != null && currEntry.isPaxHeader()) {
+
+			byte[] data = this.readEntryData();
+			Map<String, String> records = new LinkedHashMap<String, String>();
+			PaxHeader.parse(data, 0, data.length, records);
+
+			getNextEntry();
 
-				longName.deleteCharAt(longNameLen - 1);
+			if (currEntry == null) {
+				// Malformed tar file - extended header not followed by entry
+				return null;
 			}
-			currEntry.setName(longName.toString());
 
-			// Free up memory
-			longName.setLength(0);
-			longName = null;
+			this.applyExtendedHeader(records);
+		}
+
+		if (currEntry != null && currEntry.isSparse() && this.sparse == null) {
+			this.openSparse();
+		}
+
+		if (currEntry != null) {
+			this.startChecksum();
 		}
 
 		return this.currEntry;
 	}
 
+	/**
+	 * Skip the data left in the current entry, the current entry may have been
+	 * read by getNextEntry() or visitEntries(), and free its resources.
+	 */
+	private void skipEntry() throws IOException {
+		long numToSkip = this.entrySize - this.entryOffset;
+
+		if (numToSkip > 0) {
+			if (logger.isLoggable(Level.FINEST)) {
+				logger.log(Level.FINEST, "TarInputStream: SKIP current entry SZ "
+						+ this.entrySize + " OFF " + this.entryOffset + "  skipping "
+						+ numToSkip + " bytes");
+			}
+
+			this.skipData(numToSkip);
+		}
+
+		// Starting a new file, free up resources
+		this.currEntry = null;
+		this.sparse = null;
+		this.checking = false;
+		this.recordRemaining = 0;
+		this.entrySize = 0;
+		this.entryOffset = 0;
+	}
+
+	/**
+	 * Visit the entries of the archive, from the current position, without
+	 * building a TarEntry per entry: the visitor is given a TarEntryView of
+	 * the header of each entry, reused from entry to entry, whose fields are
+	 * decoded on demand. The data of an entry can be read from this stream
+	 * during its visit, the data which is not read is skipped, by moving the
+	 * position of the channel when the stream reads a channel. The data of a
+	 * sparse entry is read as stored: the segment list then the data of the
+	 * segments.
+	 * <p>
+	 * As for getNextEntry(), the data of an entry with a checksum is checked
+	 * when it is entirely read, except for the sparse entries: their checksum
+	 * covers the data of the segments, not the data as stored.
+	 *
+	 * @param visitor
+	 *            The visitor, it returns false to stop the visit, the
+	 *            following entries can then be read with getNextEntry() or
+	 *            another visit.
+	 */
+	public void visitEntries(TarEntryVisitor visitor) throws IOException {
+		if (this.view == null) {
+			this.view = new TarEntryView(this.getRecordSize());
+		}
+		TarEntryView view = this.view;
+		view.clear();
+
+		// The errors name the visited entries, not the last entry read
+		this.currEntry = null;
+
+		try {
+			while (!this.hasHitEOF) {
+				this.skipEntry();
+
+				int headerOffset = this.buffer.readRecordOffset();
+				byte[] headerBuf = headerOffset == -1 ? null : this.buffer.getBlockBuffer();
+				if (headerBuf == null || this.buffer.isEOFRecord(headerBuf, headerOffset)) {
+					this.hasHitEOF = true;
+					break;
+				}
+
+				try {
+					view.setHeader(headerBuf, headerOffset);
+					this.entrySize = view.getHeaderSize();
+				} catch (InvalidHeaderException ex) {
+					throw new InvalidHeaderException("bad header in block "
+							+ this.buffer.getCurrentBlockNum() + " record "
+							+ this.buffer.getCurrentRecordNum() + ", "
+							+ ex.getMessage());
+				}
+
+				byte linkFlag = view.getLinkFlag();
+				if (linkFlag == TarConstants.LF_PAX_GLOBAL_HEADER) {
+					byte[] data = this.readEntryData();
+					if (this.globalHeaders == null) {
+						this.globalHeaders = new LinkedHashMap<String, String>();
+					}
+					PaxHeader.parse(data, 0, data.length, this.globalHeaders);
+				} else if (linkFlag == TarConstants.LF_PAX_EXTENDED_HEADER) {
+					byte[] data = this.readEntryData();
+					PaxHeader.parse(data, 0, data.length, view.getRecords());
+				} else if (linkFlag == TarConstants.LF_GNUTYPE_LONGNAME
+						&& view.isHeaderName(TarConstants.GNU_LONGLINK)) {
+					view.setLongName(this.readEntryData());
+				} else {
+					view.setGlobalHeaders(this.globalHeaders);
+					this.entrySize = view.getStoredSize();
+
+					long crc = view.getChecksum();
+					if (crc != -1 && !view.isSparse()) {
+						this.startChecksum(crc);
+					}
+
+					boolean more = visitor.visit(view);
+					view.clear();
+					if (!more) {
+						return;
+					}
+				}
+			}
+		} finally {
+			view.clear();
+		}
+	}
+
+	/**
+	 * Start checking the data of the current entry if it has a checksum, from
+	 * the current position: after the segment list of a sparse entry.
+	 */
+	private void startChecksum() throws IOException {
+		long crc = this.currEntry.getChecksum();
+		if (crc != -1) {
+			this.startChecksum(crc);
+		}
+	}
+
+	private void startChecksum(long crc) throws IOException {
+		this.checksum.reset();
+		this.checking = true;
+		this.expectedChecksum = crc;
+		if (this.entryOffset >= this.entrySize) {
+			this.checkChecksum();
+		}
+	}
+
+	private void checkChecksum() throws IOException {
+		long crc = this.checksum.getValue();
+		this.checking = false;
+		if (crc != this.expectedChecksum) {
+			throw new IOException("data of entry '" + this.currentName()
+					+ "' does not match its checksum: crc32 " + String.format("%08x", crc)
+					+ " instead of " + String.format("%08x", this.expectedChecksum));
+		}
+	}
+
+	/**
+	 * The name of the current entry, read by getNextEntry() or visitEntries().
+	 */
+	private String currentName() {
+		return this.currEntry != null ? this.currEntry.getName() : this.view.getName();
+	}
+
+	/**
+	 * Read the segment list of the current sparse entry if it is at the start
+	 * of the entry data, and serve the content with the holes.
+	 */
+	private void openSparse() throws IOException {
+		InputStream data = new EntryData();
+
+		long[] map = this.currEntry.getSparseMap();
+		if (map == null) {
+			map = SparseMap.read(data, this.getRecordSize());
+			SparseMap.check(map, this.currEntry.getSize());
+			this.currEntry.setSparseMap(map);
+		}
+
+		if (SparseMap.dataSize(map) > this.entrySize - this.entryOffset) {
+			throw new InvalidHeaderException("sparse entry '" + this.currEntry.getName()
+					+ "' has more segment data than entry data");
+		}
+
+		this.sparse = new SparseInputStream(data, map, this.currEntry.getSize());
+	}
+
+	/**
+	 * The raw data of the current entry.
+	 */
+	private class EntryData extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			return TarInputStream.this.readData(oneBuf, 0, 1) == -1 ? -1 : oneBuf[0] & BYTE_MASK;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int numToRead) throws IOException {
+			return TarInputStream.this.readData(buf, offset, numToRead);
+		}
+
+		@Override
+		public long skip(long numToSkip) throws IOException {
+			return TarInputStream.this.skipData(numToSkip);
+		}
+	}
+
+	/**
+	 * Read all the data of the current entry, the data of a header entry.
+	 */
+	private byte[] readEntryData() throws IOException {
+		if (this.entrySize > Integer.MAX_VALUE) {
+			throw new InvalidHeaderException("header entry '" + this.currentName()
+					+ "' is too large: " + this.entrySize + " bytes");
+		}
+
+		byte[] data = new byte[(int) this.entrySize];
+		int dataLen = 0;
+		int length = 0;
+		while (dataLen < data.length
+				&& (length = read(data, dataLen, data.length - dataLen)) >= 0) {
+			dataLen += length;
+		}
+
+		return dataLen == data.length ? data : Arrays.copyOf(data, dataLen);
+	}
+
+	/**
+	 * Apply extended header records to the current entry, the size of the
+	 * entry data may change.
+	 */
+	private void applyExtendedHeader(Map<String, String> records) throws IOException {
+		PaxHeader.apply(this.currEntry, records);
+		this.entrySize = this.currEntry.getStoredSize();
+	}
+
 	/**
 	 * Get the record size being used by this stream's TarBuffer.
 	 * 
@@ -323,7 +691,7 @@ public class TarInputStream extends FilterInputStream {
 	 * 
 	 * This method is aware of the boundaries of the current entry in the
 	 * archive and will deal with them as if they were this stream's start and
-	 * EOF.
+	 * EOF. The holes of a sparse entry are read as zeros.
 	 * 
 	 * @param buf
 	 *            The buffer into which to place bytes read.
@@ -335,6 +703,17 @@ public class TarInputStream extends FilterInputStream {
 	 */
 	@Override
 	public int read(byte[] buf, int offset, int numToRead) throws IOException {
+		if (this.sparse != null) {
+			return this.sparse.read(buf, offset, numToRead);
+		}
+		return this.readData(buf, offset, numToRead);
+	}
+
+	/**
+	 * Reads bytes from the data of the current entry as stored in the
+	 * archive.
+	 */
+	private int readData(byte[] buf, int offset, int numToRead) throws IOException {
 		int totalRead = 0;
 
 		if (entryOffset >= entrySize) {
@@ -345,51 +724,31 @@ public class TarInputStream extends FilterInputStream {
 			numToRead = (int) (entrySize - entryOffset);
 		}
 
-		if (readBuf != null) {
-			int sz = (numToRead > readBuf.length) ? readBuf.length
-					: numToRead;
-
-			System.arraycopy(readBuf, 0, buf, offset, sz);
-
-			if (sz >= readBuf.length) {
-				readBuf = null;
-			} else {
-				int newLen = readBuf.length - sz;
-				byte[] newBuf = new byte[newLen];
+		while (numToRead > 0) {
+			if (recordRemaining == 0) {
+				int recOffset = buffer.readRecordOffset();
 
-				System.arraycopy(readBuf, sz, newBuf, 0, newLen);
+				if (recOffset == -1) {
+					// Unexpected EOF!
+					throw new IOException("unexpected EOF with " + numToRead
+							+ " bytes unread");
+				}
 
-				readBuf = newBuf;
+				recordOffset = recOffset;
+				recordRemaining = buffer.getRecordSize();
 			}
 
-			totalRead += sz;
-			numToRead -= sz;
-			offset += sz;
-		}
-
-		while (numToRead > 0) {
-			byte[] rec = buffer.readRecord();
+			int sz = (numToRead > recordRemaining) ? recordRemaining
+					: numToRead;
 
-			if (rec == null) {
-				// Unexpected EOF!
-				throw new IOException("unexpected EOF with " + numToRead
-						+ " bytes unread");
+			System.arraycopy(buffer.getBlockBuffer(), recordOffset, buf,
+					offset, sz);
+			if (checking) {
+				checksum.update(buf, offset, sz);
 			}
 
-			int sz = numToRead;
-			int recLen = rec.length;
-
-			if (recLen > sz) {
-				System.arraycopy(rec, 0, buf, offset, sz);
-
-				readBuf = new byte[recLen - sz];
-
-				System.arraycopy(rec, sz, readBuf, 0, recLen - sz);
-			} else {
-				sz = recLen;
-
-				System.arraycopy(rec, 0, buf, offset, recLen);
-			}
+			recordOffset += sz;
+			recordRemaining -= sz;
 
 			totalRead += sz;
 			numToRead -= sz;
@@ -398,6 +757,10 @@ public class TarInputStream extends FilterInputStream {
 
 		entryOffset += totalRead;
 
+		if (checking && entryOffset >= entrySize) {
+			checkChecksum();
+		}
+
 		return totalRead;
 	}
 
@@ -413,36 +776,74 @@ public class TarInputStream extends FilterInputStream {
 	 * data, not the entire archive, and will stop at the end of the current
 	 * entry's data if the number to skip extends beyond that point.
 	 * 
+	 * Whole records are skipped through TarBuffer.skipRecords(), which seeks
+	 * the underlying file or channel instead of reading it when it can.
+	 * 
 	 * @param numToSkip
 	 *            The number of bytes to skip.
 	 * @return The actual number of bytes skipped.
 	 */
 	@Override
 	public long skip(long numToSkip) throws IOException {
+		if (this.sparse != null) {
+			return this.sparse.skip(numToSkip);
+		}
+		return this.skipData(numToSkip);
+	}
 
-		// TODO: Review and possibly revise
-		// This is horribly inefficient, but it ensures that we
-		// properly skip over bytes via the TarBuffer...
-		//
-		byte[] skipBuf = new byte[TarConstants.SKIP_BUFFER_SIZE];
-		long skip = numToSkip;
-		int realSkip = -1;
-		int numRead = -1;
+	/**
+	 * Skip bytes in the data of the current entry as stored in the archive.
+	 */
+	private long skipData(long numToSkip) throws IOException {
 
-		while (skip > 0) {
-			realSkip = skip > skipBuf.length ? skipBuf.length : (int) skip;
-			numRead = read(skipBuf, 0, realSkip);
-			if (numRead == -1) {
-				break;
+		if (numToSkip <= 0 || entryOffset >= entrySize) {
+			return 0;
+		}
+
+		// The skipped data can not be checked
+		checking = false;
+
+		long skip = Math.min(numToSkip, entrySize - entryOffset);
+		long left = skip;
+
+		// The rest of the current record
+		int sz = (int) Math.min(left, recordRemaining);
+		recordOffset += sz;
+		recordRemaining -= sz;
+		left -= sz;
+
+		// Whole records
+		int recordSize = buffer.getRecordSize();
+		long records = left / recordSize;
+		if (records > 0) {
+			long skippedRecords = buffer.skipRecords(records);
+			left -= skippedRecords * recordSize;
+
+			if (skippedRecords < records) {
+				entryOffset += skip - left;
+				throw new IOException("unexpected EOF with " + left
+						+ " bytes unskipped");
 			}
-			skip -= numRead;
 		}
 
-		// Free memory
-		skipBuf = null;
+		// The beginning of the last record
+		if (left > 0) {
+			int recOffset = buffer.readRecordOffset();
+
+			if (recOffset == -1) {
+				entryOffset += skip - left;
+				throw new IOException("unexpected EOF with " + left
+						+ " bytes unskipped");
+			}
+
+			recordOffset = recOffset + (int) left;
+			recordRemaining = recordSize - (int) left;
+			left = 0;
+		}
 
-		return numToSkip - skip;
+		entryOffset += skip;
 
+		return skip;
 	}
 
 }
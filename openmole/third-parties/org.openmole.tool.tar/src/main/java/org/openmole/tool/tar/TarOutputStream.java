@@ -1,8 +1,15 @@
 package org.openmole.tool.tar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,9 +52,43 @@ public class TarOutputStream extends FilterOutputStream {
 	}
 
 	public TarOutputStream(OutputStream os, int blockSize, int recordSize) {
+		this(os, blockSize, recordSize, false);
+	}
+
+	/**
+	 * @param async
+	 *            Write the blocks to os in the background, while the next
+	 *            ones are filled (see TarBuffer).
+	 */
+	public TarOutputStream(OutputStream os, int blockSize, int recordSize, boolean async) {
+		this(os, new TarBuffer(os, blockSize, recordSize, async));
+	}
+
+	/**
+	 * @param bufferSize
+	 *            The size of the writes to os, rounded up to a multiple of
+	 *            blockSize (see TarBuffer).
+	 */
+	public TarOutputStream(OutputStream os, int blockSize, int recordSize, int bufferSize, boolean async) {
+		this(os, new TarBuffer(os, blockSize, recordSize, bufferSize, async));
+	}
+
+	/**
+	 * Write an archive to a channel, see TarBuffer.
+	 * 
+	 * @param bufferSize
+	 *            The size of the writes to the channel, rounded up to a
+	 *            multiple of blockSize.
+	 */
+	public TarOutputStream(WritableByteChannel channel, int blockSize, int recordSize, int bufferSize, boolean async) {
+		this(null, new TarBuffer(channel, blockSize, recordSize, bufferSize, async));
+	}
+
+	private TarOutputStream(OutputStream os, TarBuffer buffer) {
 		super(os);
 
-		this.buffer = new TarBuffer(os, blockSize, recordSize);
+		this.buffer = buffer;
+		int recordSize = buffer.getRecordSize();
 
 		this.assemLen = 0;
 		this.assemBuf = new byte[recordSize];
@@ -55,6 +96,15 @@ public class TarOutputStream extends FilterOutputStream {
 		this.oneBuf = new byte[1];
 	}
 
+	/**
+	 * Flushes the underlying OutputStream, through the TarBuffer so that the
+	 * blocks it writes in the background are written first.
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.buffer.flush();
+	}
+
 	/**
 	 * Ends the TAR archive and closes the underlying OutputStream. This means
 	 * that finish() is called followed by calling the TarBuffer's close().
@@ -132,6 +182,42 @@ public class TarOutputStream extends FilterOutputStream {
 		this.writeEOFRecord();
 	}
 
+	/**
+	 * Get the number of bytes written to the archive, which is the offset of
+	 * the next entry header when no entry is being written.
+	 * 
+	 * @return The offset in the archive.
+	 */
+	public long getBytesWritten() {
+		return this.buffer.getPosition() + this.assemLen;
+	}
+
+	/**
+	 * Copy raw records from another archive, for instance entries (headers
+	 * and data) of a previous version of this archive. The records are not
+	 * checked. This must not be called while an entry is being written.
+	 * 
+	 * @param channel
+	 *            The channel of the archive to copy from.
+	 * @param offset
+	 *            The offset of the first record to copy.
+	 * @param length
+	 *            The number of bytes to copy, a multiple of the record size.
+	 */
+	public void copyRecords(FileChannel channel, long offset, long length)
+			throws IOException {
+		if (this.assemLen > 0 || this.currBytes < this.currSize) {
+			throw new IOException("can not copy records while an entry is being written");
+		}
+
+		if (length % this.getRecordSize() != 0) {
+			throw new IOException("length " + length
+					+ " is not a multiple of the record size");
+		}
+
+		this.buffer.writeRecords(channel, offset, length / this.getRecordSize());
+	}
+
 	/**
 	 * Get the record size being used by this stream's TarBuffer.
 	 * 
@@ -154,54 +240,13 @@ public class TarOutputStream extends FilterOutputStream {
 	 */
 	public void putNextEntry(TarEntry entry) throws IOException {
 
-		String name = entry.getName();
-
-		// NOTE
-		// This check is not adequate, because the maximum file length that
-		// can be placed into a POSIX (ustar) header depends on the precise
-		// locations of the path elements (slashes) within the file's full
-		// pathname. For this reason, writeEntryHeader() can still throw an
-		// InvalidHeaderException if the file's full pathname will not fit
-		// in the header.
-
-		if (entry.getName().length() >= TarConstants.NAMELEN
-				|| entry.getTarFormat() != TarEntry.UNIX_FORMAT
-				&& name.length() > TarConstants.NAMELEN
-						+ TarConstants.PREFIXLEN) {
-
-			// JRL - Gnutar LongLink support (if the entry is gnutar, put the
-			// filename as a file and branch it)
-			if (entry.getTarFormat() == TarEntry.GNU_FORMAT) {
-
-				// create a TarEntry for the LongLink, the contents
-				// of which are the entry's name
-				TarEntry longLinkEntry = new TarEntry(
-						TarConstants.GNU_LONGLINK,
-						TarConstants.LF_GNUTYPE_LONGNAME);
-
-                                longLinkEntry.setModTime(entry.getModTime());
-				longLinkEntry.setSize(entry.getName().length() + 1);
-				putNextEntry(longLinkEntry);
-				write(entry.getName().getBytes());
-				write(0);
-				closeEntry();
-
-				longLinkEntry = null;
-
-			} else {
-				throw new InvalidHeaderException(
-						"file name '"
-								+ name
-								+ "' is too long ( "
-								+ name.length()
-								+ " > "
-								+ (entry.getTarFormat() == TarEntry.UNIX_FORMAT ? TarConstants.NAMELEN
-										: TarConstants.NAMELEN
-												+ TarConstants.PREFIXLEN)
-								+ " bytes )");
-			}
+		if (entry.getSparseMap() != null && !entry.isDirectory()) {
+			this.putSparseEntry(entry);
+			return;
 		}
 
+		this.putExtendedHeader(entry);
+
 		entry.writeEntryHeader(this.recordBuf);
 		this.buffer.writeRecord(this.recordBuf);
 
@@ -214,6 +259,27 @@ public class TarOutputStream extends FilterOutputStream {
 		}
 	}
 
+	/**
+	 * Format the records putNextEntry() writes for an entry, its pax extended
+	 * header if it needs one and its header record, without writing them. The
+	 * sparse map of the entry is ignored, it is formatted as a dense file.
+	 * 
+	 * @param entry
+	 *            The entry.
+	 * @param recordSize
+	 *            The record size of the archive.
+	 * @return The records, a multiple of recordSize bytes.
+	 */
+	public static byte[] formatHeader(TarEntry entry, int recordSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TarOutputStream tos = new TarOutputStream(bytes, recordSize, recordSize);
+		tos.putExtendedHeader(entry);
+		entry.writeEntryHeader(tos.recordBuf);
+		tos.buffer.writeRecord(tos.recordBuf);
+		tos.buffer.close();
+		return bytes.toByteArray();
+	}
+
 	/**
 	 * Put an entry on the output stream. This writes the entry's header record
 	 * and positions the output stream for writing the contents of the entry.
@@ -231,55 +297,12 @@ public class TarOutputStream extends FilterOutputStream {
 	public void putNextEntry(TarEntry entry, long atByte, long length)
 			throws IOException {
 
-		String name = entry.getName();
-
-		// NOTE
-		// This check is not adequate, because the maximum file length that
-		// can be placed into a POSIX (ustar) header depends on the precise
-		// locations of the path elements (slashes) within the file's full
-		// pathname. For this reason, writeEntryHeader() can still throw an
-		// InvalidHeaderException if the file's full pathname will not fit
-		// in the header.
-
-		if (entry.getName().length() >= TarConstants.NAMELEN
-				|| entry.getTarFormat() != TarEntry.UNIX_FORMAT
-				&& name.length() > TarConstants.NAMELEN
-						+ TarConstants.PREFIXLEN) {
-
-			// JRL - Gnutar LongLink support (if the entry is gnutar, put the
-			// filename as a file and branch it)
-			if (entry.getTarFormat() == TarEntry.GNU_FORMAT) {
-
-				// create a TarEntry for the LongLink, the contents
-				// of which are the entry's name
-				TarEntry longLinkEntry = new TarEntry(
-						TarConstants.GNU_LONGLINK,
-						TarConstants.LF_GNUTYPE_LONGNAME);
-                                
-                                longLinkEntry.setModTime(entry.getModTime());
-
-				longLinkEntry.setSize(entry.getName().length() + 1);
-				putNextEntry(longLinkEntry);
-				write(entry.getName().getBytes());
-				write(0);
-				closeEntry();
-
-			} else {
-				throw new InvalidHeaderException(
-						"file name '"
-								+ name
-								+ "' is too long ( "
-								+ name.length()
-								+ " > "
-								+ (entry.getTarFormat() == TarEntry.UNIX_FORMAT ? TarConstants.NAMELEN
-										: TarConstants.NAMELEN
-												+ TarConstants.PREFIXLEN)
-								+ " bytes )");
-			}
-		}
 		if (length != -1) {
 			entry.setSize(new Long(length).longValue());
 		}
+
+		this.putExtendedHeader(entry);
+
 		entry.writeEntryHeaderMulti(this.recordBuf, new Long(atByte)
 						.intValue());
 
@@ -294,6 +317,107 @@ public class TarOutputStream extends FilterOutputStream {
 		}
 	}
 
+	/**
+	 * Put a sparse entry in the GNU pax format 1.0: the header is named
+	 * dir/GNUSparseFile.0/name, the real name and size are in the extended
+	 * header and the entry data starts with the segment list. The data of the
+	 * segments is then written by the caller, segment after segment.
+	 * <p>
+	 * The header is written in the ustar format, GNU tar only reads the pax
+	 * sparse records of ustar entries.
+	 */
+	private void putSparseEntry(TarEntry entry) throws IOException {
+		String name = entry.getName();
+		long size = entry.getSize();
+		long[] map = entry.getSparseMap();
+
+		if (entry.getTarFormat() == TarEntry.UNIX_FORMAT) {
+			throw new InvalidHeaderException("sparse entry '" + name
+					+ "' can not be written in the UNIX format");
+		}
+
+		SparseMap.check(map, size);
+
+		byte[] mapData = SparseMap.format(map, this.getRecordSize());
+		long storedSize = mapData.length + SparseMap.dataSize(map);
+		int format = entry.getTarFormat();
+
+		entry.setName(SparseMap.headerName(name));
+		entry.setSize(storedSize);
+		setTarFormat(entry, TarEntry.USTAR_FORMAT);
+		try {
+			Map<String, String> records = PaxHeader.records(entry);
+			if (records == null) {
+				records = new LinkedHashMap<String, String>();
+			}
+			records.put(SparseMap.MAJOR, "1");
+			records.put(SparseMap.MINOR, "0");
+			records.put(SparseMap.NAME, name);
+			records.put(SparseMap.REALSIZE, Long.toString(size));
+
+			this.putExtendedHeader(PaxHeader.headerName(name),
+					TarConstants.LF_PAX_EXTENDED_HEADER, records, entry.getModTime());
+
+			entry.writeEntryHeader(this.recordBuf);
+			this.buffer.writeRecord(this.recordBuf);
+		} finally {
+			entry.setName(name);
+			entry.setSize(size);
+			setTarFormat(entry, format);
+		}
+
+		this.currBytes = 0;
+		this.currSize = storedSize;
+		this.write(mapData);
+	}
+
+	private static void setTarFormat(TarEntry entry, int format) {
+		try {
+			entry.setTarFormat(format);
+		} catch (Exception ex) {
+			// The format is one of the TarEntry formats
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	/**
+	 * Put a pax global extended header on the output stream. Its records apply
+	 * to all the following entries of the archive.
+	 * 
+	 * @param records
+	 *            The records of the header.
+	 */
+	public void putGlobalHeader(Map<String, String> records) throws IOException {
+		this.putExtendedHeader(PaxHeader.HEADER_DIRECTORY + "global",
+				TarConstants.LF_PAX_GLOBAL_HEADER, records, new Date());
+	}
+
+	/**
+	 * Write the pax extended header of an entry if some of its fields do not
+	 * fit in the entry header: a long or non ASCII name, a large size... The
+	 * extended header is a single small entry, written just before the entry.
+	 */
+	private void putExtendedHeader(TarEntry entry) throws IOException {
+		Map<String, String> records = PaxHeader.records(entry);
+		if (records != null) {
+			this.putExtendedHeader(PaxHeader.headerName(entry.getName()),
+					TarConstants.LF_PAX_EXTENDED_HEADER, records, entry.getModTime());
+		}
+	}
+
+	private void putExtendedHeader(String name, byte type, Map<String, String> records,
+			Date modTime) throws IOException {
+		byte[] data = PaxHeader.format(records);
+
+		TarEntry header = new TarEntry(name, type);
+		header.setModTime(modTime);
+		header.setSize(data.length);
+
+		this.putNextEntry(header);
+		this.write(data);
+		this.closeEntry();
+	}
+
 	/**
 	 * Writes bytes to the current tar archive entry.
 	 * 
@@ -394,6 +518,62 @@ public class TarOutputStream extends FilterOutputStream {
 		}
 	}
 
+	/**
+	 * Writes bytes read from a file channel to the current tar archive entry.
+	 * The whole records are written straight from the channel to the
+	 * TarBuffer, with FileChannel.transferTo() when the archive is written to
+	 * a file (see TarBuffer.writeRecords()). Only the last partial record is
+	 * assembled, closeEntry() pads it as usual.
+	 * 
+	 * @param channel
+	 *            The channel to read the bytes from.
+	 * @param position
+	 *            The position of the first byte in the channel.
+	 * @param numToWrite
+	 *            The number of bytes to write.
+	 */
+	public void write(FileChannel channel, long position, long numToWrite)
+			throws IOException {
+		if (this.currBytes + numToWrite > this.currSize) {
+			throw new IOException("request to write '" + numToWrite
+					+ "' bytes exceeds size in header of '" + this.currSize
+					+ "' bytes");
+		}
+
+		// Bytes already being assembled, go through the assembly buffer
+		if (this.assemLen > 0) {
+			byte[] buf = new byte[this.recordBuf.length];
+			while (numToWrite > 0) {
+				ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, numToWrite));
+				int read = channel.read(bb, position);
+				if (read == -1) {
+					throw new IOException("unexpected EOF with " + numToWrite + " bytes unwritten");
+				}
+				this.write(buf, 0, read);
+				position += read;
+				numToWrite -= read;
+			}
+			return;
+		}
+
+		long records = numToWrite / this.recordBuf.length;
+		this.buffer.writeRecords(channel, position, records);
+
+		long written = records * this.recordBuf.length;
+		this.currBytes += written;
+
+		int remaining = (int) (numToWrite - written);
+		ByteBuffer bb = ByteBuffer.wrap(this.assemBuf, 0, remaining);
+		long from = position + written;
+		while (bb.hasRemaining()) {
+			int read = channel.read(bb, from + bb.position());
+			if (read == -1) {
+				throw new IOException("unexpected EOF with " + bb.remaining() + " bytes unwritten");
+			}
+		}
+		this.assemLen = remaining;
+	}
+
 	/**
 	 * Writes a byte to the current tar archive entry.
 	 * 
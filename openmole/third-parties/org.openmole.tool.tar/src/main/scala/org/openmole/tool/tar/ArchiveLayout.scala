@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.tar
+
+import java.io.{ File, IOException, OutputStream }
+import java.nio.{ Buffer, ByteBuffer }
+import java.nio.channels.FileChannel
+import java.nio.file.{ Files, StandardOpenOption }
+import java.security.MessageDigest
+
+import org.openmole.tool.stream._
+
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Try
+
+object ArchiveLayout {
+
+  /** A span of the archive */
+  private[tar] sealed trait Part {
+    def length: Long
+  }
+
+  /** Records held in memory: the headers of an entry, the end of the archive */
+  private[tar] case class Records(bytes: Array[Byte]) extends Part {
+    def length = bytes.length.toLong
+  }
+
+  /** The data of a file, padded to a record */
+  private[tar] case class Data(file: File, size: Long, modified: Long) extends Part {
+    def length = (size + TarConstants.DEFAULT_RCDSIZE - 1) / TarConstants.DEFAULT_RCDSIZE * TarConstants.DEFAULT_RCDSIZE
+  }
+
+  private val zeros = new Array[Byte](TarConstants.DEFAULT_RCDSIZE)
+  private val BytesRange = """bytes=(\d*)-(\d*)""".r
+
+  /**
+   * The layout of the archive of a directory, as archive(time = false) writes it. Only the file
+   * attributes are read: the headers of the entries are formatted in memory, the data of the
+   * files is read when a range of the archive is written. The files with holes are laid out as
+   * dense files, as archive writes them when sparse is not set, the archives are the same byte
+   * for byte.
+   */
+  def apply(directory: File, includeTopDirectoryName: Boolean = false, threads: Int = 1): ArchiveLayout = {
+    if (!Files.isDirectory(directory.toPath)) throw new IOException(directory.toString + " is not a directory.")
+
+    val rootName = if (!includeTopDirectoryName) "" else directory.getName
+    val parts = ArrayBuffer[Part]()
+    val index = ArrayBuffer[(String, Long)]()
+    var offset = 0L
+    val digest = MessageDigest.getInstance("SHA-1")
+    val attributes = ByteBuffer.allocate(3 * 8 + 4)
+
+    def add(part: Part) = {
+      parts += part
+      offset += part.length
+    }
+
+    walkArchive(directory, rootName, threads) { (source, entryName, item) ⇒
+      val entry = archiveEntry(entryName, item, _.setModTime(0))
+      index += entry.getName.dropWhile(_ == '/') → offset
+      add(Records(TarOutputStream.formatHeader(entry, TarConstants.DEFAULT_RCDSIZE)))
+      if (item.isRegularFile && item.size > 0) add(Data(source, item.size, item.modified))
+
+      // the modification times are not archived but the content of the files changes with them
+      digest.update(entryName.getBytes("UTF-8"))
+      digest.update(item.linkName.getBytes("UTF-8"))
+      (attributes: Buffer).clear()
+      attributes.putLong(item.size).putLong(item.modified).putLong(if (item.isDirectory) 1L else 0L).putInt(item.mode)
+      digest.update(attributes.array)
+    }
+
+    // the end of file record, padded to a block as TarBuffer does when the stream is closed
+    val blocks = (offset + TarConstants.DEFAULT_RCDSIZE + TarConstants.DEFAULT_BLKSIZE - 1) / TarConstants.DEFAULT_BLKSIZE
+    add(Records(new Array[Byte]((blocks * TarConstants.DEFAULT_BLKSIZE - offset).toInt)))
+
+    new ArchiveLayout(parts.toVector, index.toVector, "\"" + digest.digest.map(b ⇒ f"$b%02x").mkString + "\"")
+  }
+
+}
+
+/**
+ * The layout of the uncompressed archive of a directory (see ArchiveLayout.apply): its length
+ * and the offset of each entry are known before the archive is written, and any range of it can
+ * be written on its own, for the servers answering the HTTP range requests of the downloads
+ * resumed or split by the clients.
+ *
+ * The index gives the name of each entry, in archive order, and the offset of its first header
+ * record. The etag identifies the archive, it changes when a file is added, removed or modified.
+ * Writing a range fails if one of its files has changed since the layout was computed.
+ */
+class ArchiveLayout private[tar] (parts: Vector[ArchiveLayout.Part], val index: Vector[(String, Long)], val etag: String) {
+  import ArchiveLayout._
+
+  private val starts = parts.scanLeft(0L)(_ + _.length).toArray
+
+  /** The length of the archive */
+  val length = starts.last
+
+  /**
+   * The range [start, end) asked by the Range header of an HTTP request, if it is a single
+   * satisfiable range of bytes and the If-Range header, if any, is the etag of this layout. The
+   * whole archive is sent otherwise, which a server may do for any range (RFC 7233).
+   */
+  def range(rangeHeader: Option[String], ifRangeHeader: Option[String] = None): Option[(Long, Long)] =
+    if (ifRangeHeader.exists(_.trim != etag)) None
+    else rangeHeader.map(_.trim).flatMap {
+      case BytesRange("", "")   ⇒ None
+      case BytesRange("", last) ⇒ Try(last.toLong).toOption.filter(_ > 0).map(n ⇒ (math.max(0L, length - n), length))
+      case BytesRange(first, last) ⇒
+        Try((first.toLong, if (last.isEmpty) length - 1 else last.toLong)).toOption.collect {
+          case (s, e) if s <= e && s < length ⇒ (s, math.min(e + 1, length))
+        }
+      case _ ⇒ None
+    }
+
+  /**
+   * Write the bytes [start, end) of the archive. Only the files of this range are read.
+   */
+  def write(out: OutputStream, start: Long = 0L, end: Long = length): Unit = {
+    if (start < 0 || start > end || end > length) throw new IndexOutOfBoundsException(s"Range [$start, $end) is not in the archive of length $length")
+
+    val buffer = new Array[Byte](TarConstants.LARGE_BUFFER_SIZE)
+    val found = java.util.Arrays.binarySearch(starts, start)
+    var i = if (found >= 0) found else -found - 2
+    var position = start
+
+    while (position < end) {
+      val from = position - starts(i)
+      val to = math.min(parts(i).length, end - starts(i))
+
+      parts(i) match {
+        case Records(bytes) ⇒ out.write(bytes, from.toInt, (to - from).toInt)
+        case data: Data    ⇒ writeData(out, data, from, to, buffer)
+      }
+
+      position = starts(i) + to
+      i += 1
+    }
+  }
+
+  private def writeData(out: OutputStream, data: Data, from: Long, to: Long, buffer: Array[Byte]) = {
+    val path = data.file.toPath
+    if (Files.size(path) != data.size || Files.getLastModifiedTime(path).toMillis != data.modified)
+      throw new IOException(s"${data.file} has changed since the layout of its archive was computed")
+
+    val dataEnd = math.min(to, data.size)
+    if (from < dataEnd) withClosable(FileChannel.open(path, StandardOpenOption.READ)) { channel ⇒
+      var position = from
+      while (position < dataEnd) {
+        val n = channel.read(ByteBuffer.wrap(buffer, 0, math.min(buffer.length.toLong, dataEnd - position).toInt), position)
+        if (n == -1) throw new IOException(s"${data.file} shrank while its archive was written, at offset $position")
+        out.write(buffer, 0, n)
+        position += n
+      }
+    }
+
+    // the padding of the last record
+    val padding = to - math.max(from, data.size)
+    if (padding > 0) out.write(zeros, 0, padding.toInt)
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.tar
+
+import java.io.{ File, IOException }
+import java.nio.ByteBuffer
+import java.nio.channels._
+import java.util.concurrent._
+
+import org.openmole.tool.stream._
+
+import scala.util.Try
+
+/**
+ * Archiving and extraction returning CompletableFutures, for the servers which must not hold a
+ * thread of their pool per archive transfer.
+ *
+ * The archives are read and written through channels by the blocking tar streams, run on the
+ * executor: by default a virtual thread per task when the runtime has them (Java 21 and later),
+ * for which blocking is cheap, a cached pool of daemon threads otherwise.
+ */
+object AsyncTar {
+
+  private lazy val virtualThreadExecutor =
+    Try {
+      classOf[Executors].getMethod("newVirtualThreadPerTaskExecutor").invoke(null).asInstanceOf[ExecutorService]
+    }.toOption
+
+  lazy val executor: ExecutorService =
+    virtualThreadExecutor.getOrElse {
+      Executors.newCachedThreadPool(new ThreadFactory {
+        override def newThread(r: Runnable) = {
+          val t = new Thread(r, "tar async")
+          t.setDaemon(true)
+          t
+        }
+      })
+    }
+
+  /** @return true if the default executor runs the tasks on virtual threads */
+  def virtualThreads = virtualThreadExecutor.isDefined
+
+  private def run[T](executor: Executor)(f: ⇒ T): CompletableFuture[T] = {
+    val future = new CompletableFuture[T]
+    executor.execute(new Runnable {
+      override def run() =
+        try future.complete(f)
+        catch {
+          case t: Throwable ⇒ future.completeExceptionally(t)
+        }
+    })
+    future
+  }
+
+  /**
+   * Archive a directory to a channel, which is closed once the archive is written. The data of the
+   * large files is transfered to the channel with FileChannel.transferTo (see TarBuffer).
+   */
+  def archive(directory: File, channel: WritableByteChannel, time: Boolean = true, includeTopDirectoryName: Boolean = false, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false, sparse: Boolean = false, executor: Executor = AsyncTar.executor): CompletableFuture[Unit] =
+    run(executor) {
+      withClosable(new TarOutputStream(channel, TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, TarConstants.FILE_BUFFER_SIZE, false)) {
+        _.archive(directory, time, includeTopDirectoryName, threads, hardLinks, deduplicate, checksums, sparse)
+      }
+    }
+
+  /**
+   * Extract an archive read from a channel to a directory, the channel is closed once the archive
+   * is extracted. The skipped data of a seekable channel is not read. The checksums of the entries
+   * are checked (see TarInputStream).
+   */
+  def extract(channel: ReadableByteChannel, directory: File, overwrite: Boolean = false, threads: Int = 1, executor: Executor = AsyncTar.executor): CompletableFuture[File] =
+    run(executor) {
+      val tis =
+        channel match {
+          case c: SeekableByteChannel ⇒ new TarInputStream(c)
+          case c                      ⇒ new TarInputStream(Channels.newInputStream(c), TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, TarConstants.FILE_BUFFER_SIZE)
+        }
+
+      withClosable(tis)(_.extract(directory, overwrite, threads))
+      directory
+    }
+
+  /**
+   * An asynchronous file channel seen as a blocking channel from a position, to archive to it or
+   * extract from it: each read or write waits for the completion of the operation, which does not
+   * hold a platform thread when it runs on a virtual thread.
+   */
+  def blocking(channel: AsynchronousFileChannel, position: Long = 0L): SeekableByteChannel = new BlockingFileChannel(channel, position)
+
+  private class BlockingFileChannel(channel: AsynchronousFileChannel, private var current: Long) extends SeekableByteChannel {
+    private def await(f: Future[Integer]): Int =
+      try f.get
+      catch {
+        case e: ExecutionException ⇒
+          e.getCause match {
+            case io: IOException ⇒ throw io
+            case t               ⇒ throw new IOException(t)
+          }
+        case e: InterruptedException ⇒ throw new ClosedByInterruptException
+      }
+
+    override def read(dst: ByteBuffer) = {
+      val n = await(channel.read(dst, current))
+      if (n > 0) current += n
+      n
+    }
+
+    override def write(src: ByteBuffer) = {
+      val n = await(channel.write(src, current))
+      current += n
+      n
+    }
+
+    override def position = current
+    override def position(newPosition: Long) = {
+      current = newPosition
+      this
+    }
+
+    override def size = channel.size
+    override def truncate(size: Long) = {
+      channel.truncate(size)
+      current = math.min(current, size)
+      this
+    }
+
+    override def isOpen = channel.isOpen
+    override def close() = channel.close()
+  }
+
+}
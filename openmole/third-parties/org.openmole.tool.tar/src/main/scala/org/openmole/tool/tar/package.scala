@@ -16,26 +16,105 @@
  */
 package org.openmole.tool
 
-import java.io.{ IOException, File }
+import java.io.{ IOException, File, FileOutputStream, OutputStream }
+import java.nio.channels.FileChannel
 import java.nio.file._
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent._
 import org.openmole.tool.file._
 import org.openmole.tool.stream._
-import scala.collection.mutable.{ Stack, ListBuffer }
+import scala.collection.mutable.{ HashMap, HashSet, ListBuffer, Stack }
 import scala.collection.JavaConverters._
 
 package object tar {
 
+  /**
+   * A tar stream writing its blocks in the background while the next ones are filled, for slow
+   * streams as compressors or network connections (see TarBuffer)
+   */
+  def asyncTarOutputStream(os: OutputStream, blockSize: Int = TarConstants.DEFAULT_BLKSIZE) =
+    new TarOutputStream(os, blockSize, TarConstants.DEFAULT_RCDSIZE, true)
+
   implicit class TarOutputStreamDecorator(tos: TarOutputStream) {
     def addFile(f: File, name: String) = {
       val entry = new TarEntry(name)
       entry.setSize(Files.size(f))
       entry.setMode(f.mode)
       tos.putNextEntry(entry)
-      try Files.copy(f, tos) finally tos.closeEntry
+      try tos.writeFile(f, entry.getSize) finally tos.closeEntry
+    }
+
+    /**
+     * Archive a directory as the content of an entry, a tar nested in this tar, without writing
+     * it to a temporary file. The size of the nested tar, needed by the entry header, is computed
+     * by a first pass which reads the attributes of the files but not their content (see
+     * archiveLength), the directory must not change in between.
+     */
+    def addDirectory(directory: File, name: String, time: Boolean = true) = {
+      def nested(os: OutputStream) = new TarOutputStream(os, TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, TarConstants.FILE_BUFFER_SIZE, false)
+
+      val entry = new TarEntry(name)
+      entry.setSize(archiveLength(directory, time))
+      tos.putNextEntry(entry)
+      try withClosable(nested(new EntryOutputStream(tos)))(_.archive(directory, time))
+      finally tos.closeEntry
+    }
+
+    /**
+     * Write the first size bytes of a file to the current entry. The data is read from a file
+     * channel and, when the archive is written to a file, transfered with FileChannel.transferTo.
+     */
+    def writeFile(f: File, size: Long) =
+      withClosable(FileChannel.open(f.toPath, StandardOpenOption.READ)) { channel ⇒
+        tos.write(channel, 0, size)
+      }
+
+    /**
+     * Archive the content of a directory. With more than one thread, a pool of workers reads the
+     * file attributes and the content of small files ahead of the writer, which hides the latency
+     * of network file systems. The archive is the same whatever the number of threads.
+     *
+     * With hardLinks, the files which are hard links to an already archived file are archived as
+     * hard links, with deduplicate the files with the same content and mode as an already archived
+     * file are archived as hard links as well (see ArchiveDeduplication).
+     *
+     * With checksums, the CRC32 of each file is written in its entry header (see
+     * TarEntry.setChecksum), TarInputStream checks it while extracting. The files which are not
+     * read ahead are read twice, once to compute their checksum and once to be archived. GNU tar
+     * extracts such an archive but warns about the unknown checksum keyword for every file, the
+     * checksums should not be written in the archives which users open with standard tools.
+     *
+     * With sparse, the large files are scanned for holes (see SparseMap.find) and the files with
+     * holes are archived as GNU sparse files, without their holes. The readers which do not
+     * support this format extract them under another name and with another content, sparse must
+     * only be set when the archive is read by TarInputStream or TarFile.
+     */
+    def archive(directory: File, time: Boolean = true, includeTopDirectoryName: Boolean = false, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false, sparse: Boolean = false) =
+      createDirArchiveWithRelativePathWithAdditionalCommand(tos, directory, if (time) identity(_) else _.setModTime(0), includeTopDirectoryName, threads, new ArchiveDeduplication(hardLinks, deduplicate, time), checksums, sparse)
+  }
+
+  /**
+   * The length of the archive of a directory as archive(directory, time) writes it, without hard
+   * links, checksums nor sparse files. The headers of the entries are formatted in memory and the
+   * data of the files is counted from their size, it is not read.
+   */
+  private def archiveLength(directory: File, time: Boolean) = {
+    var length = 0L
+    walkArchive(directory, "") { (_, entryName, item) ⇒
+      val entry = archiveEntry(entryName, item, if (time) identity(_) else _.setModTime(0))
+      length += TarOutputStream.formatHeader(entry, TarConstants.DEFAULT_RCDSIZE).length
+      if (item.isRegularFile) length += (item.size + TarConstants.DEFAULT_RCDSIZE - 1) / TarConstants.DEFAULT_RCDSIZE * TarConstants.DEFAULT_RCDSIZE
     }
 
-    def archive(directory: File, time: Boolean = true, includeTopDirectoryName: Boolean = false) =
-      createDirArchiveWithRelativePathWithAdditionalCommand(tos, directory, if (time) identity(_) else _.setModTime(0), includeTopDirectoryName)
+    // the end of file record, padded to a block as TarBuffer does when the stream is closed
+    val blocks = (length + TarConstants.DEFAULT_RCDSIZE + TarConstants.DEFAULT_BLKSIZE - 1) / TarConstants.DEFAULT_BLKSIZE
+    blocks * TarConstants.DEFAULT_BLKSIZE
+  }
+
+  /** The current entry of a tar stream as a stream, for a nested tar which must not flush or close it */
+  private class EntryOutputStream(tos: TarOutputStream) extends OutputStream {
+    override def write(b: Int) = tos.write(b)
+    override def write(b: Array[Byte], off: Int, len: Int) = tos.write(b, off, len)
   }
 
   implicit class TarInputStreamDecorator(tis: TarInputStream) {
@@ -52,117 +131,705 @@ package object tar {
     }
     finally tis.close
 
+    /**
+     * Visit the headers of the entries until f returns false, without building the entries (see
+     * TarInputStream.visitEntries), the data of an entry can be read from the stream by f.
+     */
+    def visitAndClose(f: TarEntryView ⇒ Boolean): Unit = try {
+      tis.visitEntries(new TarEntryVisitor {
+        override def visit(e: TarEntryView) = f(e)
+      })
+    }
+    finally tis.close
+
     // new model using NIO
-    def extract(directory: File, overwrite: Boolean = false) = {
+    /**
+     * Extract the archive to a directory. With more than one thread, the content of the files of
+     * up to ExtractBufferFileSize is read in memory and written by a pool of threads, the larger
+     * files are written by the calling thread.
+     */
+    def extract(directory: File, overwrite: Boolean = false, threads: Int = 1) = {
+      def write(e: TarEntry)(dest: Path): Unit =
+        if (e.isSparse) {
+          // only the data segments are written, the holes stay holes
+          if (overwrite) Files.deleteIfExists(dest)
+          withClosable(FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            tis.copyEntryContents(_)
+          }
+        }
+        else Files.copy(tis, dest, Seq(StandardCopyOption.REPLACE_EXISTING).filter { _ ⇒ overwrite }: _*)
+
+      def buffer(e: TarEntry): Option[Path ⇒ Unit] =
+        if (e.getSize > ExtractBufferFileSize || e.isSparse) None
+        else {
+          val content = new Array[Byte](e.getSize.toInt)
+          var read = 0
+          while (read < content.length) {
+            val n = tis.read(content, read, content.length - read)
+            if (n == -1) throw new IOException(s"Unexpected end of archive in entry ${e.getName}")
+            read += n
+          }
+
+          Some { (dest: Path) ⇒
+            if (overwrite) Files.deleteIfExists(dest)
+            Files.write(dest, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+          }
+        }
+
+      extractEntries(directory, Iterator.continually(tis.getNextEntry).takeWhile(_ != null), overwrite, threads)(write, buffer)
+    }
+  }
+
+  implicit class FileTarArchiveDecorator(file: File) {
+
+    def archive(dest: File, time: Boolean = true, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false, sparse: Boolean = false) =
+      withClosable(new TarOutputStream(new FileOutputStream(dest))) {
+        _.archive(file, time, threads = threads, hardLinks = hardLinks, deduplicate = deduplicate, checksums = checksums, sparse = sparse)
+      }
+
+    //FIXME method name is ambiguous rename
+    def archiveCompress(dest: File, time: Boolean = true, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false, sparse: Boolean = false) =
+      withClosable(asyncTarOutputStream(dest.bufferedOutputStream().toParallelGZ)) {
+        _.archive(file, time, threads = threads, hardLinks = hardLinks, deduplicate = deduplicate, checksums = checksums, sparse = sparse)
+      }
+
+    /**
+     * Archive the directory as archive(dest, time = false) does. The entries of the regular files
+     * which have the same size, modification time and mode as in the manifest of a previous
+     * archive of this directory are copied from this archive, with FileChannel.transferTo, instead
+     * of being read from the directory.
+     *
+     * The hard link decisions (see archive) are the same as in a full archive, the entries of the
+     * unchanged files are copied only if they were archived the same way. The content hashes of the
+     * unchanged files are kept in the manifest, and the files which were found identical are not
+     * compared again.
+     *
+     * With checksums, the entries carry the CRC32 of the files as in archive, the entries of a
+     * previous archive are copied only if it was written with checksums as well.
+     *
+     * @return the manifest of the new archive
+     */
+    def archiveIncremental(dest: File, previous: Option[(File, ArchiveManifest)] = None, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false): ArchiveManifest = {
+      if (!Files.isDirectory(file)) throw new IOException(file.toString + " is not a directory.")
+
+      // the copied records keep the checksum records of the previous archive, or their lack of them
+      val reusable = previous.filter { case (_, manifest) ⇒ manifest.checksums == checksums }
+      val previousChannel = reusable.map { case (archive, _) ⇒ FileChannel.open(archive.toPath, StandardOpenOption.READ) }
+      val previousManifest = reusable.map(_._2).getOrElse(ArchiveManifest(Map.empty))
+      def unchanged(entryName: String, item: ArchiveItem) = item.isRegularFile && previousChannel.isDefined && previousManifest.isUnchanged(entryName, item)
+
+      val unchangedEntries = HashSet[String]()
+      val deduplication =
+        new ArchiveDeduplication(
+          hardLinks,
+          deduplicate,
+          knownHash = entryName ⇒ if (unchangedEntries.contains(entryName)) previousManifest.entries(entryName).hash else None,
+          knownSame = (entryName, target) ⇒
+            unchangedEntries.contains(entryName) && unchangedEntries.contains(target) && previousManifest.entries(entryName).link == Some(target)
+        )
+
+      val entries = Map.newBuilder[String, ArchiveManifest.Entry]
+
+      try withClosable(new TarOutputStream(new FileOutputStream(dest))) { tos ⇒
+        walkArchive(file, "", threads, !unchanged(_, _)) { (source, entryName, item) ⇒
+          val start = tos.getBytesWritten
+
+          if (unchanged(entryName, item)) unchangedEntries += entryName
+          val link = deduplication.link(source, entryName, item)
+
+          if (unchangedEntries.contains(entryName) && previousManifest.entries(entryName).link == link) {
+            val e = previousManifest.entries(entryName)
+            tos.copyRecords(previousChannel.get, e.start, e.end - e.start)
+          }
+          else writeArchiveItem(tos, source, entryName, item, _.setModTime(0), link, checksums)
+
+          entries += entryName → ArchiveManifest.Entry(item.size, item.modified, item.mode, start, tos.getBytesWritten, link, deduplication.hash(entryName))
+        }
+      }
+      finally previousChannel.foreach(_.close)
+
+      ArchiveManifest(entries.result(), checksums)
+    }
+
+    /**
+     * Extract an uncompressed tar file. The data of each entry is transfered from the archive
+     * channel to the destination file channel, without being copied through the Java heap. With
+     * more than one thread, the files are written by a pool of threads.
+     *
+     * The checksums of the entries are not checked, only extractVerified and the extraction
+     * from a TarInputStream check them.
+     */
+    def extract(dest: File, overwrite: Boolean = false, threads: Int = 1) =
+      withTarFile { archive ⇒
+        def write(e: TarEntry)(path: Path): Unit = {
+          if (overwrite) Files.deleteIfExists(path)
+          withClosable(FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            archive.transferTo(e, _)
+          }
+        }
+
+        // TarFile reads are positional, any entry can be written by any thread
+        extractEntries(dest, archive.getEntries.asScala.iterator, overwrite, threads)(write, e ⇒ Some(write(e)))
+      }
+
+    /**
+     * Extract an uncompressed tar file by reading it as a stream, the data of the entries with a
+     * checksum is checked while it is extracted (see TarInputStream), in a single pass over the
+     * archive. The extraction fails on the first corrupted entry.
+     */
+    def extractVerified(dest: File, overwrite: Boolean = false, threads: Int = 1) =
+      withClosable(new TarInputStream(FileChannel.open(file.toPath, StandardOpenOption.READ))) {
+        _.extract(dest, overwrite, threads)
+      }
+
+    def extractUncompress(dest: File, overwrite: Boolean = false, threads: Int = 1) =
+      withClosable(new TarInputStream(file.bufferedInputStream.toParallelGZ)) {
+        _.extract(dest, overwrite, threads)
+      }
 
-      if (!directory.exists()) directory.mkdirs()
-      if (!Files.isDirectory(directory)) throw new IOException(directory.toString + " is not a directory.")
+    /**
+     * Archive the directory compressed in the block gzip format (see BlockGZIP): a standard gzip
+     * file, made of independently compressed members and ending with their index, which
+     * withBlockGZTarInputStream reads from any entry.
+     */
+    def archiveBlockCompress(dest: File, time: Boolean = true, threads: Int = 1, hardLinks: Boolean = false, deduplicate: Boolean = false, checksums: Boolean = false, sparse: Boolean = false) =
+      withClosable(asyncTarOutputStream(dest.bufferedOutputStream().toBlockGZ)) {
+        _.archive(file, time, threads = threads, hardLinks = hardLinks, deduplicate = deduplicate, checksums = checksums, sparse = sparse)
+      }
+
+    /**
+     * Read a tar compressed in the block gzip format from an offset in the uncompressed tar, the
+     * offset of an entry header as given by TarOutputStream.getBytesWritten. The members are
+     * inflated in parallel and the data of the skipped entries is not inflated.
+     */
+    def withBlockGZTarInputStream[T](offset: Long = 0, threads: Int = ParallelGZIPOutputStream.defaultThreads)(f: TarInputStream ⇒ T): T =
+      withClosable(BlockGZIPFile(file, threads)) { gz ⇒
+        withClosable(new TarInputStream(gz.inputStream(offset)))(f)
+      }
+
+    def extractBlockUncompress(dest: File, overwrite: Boolean = false, threads: Int = 1) =
+      withBlockGZTarInputStream() {
+        _.extract(dest, overwrite, threads)
+      }
+
+    def copyCompress(toF: File): File = {
+      if (toF.isDirectory) file.archiveCompress(toF)
+      else file.copyCompressFile(toF)
+      toF
+    }
 
-      Iterator.continually(tis.getNextEntry).takeWhile(_ != null).foreach {
-        e ⇒
+    // TarBuffer writes whole blocks, the file stream is not buffered so that file data can be transfered to its channel
+    def tarOutputStream = new TarOutputStream(new FileOutputStream(file))
+
+    def withTarFile[T] = withClosable[TarFile, T](new TarFile(file))(_)
+
+    def withTarOutputStream[T] = withClosable[TarOutputStream, T](tarOutputStream)(_)
+    def withTarGZOutputStream[T] = withClosable[TarOutputStream, T](asyncTarOutputStream(file.bufferedOutputStream().toParallelGZ))(_)
+  }
+
+  private def checkExtractDirectory(directory: File) = {
+    if (!directory.exists()) directory.mkdirs()
+    if (!Files.isDirectory(directory)) throw new IOException(directory.toString + " is not a directory.")
+  }
+
+  private def extractEntry(directory: File, e: TarEntry, overwrite: Boolean)(writeContent: Path ⇒ Unit) = {
+    val dest = Paths.get(directory.toString, e.getName)
+    if (e.isDirectory) {
+      Files.createDirectories(dest)
+      dest.toFile.mode = e.getMode
+    }
+    else {
+      Files.createDirectories(dest.getParent)
+
+      // hard links point to a previous entry of the archive
+      if (e.getLinkFlag == TarConstants.LF_LINK) {
+        if (overwrite) Files.deleteIfExists(dest)
+        Files.createLink(dest, Paths.get(directory.toString, e.getLinkName))
+      }
+      // has the entry been marked as a symlink in the archive?
+      else if (!e.getLinkName.isEmpty) Files.createSymbolicLink(dest, Paths.get(e.getLinkName))
+      // file copy from an InputStream does not support COPY_ATTRIBUTES, nor NOFOLLOW_LINKS
+      else {
+        writeContent(dest)
+        dest.toFile.mode = e.getMode
+      }
+    }
+  }
+
+  /** Files up to this size are read in memory by the reading thread to be written by the extraction workers */
+  val ExtractBufferFileSize = 1024 * 1024
+
+  /**
+   * Extract entries in archive order. With more than one thread, the directories are created by
+   * the calling thread when their entry is read, and the files for which defer gives a writer are
+   * written by a pool of threads (at most 2 * threads pending). The hard and symbolic links and
+   * the directory modes are applied once all the files have been written.
+   */
+  private def extractEntries(directory: File, entries: Iterator[TarEntry], overwrite: Boolean, threads: Int)(write: TarEntry ⇒ Path ⇒ Unit, defer: TarEntry ⇒ Option[Path ⇒ Unit]) = {
+    checkExtractDirectory(directory)
+
+    if (threads <= 1) entries.foreach { e ⇒ extractEntry(directory, e, overwrite)(write(e)) }
+    else {
+      val executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue[Runnable](threads * 2), new ThreadFactory {
+        override def newThread(r: Runnable) = {
+          val t = new Thread(r, "tar extract")
+          t.setDaemon(true)
+          t
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy)
+
+      val running = new java.util.ArrayDeque[(Path, Future[_])]
+      val pending = new java.util.HashMap[Path, Future[_]]
+      val links = ListBuffer[(Path, Path)]()
+      val hardLinks = ListBuffer[(Path, Path)]()
+      val directoryModes = ListBuffer[(Path, Int)]()
+
+      def get(f: Future[_]) =
+        try f.get
+        catch {
+          case e: ExecutionException ⇒ throw e.getCause
+        }
+
+      def complete(f: (Path, Future[_])) = {
+        val (dest, future) = f
+        get(future)
+        if (pending.get(dest) eq future) pending.remove(dest)
+      }
+
+      try {
+        for { e ← entries } {
           val dest = Paths.get(directory.toString, e.getName)
+
           if (e.isDirectory) {
             Files.createDirectories(dest)
-            dest.toFile.mode = e.getMode
+            directoryModes += dest → e.getMode
           }
           else {
             Files.createDirectories(dest.getParent)
 
-            // has the entry been marked as a symlink in the archive?
-            if (!e.getLinkName.isEmpty) Files.createSymbolicLink(dest, Paths.get(e.getLinkName))
-            // file copy from an InputStream does not support COPY_ATTRIBUTES, nor NOFOLLOW_LINKS
+            if (e.getLinkFlag == TarConstants.LF_LINK) hardLinks += dest → Paths.get(directory.toString, e.getLinkName)
+            else if (!e.getLinkName.isEmpty) links += dest → Paths.get(e.getLinkName)
             else {
-              Files.copy(tis, dest, Seq(StandardCopyOption.REPLACE_EXISTING).filter { _ ⇒ overwrite }: _*)
-              dest.toFile.mode = e.getMode
+              // an archive may contain several versions of a file
+              Option(pending.remove(dest)).foreach(get)
+
+              val mode = e.getMode
+              defer(e) match {
+                case Some(writer) ⇒
+                  val future = executor.submit(new Runnable {
+                    override def run() = {
+                      writer(dest)
+                      dest.toFile.mode = mode
+                    }
+                  })
+                  pending.put(dest, future)
+                  running.add(dest → future)
+                case None ⇒
+                  write(e)(dest)
+                  dest.toFile.mode = mode
+              }
             }
           }
+
+          while (!running.isEmpty && running.peek._2.isDone) complete(running.poll)
+        }
+
+        while (!running.isEmpty) complete(running.poll)
       }
+      finally executor.shutdownNow()
+
+      for { (dest, target) ← hardLinks } {
+        if (overwrite) Files.deleteIfExists(dest)
+        Files.createLink(dest, target)
+      }
+      for { (dest, target) ← links } Files.createSymbolicLink(dest, target)
+      for { (dest, mode) ← directoryModes.reverse } dest.toFile.mode = mode
     }
   }
 
-  implicit class FileTarArchiveDecorator(file: File) {
+  /** Files up to this size are read in memory by the archiving workers, ahead of the writer */
+  val ArchivePrefetchFileSize = 1024 * 1024
+
+  private[tar] case class ArchiveItem(
+    isSymbolicLink: Boolean,
+    isDirectory:    Boolean,
+    isRegularFile:  Boolean,
+    children:       Vector[String],
+    size:           Long,
+    modified:       Long,
+    mode:           Int,
+    linkName:       String,
+    fileKey:        Option[AnyRef],
+    content:        Option[Array[Byte]])
+
+  private def readArchiveItem(source: File, entryName: String, isRoot: Boolean, readContent: (String, ArchiveItem) ⇒ Boolean) = {
+    val attributes = Files.readAttributes(source.toPath, classOf[BasicFileAttributes], LinkOption.NOFOLLOW_LINKS)
+    val isSymbolicLink = attributes.isSymbolicLink
+    val isDirectory = attributes.isDirectory
+
+    val item =
+      ArchiveItem(
+        isSymbolicLink = isSymbolicLink,
+        isDirectory = isDirectory,
+        isRegularFile = attributes.isRegularFile,
+        children =
+          if (isDirectory) source.withDirectoryStream() { _.asScala.map(_.getFileName.toString).toVector.sorted }
+          else Vector.empty,
+        size = if (!isDirectory && !isSymbolicLink) attributes.size else 0L,
+        modified = attributes.lastModifiedTime.toMillis,
+        mode = if (!isSymbolicLink && !isRoot) source.mode else 0,
+        linkName = if (isSymbolicLink) Files.readSymbolicLink(source).toString else "",
+        fileKey = if (attributes.isRegularFile) Option(attributes.fileKey) else None,
+        content = None
+      )
 
-    def archive(dest: File, time: Boolean = true) =
-      withClosable(new TarOutputStream(dest.bufferedOutputStream())) {
-        _.archive(file, time)
+    if (item.isRegularFile && !isRoot && item.size <= ArchivePrefetchFileSize && readContent(entryName, item)) {
+      val content = Files.readAllBytes(source)
+      item.copy(size = content.length, content = Some(content))
+    }
+    else item
+  }
+
+  /** The CRC32 of segments of a file, read with positional reads */
+  private def checksum(channel: FileChannel, segments: Seq[(Long, Long)]) = {
+    val crc = new java.util.zip.CRC32
+    val buffer = java.nio.ByteBuffer.allocate(TarConstants.LARGE_BUFFER_SIZE)
+    for { (offset, length) ← segments } {
+      var position = offset
+      while (position < offset + length) {
+        // the Buffer methods, as ByteBuffer overrides them from Java 9 on
+        (buffer: java.nio.Buffer).clear()
+        (buffer: java.nio.Buffer).limit(math.min(buffer.capacity.toLong, offset + length - position).toInt)
+        val n = channel.read(buffer, position)
+        if (n == -1) throw new IOException(s"File shrank while being archived, at offset $position")
+        (buffer: java.nio.Buffer).flip()
+        crc.update(buffer)
+        position += n
       }
+    }
+    crc.getValue
+  }
 
-    //FIXME method name is ambiguous rename
-    def archiveCompress(dest: File, time: Boolean = true) =
-      withClosable(new TarOutputStream(dest.gzippedBufferedOutputStream)) {
-        _.archive(file, time)
+  /** The entry of an item, without its sparse map and its checksum which need to read the file */
+  private[tar] def archiveEntry(entryName: String, item: ArchiveItem, additionalCommand: TarEntry ⇒ Unit, link: Option[String] = None) = {
+    // tar structure distinguishes symlinks
+    val e =
+      if (item.isDirectory && !item.isSymbolicLink) new TarEntry(entryName + '/')
+      // hard links to a previous entry have no data
+      else if (link.isDefined) {
+        val e = new TarEntry(entryName, TarConstants.LF_LINK)
+        e.setLinkName(link.get)
+        e
       }
+      // tar distinguishes symlinks
+      else if (item.isSymbolicLink) {
+        val e = new TarEntry(entryName, TarConstants.LF_SYMLINK)
+        e.setLinkName(item.linkName)
+        e
+      }
+      // plain files
+      else {
+        val e = new TarEntry(entryName)
+        e.setSize(item.size)
+        e
+      }
+
+    // complete current entry by fixing its modes
+    if (!item.isSymbolicLink) e.setMode(item.mode)
+    additionalCommand(e)
+    e
+  }
+
+  private def writeArchiveItem(tos: TarOutputStream, source: File, entryName: String, item: ArchiveItem, additionalCommand: TarEntry ⇒ Unit, link: Option[String] = None, checksums: Boolean = false, sparse: Boolean = false): Unit = {
+    val e = archiveEntry(entryName, item, additionalCommand, link)
 
-    def extract(dest: File, overwrite: Boolean = false) =
-      withClosable(new TarInputStream(file.bufferedInputStream)) {
-        _.extract(dest, overwrite)
+    item.content match {
+      case _ if link.isDefined ⇒
+        tos.putNextEntry(e)
+        tos.closeEntry
+      case None if item.isRegularFile ⇒
+        // with sparse, the large files are scanned for holes, only the data segments of sparse files are archived
+        withClosable(FileChannel.open(source.toPath, StandardOpenOption.READ)) { channel ⇒
+          val segments = if (sparse) SparseMap.find(channel, item.size) else null
+          e.setSparseMap(segments)
+          if (checksums) e.setChecksum(checksum(channel, if (segments == null) Seq(0L → item.size) else segments.grouped(2).map { s ⇒ s(0) → s(1) }.toSeq))
+          tos.putNextEntry(e)
+          try {
+            if (segments == null) tos.write(channel, 0, item.size)
+            else for (i ← 0 until segments.length by 2) tos.write(channel, segments(i), segments(i + 1))
+          }
+          finally tos.closeEntry
+        }
+      case content ⇒
+        if (checksums) content.foreach { c ⇒
+          val crc = new java.util.zip.CRC32
+          crc.update(c)
+          e.setChecksum(crc.getValue)
+        }
+        tos.putNextEntry(e)
+        if (item.isRegularFile) try content.foreach(tos.write)
+        finally tos.closeEntry
+    }
+  }
+
+  /**
+   * Walk a directory in archive order, depth first with the children of each directory in name
+   * order, the root directory itself is not visited. With more than
+   * one thread, the workers stat, list and read the small files for which readContent is true for
+   * the next entries on the stack while the calling thread runs f. The stack is walked exactly as
+   * in the serial case so the order does not depend on the number of threads.
+   *
+   * At most 2 * threads entries are prefetched and not yet consumed by f, wherever they are on the
+   * stack, so at most 2 * threads + 1 small files are held in memory.
+   */
+  private[tar] def walkArchive(directory: File, rootName: String, threads: Int = 1, readContent: (String, ArchiveItem) ⇒ Boolean = (_, _) ⇒ false)(f: (File, String, ArchiveItem) ⇒ Unit) =
+    if (threads <= 1) {
+      val toArchive = new Stack[(File, String)]
+      toArchive.push(directory → rootName)
+
+      while (!toArchive.isEmpty) {
+        val (source, entryName) = toArchive.pop
+        val isRoot = source == directory
+        val item = readArchiveItem(source, entryName, isRoot, (_, _) ⇒ false)
+
+        // walk the directory tree to add all its entries to stack
+        for (child ← item.children.reverseIterator) toArchive.push((source.resolve(child), entryName + '/' + child))
+
+        if (!isRoot) f(source, entryName, item)
+      }
+    }
+    else {
+      class Node(val source: File, val entryName: String) {
+        var item: Future[ArchiveItem] = null
       }
 
-    def extractUncompress(dest: File, overwrite: Boolean = false) =
-      withClosable(new TarInputStream(file.gzippedBufferedInputStream)) {
-        _.extract(dest, overwrite)
+      val executor = Executors.newFixedThreadPool(threads, new ThreadFactory {
+        override def newThread(r: Runnable) = {
+          val t = new Thread(r, "tar archive")
+          t.setDaemon(true)
+          t
+        }
+      })
+
+      val prefetch = threads * 2
+      val toArchive = new java.util.ArrayDeque[Node]
+
+      // the nodes submitted ahead of the writer: the children of a directory are pushed above the
+      // nodes prefetched before them, which stay prefetched until they are popped
+      var prefetched = 0
+
+      def submit(node: Node) =
+        if (node.item == null) {
+          val isRoot = node.source == directory
+          node.item = executor.submit(new Callable[ArchiveItem] {
+            override def call() = readArchiveItem(node.source, node.entryName, isRoot, readContent)
+          })
+        }
+
+      def prefetchNext = {
+        val it = toArchive.iterator
+        var i = 0
+        while (it.hasNext && i < prefetch && prefetched < prefetch) {
+          val node = it.next
+          if (node.item == null) {
+            submit(node)
+            prefetched += 1
+          }
+          i += 1
+        }
       }
 
-    def copyCompress(toF: File): File = {
-      if (toF.isDirectory) file.archiveCompress(toF)
-      else file.copyCompressFile(toF)
-      toF
+      try {
+        toArchive.push(new Node(directory, rootName))
+
+        while (!toArchive.isEmpty) {
+          val node = toArchive.pop
+          if (node.item != null) prefetched -= 1
+          else submit(node)
+
+          val item =
+            try node.item.get
+            catch {
+              case e: ExecutionException ⇒ throw e.getCause
+            }
+
+          for (child ← item.children.reverseIterator) toArchive.push(new Node(node.source.resolve(child), node.entryName + '/' + child))
+          prefetchNext
+
+          if (node.source != directory) f(node.source, node.entryName, item)
+        }
+      }
+      finally executor.shutdownNow()
     }
 
-    def tarOutputStream = new TarOutputStream(file.bufferedOutputStream())
+  object ArchiveManifest {
+    /** An archived file, link is the target of a hard link entry, hash the content hash computed for deduplication */
+    case class Entry(size: Long, modified: Long, mode: Int, start: Long, end: Long, link: Option[String] = None, hash: Option[Long] = None)
+  }
+
+  /**
+   * Size, modification time, mode and position in the archive of each entry of a directory
+   * archive, used to update the archive incrementally (see archiveIncremental). checksums tells
+   * whether the entries of the archive carry the checksum of their data.
+   */
+  case class ArchiveManifest(entries: Map[String, ArchiveManifest.Entry], checksums: Boolean = false) {
+    /**
+     * Check, without reading any file, that the directory has not changed since it was archived.
+     * The files are compared by size, mode and modification time in milliseconds: a file rewritten
+     * with the same size within the resolution of the modification times of its file system (a
+     * second or two on some of them) is taken as unchanged.
+     */
+    def isUpToDate(directory: File, threads: Int = 1) =
+      if (!Files.isDirectory(directory)) false
+      else {
+        var count = 0
+        var upToDate = true
+        walkArchive(directory, "", threads) { (_, entryName, item) ⇒
+          count += 1
+          upToDate = upToDate && isUnchanged(entryName, item)
+        }
+        upToDate && count == entries.size
+      }
 
-    def withTarOutputStream[T] = withClosable[TarOutputStream, T](new TarOutputStream(file.bufferedOutputStream()))(_)
-    def withTarGZOutputStream[T] = withClosable[TarOutputStream, T](new TarOutputStream(file.bufferedOutputStream().toGZ))(_)
+    private[tar] def isUnchanged(entryName: String, item: ArchiveItem) =
+      entries.get(entryName).exists(e ⇒ e.size == item.size && e.modified == item.modified && e.mode == item.mode)
   }
 
-  private def createDirArchiveWithRelativePathWithAdditionalCommand(tos: TarOutputStream, directory: File, additionalCommand: TarEntry ⇒ Unit, includeDirectoryName: Boolean) = {
+  private def createDirArchiveWithRelativePathWithAdditionalCommand(tos: TarOutputStream, directory: File, additionalCommand: TarEntry ⇒ Unit, includeDirectoryName: Boolean, threads: Int, deduplication: ArchiveDeduplication, checksums: Boolean, sparse: Boolean) = {
 
     if (!Files.isDirectory(directory)) throw new IOException(directory.toString + " is not a directory.")
 
-    val toArchive = new Stack[(File, String)]
-    if (!includeDirectoryName) toArchive.push(directory → "") else toArchive.push(directory → directory.getName)
+    val rootName = if (!includeDirectoryName) "" else directory.getName
 
-    while (!toArchive.isEmpty) {
+    walkArchive(directory, rootName, threads, (_, _) ⇒ true) { (source, entryName, item) ⇒
+      writeArchiveItem(tos, source, entryName, item, additionalCommand, deduplication.link(source, entryName, item), checksums, sparse)
+    }
+  }
 
-      val (source, entryName) = toArchive.pop
-      val isSymbolicLink = Files.isSymbolicLink(source)
-      val isDirectory = Files.isDirectory(source)
+  /**
+   * Decide which regular files are archived as hard links (LF_LINK entries) to a previous entry
+   * of the archive: with hardLinks the files with the same inode as an archived file, with
+   * deduplicate the files with the same content. Files with the same content are found by size,
+   * then by the CRC32 of their content, computed only for the sizes shared by several files, and
+   * are compared byte per byte before being linked.
+   *
+   * A hard link is extracted with the mode of its target, so only the files with the same mode,
+   * and the same modification time when time is archived, are deduplicated.
+   *
+   * The decisions only depend on the content of the directory, in walk order. knownHash and
+   * knownSame give the results of a previous archive for the unchanged files.
+   */
+  private[tar] class ArchiveDeduplication(
+    hardLinks:   Boolean,
+    deduplicate: Boolean,
+    time:        Boolean                         = false,
+    knownHash:   String ⇒ Option[Long]           = _ ⇒ None,
+    knownSame:   (String, String) ⇒ Boolean = (_, _) ⇒ false) {
 
-      // tar structure distinguishes symlinks
-      val e =
-        if (isDirectory && !isSymbolicLink) {
-          // walk the directory tree to add all its entries to stack
-          source.withDirectoryStream() { stream ⇒
-            for (f ← stream.asScala) {
-              val newSource = source.resolve(f.getFileName)
-              val newEntryName = entryName + '/' + f.getFileName
-              toArchive.push((newSource, newEntryName))
-            }
-          }
-          // create the actual tar entry for the directory
-          new TarEntry(entryName + '/')
+    /** The size, mode and modification time shared by the files which may be linked */
+    private type Group = (Long, Int, Long)
+
+    private class Archived(val source: File, val entryName: String, val group: Group)
+
+    private val inodes = HashMap[AnyRef, String]()
+    private val unhashed = HashMap[Group, Archived]()
+    private val hashed = HashMap[(Group, Long), ListBuffer[Archived]]()
+    private val hashedGroups = HashSet[Group]()
+    private val hashes = HashMap[String, Long]()
+
+    /** @return the entry to link to, None if the file is archived with its content */
+    def link(source: File, entryName: String, item: ArchiveItem): Option[String] =
+      if (!item.isRegularFile || (!hardLinks && !deduplicate)) None
+      else {
+        val sameInode = if (hardLinks) item.fileKey.flatMap(inodes.get) else None
+
+        sameInode orElse sameContent(source, entryName, item) match {
+          case None ⇒
+            if (hardLinks) item.fileKey.foreach(inodes.put(_, entryName))
+            None
+          case link ⇒ link
         }
-        // tar distinguishes symlinks
-        else if (isSymbolicLink) {
-          val e = new TarEntry(entryName, TarConstants.LF_SYMLINK)
-          e.setLinkName(Files.readSymbolicLink(source).toString)
-          e
+      }
+
+    /** @return the content hash of an entry, if it has been computed */
+    def hash(entryName: String) = hashes.get(entryName)
+
+    private def sameContent(source: File, entryName: String, item: ArchiveItem): Option[String] =
+      if (!deduplicate || item.size == 0) None
+      else {
+        val group = (item.size, item.mode, if (time) item.modified else 0L)
+        val archived = new Archived(source, entryName, group)
+
+        // the first file of a group is hashed when a second one shows up
+        unhashed.remove(group).foreach { first ⇒ add(first, hashOf(first, None)) }
+
+        if (!hashedGroups.contains(group)) {
+          unhashed.put(group, archived)
+          None
         }
-        // plain files
         else {
-          val e = new TarEntry(entryName)
-          e.setSize(Files.size(source))
-          e
-        }
+          val hash = hashOf(archived, item.content)
+          val same =
+            hashed.get((group, hash)).flatMap {
+              _.find { c ⇒ knownSame(entryName, c.entryName) || sameBytes(c.source, source, item.content) }
+            }
 
-      // complete current entry by fixing its modes and writing it to the archive
-      if (source != directory) {
-        if (!isSymbolicLink) e.setMode(source.mode)
-        additionalCommand(e)
-        tos.putNextEntry(e)
-        if (Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) try Files.copy(source, tos)
-        finally tos.closeEntry
+          if (same.isEmpty) add(archived, hash)
+          same.map(_.entryName)
+        }
       }
+
+    private def add(archived: Archived, hash: Long) = {
+      hashedGroups += archived.group
+      hashed.getOrElseUpdate((archived.group, hash), ListBuffer()) += archived
     }
+
+    private def hashOf(archived: Archived, content: Option[Array[Byte]]) =
+      hashes.getOrElseUpdate(archived.entryName, knownHash(archived.entryName).getOrElse {
+        val crc = new java.util.zip.CRC32
+        content match {
+          case Some(c) ⇒ crc.update(c)
+          case None ⇒
+            withClosable(new java.io.FileInputStream(archived.source)) { is ⇒
+              val buffer = new Array[Byte](64 * 1024)
+              Iterator.continually(is.read(buffer)).takeWhile(_ != -1).foreach(crc.update(buffer, 0, _))
+            }
+        }
+        crc.getValue
+      })
+
+    private def sameBytes(archived: File, source: File, content: Option[Array[Byte]]) =
+      content match {
+        case Some(c) ⇒ java.util.Arrays.equals(Files.readAllBytes(archived), c)
+        case None ⇒
+          withClosable(new java.io.FileInputStream(archived)) { a ⇒
+            withClosable(new java.io.FileInputStream(source)) { b ⇒
+              val bufferA = new Array[Byte](64 * 1024)
+              val bufferB = new Array[Byte](64 * 1024)
+
+              def readFully(is: java.io.InputStream, buffer: Array[Byte]) = {
+                var read = 0
+                var n = 0
+                while (read < buffer.length && { n = is.read(buffer, read, buffer.length - read); n != -1 }) read += n
+                read
+              }
+
+              def sameRange(length: Int) = {
+                var i = 0
+                while (i < length && bufferA(i) == bufferB(i)) i += 1
+                i == length
+              }
+
+              var same = true
+              var end = false
+              while (same && !end) {
+                val read = readFully(a, bufferA)
+                same = readFully(b, bufferB) == read && sameRange(read)
+                end = read < bufferA.length
+              }
+              same
+            }
+          }
+      }
   }
 }
@@ -0,0 +1,854 @@
+/*
+ * Copyright (C) 2018 Romain Reuillon
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openmole.tool.tar
+
+import java.io.{ ByteArrayInputStream, ByteArrayOutputStream, FileInputStream }
+import java.util.zip.GZIPInputStream
+import java.nio.channels.FileChannel
+import java.nio.file.{ Files, Paths }
+
+import org.openmole.tool.file._
+import org.openmole.tool.stream._
+import org.scalatest._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+
+class TarSpec extends FlatSpec with Matchers {
+
+  def withTmpDir[T](f: File ⇒ T) = {
+    val dir = Files.createTempDirectory("tarspec").toFile
+    try f(dir)
+    finally dir.recursiveDelete
+  }
+
+  def content(size: Int) = Array.tabulate[Byte](size)(i ⇒ (i % 251).toByte)
+
+  def archive(entries: (String, Array[Byte])*) = {
+    val os = new ByteArrayOutputStream()
+    val tos = new TarOutputStream(os)
+    for { (name, bytes) ← entries } {
+      val e = new TarEntry(name)
+      e.setSize(bytes.length)
+      tos.putNextEntry(e)
+      tos.write(bytes)
+      tos.closeEntry()
+    }
+    tos.close()
+    os.toByteArray
+  }
+
+  "Entry content" should "be read back whatever the read size" in {
+    val first = content(1000)
+    val second = content(70000)
+    val tar = archive("first" → first, "second" → second)
+
+    for { readSize ← Seq(1, 7, 512, 513, 4096) } {
+      val tis = new TarInputStream(new ByteArrayInputStream(tar))
+      val buffer = new Array[Byte](readSize)
+
+      def readEntry = {
+        val os = new ByteArrayOutputStream()
+        Iterator.continually(tis.read(buffer)).takeWhile(_ != -1).foreach(os.write(buffer, 0, _))
+        os.toByteArray
+      }
+
+      tis.getNextEntry.getName should equal("first")
+      readEntry should equal(first)
+      tis.getNextEntry.getName should equal("second")
+      readEntry should equal(second)
+      tis.getNextEntry should equal(null)
+      tis.close()
+    }
+  }
+
+  "Entry content" should "be skipped whatever the input" in withTmpDir { dir ⇒
+    val big = content(300000)
+    val archiveFile = dir / "archive.tar"
+    Files.write(archiveFile, archive("first" → content(700), "big" → big, "last" → content(5)))
+
+    def inputs = Seq(
+      () ⇒ new TarInputStream(new FileInputStream(archiveFile)),
+      () ⇒ new TarInputStream(archiveFile.bufferedInputStream),
+      () ⇒ new TarInputStream(FileChannel.open(archiveFile.toPath)),
+      () ⇒ new TarInputStream(new ByteArrayInputStream(Files.readAllBytes(archiveFile)))
+    )
+
+    for { input ← inputs } {
+      val tis = input()
+      try {
+        tis.getNextEntry.getName should equal("first")
+        tis.getNextEntry.getName should equal("big")
+        tis.skip(100) should equal(100)
+        tis.read() should equal(big(100) & 0xFF)
+        tis.skip(200000) should equal(200000)
+        tis.read() should equal(big(200101) & 0xFF)
+        tis.getNextEntry.getName should equal("last")
+        tis.getNextEntry should equal(null)
+      }
+      finally tis.close()
+    }
+  }
+
+  "A tar file" should "give access to a member without reading the others" in withTmpDir { dir ⇒
+    val longName = "long/" * 40 + "name"
+    val big = content(100000)
+    val archiveFile = dir / "archive.tar"
+    Files.write(archiveFile, archive("big" → big, longName → content(10), "small" → content(3)))
+
+    archiveFile.withTarFile { tarFile ⇒
+      tarFile.getEntries.asScala.map(_.getName) should equal(Seq("big", longName, "small"))
+      val entry = tarFile.getEntry(longName)
+      entry.getSize should equal(10)
+      withClosable(tarFile.getInputStream(entry))(_.toByteArray) should equal(content(10))
+      withClosable(tarFile.getInputStream(tarFile.getEntry("big")))(_.toByteArray) should equal(big)
+    }
+  }
+
+  "A header" should "be read back with UTF-8 names and large sizes" in {
+    val names = Seq("été/données.csv", "日本語/" * 30 + "file", "plain")
+    val tis = new TarInputStream(new ByteArrayInputStream(archive(names.map(_ → content(10)): _*)))
+    for { name ← names } tis.getNextEntry.getName should equal(name)
+    tis.close()
+
+    val entry = new TarEntry("big")
+    entry.setSize(20L * 1024 * 1024 * 1024)
+    val header = new Array[Byte](TarConstants.DEFAULT_RCDSIZE * 2)
+    entry.writeEntryHeader(header)
+    System.arraycopy(header, 0, header, TarConstants.DEFAULT_RCDSIZE, TarConstants.DEFAULT_RCDSIZE)
+    val parsed = new TarEntry(header, TarConstants.DEFAULT_RCDSIZE)
+    parsed.getName should equal("big")
+    parsed.getSize should equal(20L * 1024 * 1024 * 1024)
+  }
+
+  "Extended headers" should "carry the fields that do not fit in the header" in withTmpDir { dir ⇒
+    val longName = "répertoire/" * 30 + "fichier"
+    val time = java.nio.file.attribute.FileTime.from(java.time.Instant.ofEpochSecond(1500000000L, 123456789))
+
+    val os = new ByteArrayOutputStream()
+    val tos = new TarOutputStream(os)
+    tos.putGlobalHeader(Map("comment" → "global").asJava)
+
+    val file = new TarEntry(longName)
+    file.setSize(3)
+    file.setLastModifiedTime(time)
+    file.setExtendedHeader("OPENMOLE.test", "value")
+    tos.putNextEntry(file)
+    tos.write(content(3))
+    tos.closeEntry()
+
+    val link = new TarEntry("link", TarConstants.LF_SYMLINK)
+    link.setLinkName(longName)
+    tos.putNextEntry(link)
+    tos.closeEntry()
+
+    val large = new TarEntry("large")
+    large.setTarFormat(TarEntry.USTAR_FORMAT)
+    large.setSize(TarConstants.MAX_OCTAL_SIZE + 1)
+    val header = new Array[Byte](TarConstants.DEFAULT_RCDSIZE)
+    large.writeEntryHeader(header)
+    PaxHeader.records(large).get(PaxHeader.SIZE) should equal((TarConstants.MAX_OCTAL_SIZE + 1).toString)
+    tos.close()
+
+    def check(entries: Seq[TarEntry]) = {
+      entries.map(_.getName) should equal(Seq(longName, "link"))
+      entries(0).getLastModifiedTime should equal(time)
+      entries(0).getExtendedHeaders.asScala should equal(Map("comment" → "global", "OPENMOLE.test" → "value"))
+      entries(1).getLinkName should equal(longName)
+    }
+
+    val tis = new TarInputStream(new ByteArrayInputStream(os.toByteArray))
+    check(Iterator.continually(tis.getNextEntry).takeWhile(_ != null).toList)
+    tis.close()
+
+    val archiveFile = dir / "archive.tar"
+    Files.write(archiveFile, os.toByteArray)
+    archiveFile.withTarFile { tarFile ⇒
+      check(tarFile.getEntries.asScala)
+      withClosable(tarFile.getInputStream(tarFile.getEntry(longName)))(_.toByteArray) should equal(content(3))
+    }
+  }
+
+  "A deep directory" should "be archived and extracted" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    val deep = (0 until 20).foldLeft(source)((d, i) ⇒ d /> s"working-directory-of-the-job-$i")
+    (deep / "fichier") < "content"
+    Files.createSymbolicLink(source / "link", source.toPath.relativize(deep.toPath))
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile)
+    val dest = dir / "dest"
+    archiveFile.extract(dest)
+
+    (dest / source.toPath.relativize(deep.toPath).toString / "fichier").content should equal("content")
+    Files.readSymbolicLink(dest / "link") should equal(source.toPath.relativize(deep.toPath))
+  }
+
+  "A directory" should "be archived and extracted" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    (source /> "sub" / "file") < "content"
+    (source / "empty") < ""
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile)
+    val dest = dir / "dest"
+    archiveFile.extract(dest)
+
+    (dest / "sub" / "file").content should equal("content")
+    (dest / "empty").content should equal("")
+
+    (source / "sub" / "file") < "new content"
+    source.archive(archiveFile)
+    a[java.nio.file.FileAlreadyExistsException] should be thrownBy archiveFile.extract(dest)
+    archiveFile.extract(dest, overwrite = true)
+    (dest / "sub" / "file").content should equal("new content")
+  }
+
+  "A tar gz stream" should "buffer the entries of unknown size and spill the large ones to disk" in withTmpDir { dir ⇒
+    val tmp = dir /> "tmp"
+    val entries = Seq("small" → content(1000), "large" → content(100000), "empty" → Array.empty[Byte])
+
+    val os = new ByteArrayOutputStream()
+    val tgz = new TarGzOutputStream(os, 4096, tmp)
+    for { (name, data) ← entries } {
+      tgz.putNextEntry(new TarEntry(name))
+      tgz.write(data.take(10))
+      tgz.write(data.drop(10))
+      if (name == "large") tmp.list.length should equal(1)
+      tgz.closeEntry()
+      tmp.list should be(empty)
+    }
+    tgz.putNextEntry(new TarEntry("last"))
+    tgz.write(content(5000))
+    tgz.close()
+    tmp.list should be(empty)
+
+    withClosable(new TarInputStream(new GZIPInputStream(new ByteArrayInputStream(os.toByteArray)))) { tis ⇒
+      for { (name, data) ← entries :+ ("last" → content(5000)) } {
+        val entry = tis.getNextEntry
+        entry.getName should equal(name)
+        entry.getSize should equal(data.length)
+        val read = new Array[Byte](data.length)
+        new java.io.DataInputStream(tis).readFully(read)
+        read should equal(data)
+      }
+      tis.getNextEntry should be(null)
+    }
+  }
+
+  "A parallel gzip stream" should "be readable by GZIPInputStream" in {
+    for { size ← Seq(0, 1, 1000, 4096, 4097, 100000) } {
+      val data = content(size)
+      val os = new ByteArrayOutputStream()
+      val gz = new ParallelGZIPOutputStream(os, threads = 3, blockSize = 4096)
+      gz.write(data.take(10))
+      gz.flush()
+      gz.write(data.drop(10))
+      gz.close()
+
+      new GZIPInputStream(new ByteArrayInputStream(os.toByteArray)).toByteArray should equal(data)
+    }
+  }
+
+  "A parallel gzip input stream" should "read block gzip, gzip and concatenated gzip files" in {
+    val data = Array.tabulate[Byte](1000000)(i ⇒ ((i * 31) % 253 + i / 5000).toByte)
+
+    def gzip(data: Array[Byte]) = {
+      val os = new ByteArrayOutputStream()
+      withClosable(new java.util.zip.GZIPOutputStream(os))(_.write(data))
+      os.toByteArray
+    }
+
+    def blockGZip(data: Array[Byte]) = {
+      val os = new ByteArrayOutputStream()
+      withClosable(new BlockGZIPOutputStream(os, threads = 2, blockSize = 10000))(_.write(data))
+      os.toByteArray
+    }
+
+    def parallelGZip(data: Array[Byte]) = {
+      val os = new ByteArrayOutputStream()
+      withClosable(new ParallelGZIPOutputStream(os, threads = 2, blockSize = 10000))(_.write(data))
+      os.toByteArray
+    }
+
+    def read(compressed: Array[Byte]) =
+      new ParallelGZIPInputStream(new ByteArrayInputStream(compressed), threads = 3).toByteArray
+
+    val (first, second) = data.splitAt(300000)
+
+    read(blockGZip(data)) should equal(data)
+    read(blockGZip(Array.empty)) should equal(Array.empty[Byte])
+    read(gzip(data)) should equal(data)
+    read(parallelGZip(data)) should equal(data)
+    read(gzip(first) ++ gzip(second)) should equal(data)
+    read(blockGZip(first) ++ gzip(second)) should equal(data)
+    read(blockGZip(data) ++ Array[Byte](1, 2, 3)) should equal(data)
+
+    val corrupted = blockGZip(data)
+    corrupted(corrupted.length / 2) = (corrupted(corrupted.length / 2) ^ 0xFF).toByte
+    an[java.io.IOException] should be thrownBy read(corrupted)
+    an[java.io.IOException] should be thrownBy read(data.take(100))
+
+    val partial = new ParallelGZIPInputStream(new ByteArrayInputStream(gzip(data)))
+    partial.read(new Array[Byte](10)) should equal(10)
+    partial.close()
+  }
+
+  "A block gzip tar" should "be a gzip file readable from any entry" in withTmpDir { dir ⇒
+    val file = dir / "archive.tgz"
+    val entries = (0 until 20).map(i ⇒ s"file$i" → content(i * 1000))
+
+    val offsets = withClosable(new TarOutputStream(new BlockGZIPOutputStream(file.bufferedOutputStream(), threads = 3, blockSize = 4096))) { tos ⇒
+      entries.map {
+        case (name, data) ⇒
+          val offset = tos.getBytesWritten
+          val entry = new TarEntry(name)
+          entry.setSize(data.length)
+          tos.putNextEntry(entry)
+          tos.write(data)
+          tos.closeEntry()
+          offset
+      }
+    }
+
+    withClosable(new TarInputStream(file.gzippedBufferedInputStream)) { tis ⇒
+      Iterator.continually(tis.getNextEntry).takeWhile(_ != null).map(_.getName).toList should equal(entries.map(_._1).toList)
+    }
+
+    withClosable(FileChannel.open(file.toPath)) { channel ⇒
+      val index = BlockGZIP.readIndex(channel).get
+      index.members should be > 1
+      val scanned = BlockGZIP.scanIndex(channel)
+      scanned.uncompressed should equal(index.uncompressed)
+      scanned.compressed should equal(index.compressed)
+    }
+
+    for { ((name, data), offset) ← entries zip offsets if offset % 3 == 0 || name == "file7" } {
+      file.withBlockGZTarInputStream(offset, threads = 2) { tis ⇒
+        val entry = tis.getNextEntry
+        entry.getName should equal(name)
+        val read = new Array[Byte](data.length)
+        new java.io.DataInputStream(tis).readFully(read)
+        read should equal(data)
+        Option(tis.getNextEntry).map(_.getName) should equal(entries.dropWhile(_._1 != name).drop(1).headOption.map(_._1))
+      }
+    }
+  }
+
+  "A directory" should "be archived block compressed and extracted" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    (source / "a").content = "a"
+    (source /> "sub" / "b").content = new String(content(1000000).map(b ⇒ ('a' + b % 26).toChar))
+
+    val archiveFile = dir / "archive.tgz"
+    source.archiveBlockCompress(archiveFile, threads = 2)
+
+    val dest = dir /> "dest"
+    archiveFile.extractBlockUncompress(dest)
+    (dest / "a").content should equal("a")
+    (dest / "sub" / "b").content should equal((source / "sub" / "b").content)
+
+    val gzipDest = dir /> "gzipDest"
+    archiveFile.extractUncompress(gzipDest)
+    (gzipDest / "sub" / "b").content should equal((source / "sub" / "b").content)
+  }
+
+  "A directory" should "be archived compressed and extracted" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source / "big", content(1000000))
+    (source /> "sub" / "file") < "content"
+
+    val archiveFile = dir / "archive.tgz"
+    source.archiveCompress(archiveFile)
+    val dest = dir / "dest"
+    archiveFile.extractUncompress(dest)
+
+    Files.readAllBytes(dest / "big") should equal(content(1000000))
+    (dest / "sub" / "file").content should equal("content")
+  }
+
+  "A directory" should "be archived the same way with several threads" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 20 } (source /> s"dir$i" / "file") < s"content $i"
+    Files.write(source / "big", content(3 * ArchivePrefetchFileSize))
+    Files.createSymbolicLink(source / "link", source / "big")
+
+    val serial = dir / "serial.tar"
+    val parallel = dir / "parallel.tar"
+    source.archive(serial, time = false)
+    source.archive(parallel, time = false, threads = 4)
+
+    Files.readAllBytes(parallel) should equal(Files.readAllBytes(serial))
+  }
+
+  "An asynchronous tar stream" should "write the same archive and report the write errors" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 20 } Files.write(source /> s"dir$i" / "file", content(i * 3000))
+    Files.write(source / "big", content(3 * ArchivePrefetchFileSize))
+
+    val serial = new ByteArrayOutputStream()
+    withClosable(new TarOutputStream(serial))(_.archive(source, time = false))
+
+    val async = new ByteArrayOutputStream()
+    withClosable(asyncTarOutputStream(async))(_.archive(source, time = false))
+    async.toByteArray should equal(serial.toByteArray)
+
+    val failing = new java.io.OutputStream {
+      var written = 0
+      override def write(b: Int) = write(Array(b.toByte), 0, 1)
+      override def write(b: Array[Byte], off: Int, len: Int) = {
+        written += len
+        if (written > 50000) throw new java.io.IOException("disk full")
+      }
+    }
+
+    val thrown = the[java.io.IOException] thrownBy withClosable(asyncTarOutputStream(failing))(_.archive(source, time = false))
+    thrown.getCause.getMessage should equal("disk full")
+  }
+
+  "The buffer size" should "not change the archive" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 30 } Files.write(source /> s"dir$i" / "file", content(i * 5000))
+    Files.write(source / "big", content(3 * TarConstants.FILE_BUFFER_SIZE + 1000))
+
+    val stream = new ByteArrayOutputStream()
+    withClosable(new TarOutputStream(stream))(_.archive(source, time = false))
+
+    val file = dir / "archive.tar"
+    source.archive(file, time = false)
+    Files.readAllBytes(file) should equal(stream.toByteArray)
+
+    val small = new ByteArrayOutputStream()
+    withClosable(new TarOutputStream(small, TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, 3 * TarConstants.DEFAULT_BLKSIZE, true))(_.archive(source, time = false))
+    small.toByteArray should equal(stream.toByteArray)
+
+    def entries(tis: TarInputStream) =
+      Iterator.continually(tis.getNextEntry).takeWhile(_ != null).map { e ⇒
+        val data = new ByteArrayOutputStream()
+        tis.copyEntryContents(data)
+        e.getName → data.toByteArray.toSeq
+      }.toList
+
+    val expected = withClosable(new TarInputStream(new ByteArrayInputStream(stream.toByteArray)))(entries)
+    withClosable(new TarInputStream(new FileInputStream(file)))(entries) should equal(expected)
+    withClosable(new TarInputStream(FileChannel.open(file.toPath), TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, 3 * TarConstants.DEFAULT_BLKSIZE))(entries) should equal(expected)
+
+    val tgz = dir / "copy.tar.gz"
+    Tar.gzipTarFile(file, tgz)
+    Tar.extractFiles(tgz, dir /> "extracted")
+    Files.readAllBytes(dir / "extracted" / "big") should equal(Files.readAllBytes(source / "big"))
+    Files.readAllBytes(dir / "extracted" / "dir7" / "file") should equal(content(35000))
+  }
+
+  "A nested directory archive" should "be the archive of the directory" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 10 } Files.write(source /> s"dir$i" / "file", content(i * 7000))
+    Files.write(source / "big", content(2 * ArchivePrefetchFileSize + 3))
+    Files.createSymbolicLink(source / "link", source / "big")
+
+    val archive = dir / "archive.tar"
+    source.archive(archive)
+
+    val os = new ByteArrayOutputStream()
+    withClosable(new TarOutputStream(os)) { tos ⇒
+      tos.addDirectory(source, "nested")
+      tos.addFile(source / "big", "after")
+    }
+
+    withClosable(new TarInputStream(new ByteArrayInputStream(os.toByteArray))) { tis ⇒
+      def next = {
+        val entry = tis.getNextEntry
+        val data = new ByteArrayOutputStream()
+        tis.copyEntryContents(data)
+        entry.getName → data.toByteArray
+      }
+
+      val (nestedName, nested) = next
+      nestedName should equal("nested")
+      nested should equal(Files.readAllBytes(archive))
+      next._2 should equal(Files.readAllBytes(source / "big"))
+    }
+  }
+
+  "An incremental archive" should "be the same as a full archive" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 10 } Files.write(source /> s"dir$i" / "file", content(i * 7000))
+    Files.write(source / "big", content(100000))
+
+    def full(name: String) = {
+      val archive = dir / name
+      source.archive(archive, time = false)
+      Files.readAllBytes(archive)
+    }
+
+    val first = dir / "first.tar"
+    val manifest = source.archiveIncremental(first)
+    Files.readAllBytes(first) should equal(full("full1.tar"))
+    manifest.isUpToDate(source) should equal(true)
+
+    Files.write(source / "dir3" / "file", content(30))
+    (source / "new") < "new"
+    manifest.isUpToDate(source) should equal(false)
+
+    val second = dir / "second.tar"
+    val secondManifest = source.archiveIncremental(second, Some(first → manifest), threads = 3)
+    Files.readAllBytes(second) should equal(full("full2.tar"))
+    secondManifest.isUpToDate(source) should equal(true)
+  }
+
+  "A directory" should "be extracted with several threads" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    for { i ← 0 until 50 } Files.write(source /> s"dir${i % 5}" / s"file$i", content(i * 1000))
+    Files.write(source / "big", content(2 * ExtractBufferFileSize))
+    Files.createSymbolicLink(source / "dir1" / "link", Paths.get("../big"))
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile)
+
+    def check(dest: File) = {
+      for { i ← 0 until 50 } Files.readAllBytes(dest / s"dir${i % 5}" / s"file$i") should equal(content(i * 1000))
+      Files.readAllBytes(dest / "big") should equal(content(2 * ExtractBufferFileSize))
+      Files.readSymbolicLink(dest / "dir1" / "link") should equal(Paths.get("../big"))
+    }
+
+    archiveFile.extract(dir / "fromFile", threads = 4)
+    check(dir / "fromFile")
+
+    withClosable(new TarInputStream(archiveFile.bufferedInputStream))(_.extract(dir / "fromStream", threads = 4))
+    check(dir / "fromStream")
+  }
+
+  "A sparse file" should "be archived without its holes and extracted" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    val size = 64L * 1024 * 1024
+    val data = content(100000)
+    val offsets = Seq(0L, 10L * 1024 * 1024, size - data.length)
+    withClosable(new java.io.RandomAccessFile(source / "sparse", "rw")) { f ⇒
+      f.setLength(size)
+      for { o ← offsets } { f.seek(o); f.write(data) }
+    }
+
+    val expected = Files.readAllBytes(source / "sparse")
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile, sparse = true)
+
+    Files.size(archiveFile) should be < (1024L * 1024)
+
+    // without sparse, the holes are archived as zeros
+    source.archive(dir / "dense.tar")
+    (dir / "dense.tar").withTarFile { _.getEntries.asScala.exists(_.isSparse) should equal(false) }
+
+    archiveFile.withTarFile { tarFile ⇒
+      val e = tarFile.getEntries.asScala.find(_.getName.endsWith("sparse")).get
+      e.isSparse should equal(true)
+      e.getSize should equal(size)
+      SparseMap.dataSize(e.getSparseMap) should be < (offsets.size * (data.length + 8192L))
+    }
+
+    archiveFile.extract(dir / "fromFile")
+    Files.readAllBytes(dir / "fromFile" / "sparse") should equal(expected)
+
+    withClosable(new TarInputStream(archiveFile.bufferedInputStream))(_.extract(dir / "fromStream", threads = 2))
+    Files.readAllBytes(dir / "fromStream" / "sparse") should equal(expected)
+
+    withClosable(new TarInputStream(archiveFile.bufferedInputStream)) { tis ⇒
+      tis.getNextEntry.getName should endWith("sparse")
+      tis.skip(10L * 1024 * 1024) should equal(10L * 1024 * 1024)
+      val read = new Array[Byte](data.length)
+      var n = 0
+      while (n < read.length) n += tis.read(read, n, read.length - n)
+      read should equal(data)
+    }
+  }
+
+  "Hard links and identical files" should "be archived as hard links" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source / "a", content(200000))
+    Files.createLink(source / "hard", source / "a")
+    Files.write(source /> "lib" / "copy", content(200000))
+    Files.write(source / "other", content(200001).drop(1))
+    Files.write(source / "small", content(10))
+    Files.write(source / "lib" / "small", content(10))
+    // the same content with another mode
+    Files.write(source / "copy.sh", content(5000))
+    Files.write(source / "run.sh", content(5000))
+    (source / "run.sh").setExecutable(true)
+
+    def links(archiveFile: File) =
+      archiveFile.withTarFile {
+        _.getEntries.asScala.filter(_.getLinkFlag == TarConstants.LF_LINK).map(e ⇒ e.getName → e.getLinkName).toMap
+      }
+
+    val hardLinks = dir / "hardLinks.tar"
+    source.archive(hardLinks, hardLinks = true)
+    links(hardLinks).toSeq.flatMap { case (name, target) ⇒ Seq(name, target) }.toSet should equal(Set("/a", "/hard"))
+
+    val deduplicated = dir / "deduplicated.tar"
+    source.archive(deduplicated, time = false, hardLinks = true, deduplicate = true)
+    links(deduplicated).size should equal(3)
+    Files.size(deduplicated) should be < Files.size(hardLinks)
+
+    def check(dest: File) = {
+      for { f ← Seq("a", "hard", "lib/copy", "other", "small", "lib/small") } Files.readAllBytes(dest / f) should equal(Files.readAllBytes(source / f))
+      Files.isSameFile(dest / "a", dest / "hard") should equal(true)
+      Files.isSameFile(dest / "a", dest / "lib" / "copy") should equal(true)
+      Files.isSameFile(dest / "small", dest / "lib" / "small") should equal(true)
+      Files.isSameFile(dest / "copy.sh", dest / "run.sh") should equal(false)
+      (dest / "run.sh").canExecute should equal(true)
+      (dest / "copy.sh").canExecute should equal(false)
+    }
+
+    deduplicated.extract(dir / "fromFile")
+    check(dir / "fromFile")
+
+    withClosable(new TarInputStream(deduplicated.bufferedInputStream))(_.extract(dir / "fromStream", threads = 4))
+    check(dir / "fromStream")
+
+    val manifest = source.archiveIncremental(dir / "first.tar", hardLinks = true, deduplicate = true)
+    Files.readAllBytes(dir / "first.tar") should equal(Files.readAllBytes(deduplicated))
+    Files.write(source / "other", content(200000))
+    source.archive(dir / "full.tar", time = false, hardLinks = true, deduplicate = true)
+    source.archiveIncremental(dir / "second.tar", Some((dir / "first.tar") → manifest), hardLinks = true, deduplicate = true)
+    Files.readAllBytes(dir / "second.tar") should equal(Files.readAllBytes(dir / "full.tar"))
+  }
+
+  "An archive with checksums" should "be extracted and detect the corrupted entries" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source / "small", content(1000))
+    Files.write(source / "empty", Array.empty[Byte])
+    Files.write(source /> "lib" / "large", Array.fill[Byte](3 * 1024 * 1024)(7))
+    withClosable(new java.io.RandomAccessFile(source / "sparse", "rw")) { f ⇒
+      f.setLength(20L * 1024 * 1024)
+      f.seek(10L * 1024 * 1024)
+      f.write(content(5000))
+    }
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile, threads = 2, checksums = true, sparse = true)
+
+    archiveFile.withTarFile { tarFile ⇒
+      val files = tarFile.getEntries.asScala.filter(e ⇒ !e.isDirectory)
+      files.size should equal(4)
+      files.foreach(_.getChecksum should not equal (-1L))
+    }
+
+    archiveFile.extractVerified(dir / "extracted", threads = 2)
+    for { f ← Seq("small", "empty", "lib/large", "sparse") } Files.readAllBytes(dir / "extracted" / f) should equal(Files.readAllBytes(source / f))
+
+    val tar = Files.readAllBytes(archiveFile)
+    tar(tar.indexOfSlice(Array.fill[Byte](1024)(7)) + 100000) = 8
+    Files.write(archiveFile, tar)
+
+    val thrown = the[java.io.IOException] thrownBy archiveFile.extractVerified(dir / "corrupted")
+    thrown.getMessage should include("checksum")
+
+    // the skipped data is not checked
+    withClosable(new TarInputStream(archiveFile.bufferedInputStream)) { tis ⇒
+      Iterator.continually(tis.getNextEntry).takeWhile(_ != null).size should equal(5)
+    }
+  }
+
+  "An incremental archive with checksums" should "keep the checksums of the copied entries" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source / "small", content(1000))
+    Files.write(source /> "lib" / "large", Array.fill[Byte](3 * 1024 * 1024)(7))
+
+    def full(name: String) = {
+      val archive = dir / name
+      source.archive(archive, time = false, checksums = true)
+      Files.readAllBytes(archive)
+    }
+
+    val first = dir / "first.tar"
+    val manifest = source.archiveIncremental(first, checksums = true)
+    Files.readAllBytes(first) should equal(full("full1.tar"))
+
+    // the entry of the large file is copied from the first archive
+    Files.write(source / "small", content(2000))
+    val second = dir / "second.tar"
+    source.archiveIncremental(second, Some(first → manifest), checksums = true)
+    Files.readAllBytes(second) should equal(full("full2.tar"))
+
+    // an archive without checksums is not reused
+    val plain = source.archiveIncremental(dir / "plain.tar")
+    source.archiveIncremental(dir / "third.tar", Some((dir / "plain.tar") → plain), checksums = true)
+    Files.readAllBytes(dir / "third.tar") should equal(Files.readAllBytes(second))
+
+    second.extractVerified(dir / "extracted")
+    for { f ← Seq("small", "lib/large") } Files.readAllBytes(dir / "extracted" / f) should equal(Files.readAllBytes(source / f))
+
+    val tar = Files.readAllBytes(second)
+    tar(tar.indexOfSlice(Array.fill[Byte](1024)(7)) + 100000) = 8
+    Files.write(second, tar)
+
+    val thrown = the[java.io.IOException] thrownBy second.extractVerified(dir / "corrupted")
+    thrown.getMessage should include("checksum")
+  }
+
+  "Visiting the entries" should "give the same headers as getNextEntry" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    val longName = "l" * 150 + "/" + "n" * 120
+    Files.write(source /> "dir" / "small", content(1000))
+    Files.write(source / "large", content(200000))
+    Files.createDirectories((source / longName).getParentFile.toPath)
+    Files.write(source / longName, content(10))
+    Files.createSymbolicLink(source / "link", Paths.get("dir/small"))
+    withClosable(new java.io.RandomAccessFile(source / "sparse", "rw")) { f ⇒
+      f.setLength(4L * 1024 * 1024)
+      f.write(content(100))
+    }
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile, checksums = true, sparse = true)
+
+    val entries = withClosable(new TarInputStream(archiveFile.bufferedInputStream)) { tis ⇒
+      Iterator.continually(tis.getNextEntry).takeWhile(_ != null).map(e ⇒ (e.getName, e.getSize, e.isDirectory, e.isSparse, e.getMode, e.getLinkName, e.getModTime.getTime)).toList
+    }
+
+    val visited = ListBuffer[(String, Long, Boolean, Boolean, Int, String, Long)]()
+    withClosable(new TarInputStream(FileChannel.open(archiveFile.toPath))) {
+      _.visitAndClose { e ⇒
+        visited += ((e.getName, e.getSize, e.isDirectory, e.isSparse, e.getMode, e.getLinkName, e.getLastModified))
+        e.toTarEntry.getName should equal(e.getName)
+        true
+      }
+    }
+    visited.toList should equal(entries)
+
+    // the sparse entry is read as stored, its checksum is not checked against it
+    withClosable(new TarInputStream(FileChannel.open(archiveFile.toPath))) { tis ⇒
+      tis.visitAndClose { _ ⇒
+        tis.copyEntryContents(new ByteArrayOutputStream)
+        true
+      }
+    }
+
+    // the data can be read during the visit, the skipped entries are not read
+    val tis = new TarInputStream(FileChannel.open(archiveFile.toPath))
+    var read: Option[Array[Byte]] = None
+    tis.visitAndClose { e ⇒
+      if (e.nameEndsWith("/small")) {
+        val data = new ByteArrayOutputStream
+        tis.copyEntryContents(data)
+        read = Some(data.toByteArray)
+      }
+      read.isEmpty
+    }
+    read.get should equal(content(1000))
+  }
+
+  "An asynchronous archive" should "be the archive of the directory and be extracted" in withTmpDir { dir ⇒
+    import java.nio.file.StandardOpenOption._
+    import java.util.concurrent.TimeUnit
+
+    val source = dir /> "source"
+    Files.write(source /> "dir" / "small", content(1000))
+    Files.write(source / "large", content(3 * 1024 * 1024))
+
+    source.archive(dir / "sync.tar", time = false)
+
+    val channel = java.nio.channels.AsynchronousFileChannel.open((dir / "async.tar").toPath, CREATE, WRITE)
+    AsyncTar.archive(source, AsyncTar.blocking(channel), time = false).get(1, TimeUnit.MINUTES)
+    Files.readAllBytes(dir / "async.tar") should equal(Files.readAllBytes(dir / "sync.tar"))
+
+    // a channel which is not seekable, as a network connection
+    val stream = java.nio.channels.Channels.newChannel(new FileInputStream(dir / "async.tar"))
+    AsyncTar.extract(stream, dir / "fromStream", threads = 2).get(1, TimeUnit.MINUTES) should equal(dir / "fromStream")
+    for { f ← Seq("dir/small", "large") } Files.readAllBytes(dir / "fromStream" / f) should equal(Files.readAllBytes(source / f))
+
+    val failed = AsyncTar.extract(AsyncTar.blocking(java.nio.channels.AsynchronousFileChannel.open((dir / "async.tar").toPath, READ), 1), dir / "failed")
+    an[java.util.concurrent.ExecutionException] should be thrownBy failed.get(1, TimeUnit.MINUTES)
+  }
+
+  "The layout of an archive" should "give the archive and any range of it" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source /> "b" / "small", content(1000))
+    Files.write(source / ("a" + "long" * 40), content(512))
+    Files.write(source / "empty", Array.empty[Byte])
+    Files.write(source / "large", content(3 * 1024 * 1024 + 17))
+
+    source.archive(dir / "archive.tar", time = false)
+    val archive = Files.readAllBytes(dir / "archive.tar")
+
+    val layout = ArchiveLayout(source)
+    layout.length should equal(archive.length)
+    layout.index.map(_._1) should equal(Seq("a" + ("long" * 40), "b/", "b/small", "empty", "large"))
+
+    def write(start: Long, end: Long) = {
+      val os = new ByteArrayOutputStream
+      layout.write(os, start, end)
+      os.toByteArray
+    }
+
+    write(0, layout.length) should equal(archive)
+    for { (_, offset) ← layout.index } write(offset, offset + 512) should equal(archive.slice(offset.toInt, offset.toInt + 512))
+
+    val random = new scala.util.Random(42)
+    for { _ ← 0 until 20 } {
+      val start = random.nextInt(archive.length)
+      val end = start + random.nextInt(archive.length - start + 1)
+      write(start, end) should equal(archive.slice(start, end))
+    }
+
+    layout.range(Some("bytes=100-199")) should equal(Some((100L, 200L)))
+    layout.range(Some("bytes=100-")) should equal(Some((100L, layout.length)))
+    layout.range(Some("bytes=-100")) should equal(Some((layout.length - 100, layout.length)))
+    layout.range(Some("bytes=100-199"), Some(layout.etag)) should equal(Some((100L, 200L)))
+    layout.range(Some("bytes=100-199"), Some("\"other\"")) should equal(None)
+    layout.range(Some(s"bytes=${layout.length}-")) should equal(None)
+    layout.range(Some("bytes=0-1,5-6")) should equal(None)
+
+    ArchiveLayout(source).etag should equal(layout.etag)
+    Files.write(source / "b" / "small", content(999))
+    ArchiveLayout(source).etag should not equal (layout.etag)
+    an[java.io.IOException] should be thrownBy write(0, layout.length)
+  }
+
+  "A channel which accepts no more data" should "fail the archive instead of spinning" in withTmpDir { dir ⇒
+    val source = dir /> "source"
+    Files.write(source / "small", content(1000))
+    Files.write(source / "large", content(3 * 1024 * 1024))
+
+    // as a full non-blocking channel, which accepts some data then none
+    class FullChannel(var capacity: Int) extends java.nio.channels.WritableByteChannel {
+      override def write(src: java.nio.ByteBuffer) = {
+        val n = math.min(capacity, src.remaining)
+        src.position(src.position() + n)
+        capacity -= n
+        n
+      }
+      override def isOpen = true
+      override def close() = {}
+    }
+
+    for { capacity ← Seq(0, 100 * 1024, 2 * 1024 * 1024) } {
+      val tos = new TarOutputStream(new FullChannel(capacity), TarConstants.DEFAULT_BLKSIZE, TarConstants.DEFAULT_RCDSIZE, TarConstants.FILE_BUFFER_SIZE, false)
+      an[java.io.IOException] should be thrownBy {
+        try tos.archive(source)
+        finally tos.close()
+      }
+    }
+
+    val archiveFile = dir / "archive.tar"
+    source.archive(archiveFile)
+    archiveFile.withTarFile { tarFile ⇒
+      val large = tarFile.getEntries.asScala.find(_.getName.endsWith("large")).get
+      for { capacity ← Seq(0, 100 * 1024) } an[java.io.IOException] should be thrownBy tarFile.transferTo(large, new FullChannel(capacity))
+    }
+  }
+
+}